@@ -16,9 +16,7 @@
 package com.jivesoftware.android.imagecapturerdemo;
 
 import android.content.Intent;
-import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.PersistableBundle;
@@ -31,10 +29,12 @@ import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
+import com.jivesoftware.android.imagecapturer.CaptureMetrics;
+import com.jivesoftware.android.imagecapturer.CapturedImage;
+import com.jivesoftware.android.imagecapturer.DecodeSpec;
 import com.jivesoftware.android.imagecapturer.ImageCapturer;
 
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.IOException;
 
 
@@ -46,6 +46,9 @@ public class MainActivity extends ActionBarActivity {
     private Button captureImageButton;
 
     private Bitmap bitmap;
+    // the DecodedImageCache's own copy, which mustn't be released
+    private boolean bitmapShared;
+    private CapturedImage capturedImage;
     private volatile int smallestNonZeroImageViewDimension;
     private ViewTreeObserver.OnGlobalLayoutListener imageViewOnGlobalLayoutListener = new ViewTreeObserver.OnGlobalLayoutListener() {
         @Override
@@ -63,7 +66,16 @@ public class MainActivity extends ActionBarActivity {
         }
     };
 
-    private ImageCapturer.ImageCapturedCallback imageCapturedCallback = new ImageCapturer.ImageCapturedCallback() {
+    private ImageCapturer.CapturedImageCallback imageCapturedCallback = new ImageCapturer.CapturedImageCallback() {
+        @Override
+        public void onImageCaptured(Bitmap bitmap, CapturedImage capturedImage) {
+            setCapturing(false);
+
+            MainActivity.this.bitmap = bitmap;
+            MainActivity.this.capturedImage = capturedImage;
+            imageView.setImageBitmap(bitmap);
+        }
+
         @Override
         public void onImageCaptured(Bitmap bitmap, Uri imageUri, File imageFile) {
             setCapturing(false);
@@ -101,43 +113,29 @@ public class MainActivity extends ActionBarActivity {
         }
     };
 
-    private ImageCapturer.BackgroundBitmapProvider backgroundBitmapProvider = new ImageCapturer.BackgroundBitmapProvider() {
+    private CapturedImage.LoadCallback capturedImageLoadCallback = new CapturedImage.LoadCallback() {
         @Override
-        public Bitmap provideBitmap(AssetFileDescriptor imageAssetFileDescriptor) throws IOException {
-            FileDescriptor imageFileDescriptor = imageAssetFileDescriptor.getFileDescriptor();
-            BitmapFactory.Options samplingOpts = getSamplingOptsForFileDescriptor(imageFileDescriptor);
-            BitmapFactory.Options decodeOpts = getDecodeOptsToFitMaxDimension(samplingOpts, smallestNonZeroImageViewDimension);
-            return BitmapFactory.decodeFileDescriptor(imageFileDescriptor, null, decodeOpts);
-        }
-
-        private BitmapFactory.Options getSamplingOptsForFileDescriptor(FileDescriptor fd) {
-            BitmapFactory.Options opts = new BitmapFactory.Options();
-            opts.inJustDecodeBounds = true;
-            BitmapFactory.decodeFileDescriptor(fd, null, opts);
-            return opts;
+        public void onCapturedImageLoaded(CapturedImage capturedImage, Bitmap bitmap) {
+            if (capturedImage != MainActivity.this.capturedImage || isFinishing()) {
+                // captured something else in the meantime
+                ImageCapturer.releaseBitmap(MainActivity.this, bitmap);
+                return;
+            }
+            MainActivity.this.bitmap = bitmap;
+            bitmapShared = false;
+            imageView.setImageBitmap(bitmap);
         }
 
-        private BitmapFactory.Options getDecodeOptsToFitMaxDimension(BitmapFactory.Options samplingOpts, int maxDimension) {
-            int bitmapWidth = samplingOpts.outWidth;
-            int bitmapHeight = samplingOpts.outHeight;
-            int scale = calculateInSampleSize(maxDimension, bitmapWidth, bitmapHeight);
-
-            BitmapFactory.Options decodeOpts = new BitmapFactory.Options();
-            decodeOpts.inSampleSize = scale;
-            return decodeOpts;
+        @Override
+        public void onCapturedImageLoadFailed(CapturedImage capturedImage, IOException e) {
+            Log.w(TAG, "Couldn't reload " + capturedImage, e);
         }
+    };
 
-        private int calculateInSampleSize(int maxDimension, int bitmapWidth, int bitmapHeight) {
-            double scaleFactor = Math.max(bitmapWidth / (maxDimension * 1.0), bitmapHeight / (maxDimension * 1.0));
-
-            int newWidth = (int) (bitmapWidth / scaleFactor);
-            int newHeight = (int) (bitmapHeight / scaleFactor);
-
-            int scale = 1;
-            while (bitmapWidth / scale > newWidth || bitmapHeight / scale > newHeight) {
-                scale *= 2;
-            }
-            return scale;
+    private ImageCapturer.CaptureMetricsListener captureMetricsListener = new ImageCapturer.CaptureMetricsListener() {
+        @Override
+        public void onCaptureMetrics(CaptureMetrics captureMetrics) {
+            Log.d(TAG, captureMetrics.toString());
         }
     };
 
@@ -147,6 +145,7 @@ public class MainActivity extends ActionBarActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        ImageCapturer.prepare(this);
 
         progressBar = (ProgressBar) findViewById(R.id.progressBar);
         imageView = (ImageView) findViewById(R.id.imageView);
@@ -168,19 +167,37 @@ public class MainActivity extends ActionBarActivity {
         if (savedInstanceState != null) {
             imageCapturer = savedInstanceState.getParcelable("imageCapturer");
             smallestNonZeroImageViewDimension = savedInstanceState.getInt("smallestNonZeroImageViewDimension");
+            capturedImage = savedInstanceState.getParcelable("capturedImage");
+            if (capturedImage != null) {
+                bitmap = capturedImage.getCachedBitmap(this);
+                if (bitmap != null) {
+                    bitmapShared = true;
+                    imageView.setImageBitmap(bitmap);
+                } else {
+                    capturedImage.load(this, capturedImageLoadCallback);
+                }
+            }
         }
 
         if (imageCapturer == null) {
             imageCapturer = new ImageCapturer();
             imageCapturer.setImageSourceChooserTitle(getString(R.string.image_source_chooser_title));
         }
+        imageCapturer.setCaptureMetricsListener(captureMetricsListener);
 
-        setCapturing(imageCapturer.isCapturing());
+        setCapturing(imageCapturer.isCapturing() || imageCapturer.isProcessing());
+        // a decode started before a rotation is still running, or already done
+        imageCapturer.reattach(imageCapturedCallback);
     }
 
     @Override
     protected void onDestroy() {
-        imageCapturer.cancelBackgroundProcessing();
+        if (isChangingConfigurations()) {
+            // keep decoding. The recreated Activity reattaches.
+            imageCapturer.detach();
+        } else {
+            imageCapturer.cancelBackgroundProcessing();
+        }
 
         // don't call imageCapturer.cancelAwaitImageCapture() without caution.
         // during a normal call, Android might destroy this Activity to free resources
@@ -191,9 +208,14 @@ public class MainActivity extends ActionBarActivity {
 
     private void setCapturing(boolean capturing) {
         if (capturing) {
+            imageView.setImageBitmap(null);
+            if (bitmap != null && !bitmapShared) {
+                ImageCapturer.releaseBitmap(this, bitmap);
+            }
             bitmap = null;
+            bitmapShared = false;
+            capturedImage = null;
             progressBar.setVisibility(View.VISIBLE);
-            imageView.setImageBitmap(null);
             captureImageButton.setEnabled(false);
         } else {
             progressBar.setVisibility(View.GONE);
@@ -205,21 +227,15 @@ public class MainActivity extends ActionBarActivity {
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
 
-        outState.putParcelable("bitmap", bitmap);
+        // a few hundred bytes instead of the whole Bitmap
+        outState.putParcelable("capturedImage", capturedImage);
         outState.putParcelable("imageCapturer", imageCapturer);
         outState.putInt("smallestNonZeroImageViewDimension", smallestNonZeroImageViewDimension);
     }
 
-    @Override
-    protected void onRestoreInstanceState(Bundle savedInstanceState) {
-        super.onRestoreInstanceState(savedInstanceState);
-        this.bitmap = savedInstanceState.getParcelable("bitmap");
-        imageView.setImageBitmap(bitmap);
-    }
-
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        ImageCapturer.Result result = imageCapturer.onActivityResult(this, requestCode, resultCode, data, imageCapturedCallback, backgroundBitmapProvider);
+        ImageCapturer.Result result = imageCapturer.onActivityResultDecoded(this, requestCode, resultCode, data, imageCapturedCallback, getDecodeSpec());
         switch (result) {
             case IGNORED:
                 super.onActivityResult(requestCode, resultCode, data);
@@ -234,6 +250,14 @@ public class MainActivity extends ActionBarActivity {
         }
     }
 
+    private DecodeSpec getDecodeSpec() {
+        if (smallestNonZeroImageViewDimension == 0) {
+            return null;
+        } else {
+            return new DecodeSpec(smallestNonZeroImageViewDimension, smallestNonZeroImageViewDimension);
+        }
+    }
+
     private void showErrorToast(int resourceId) {
         Toast.makeText(this, resourceId, Toast.LENGTH_SHORT).show();
     }
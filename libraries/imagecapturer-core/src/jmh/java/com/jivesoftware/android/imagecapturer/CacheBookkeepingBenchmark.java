@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hit paths of the bitmap pool and the decoded image cache, without the bitmaps: taking a reusable item out of
+ * the pool and giving it back, and the per-key lock and counters every cache lookup goes through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBookkeepingBenchmark {
+    /**
+     * How many items are pooled. Lookups scan from the newest, so the oldest is the slowest to find.
+     */
+    @Param({"8", "64"})
+    public int poolCount;
+
+    private LruPool<PooledItem> pool;
+    private final KeyedLock keyedLock = new KeyedLock();
+    private final CacheStats cacheStats = new CacheStats();
+    private int oldestSize;
+
+    @Setup
+    public void setUp() {
+        pool = new LruPool<PooledItem>(Long.MAX_VALUE) {
+            @Override
+            protected long sizeOf(PooledItem item) {
+                return item.byteCount;
+            }
+
+            @Override
+            protected void onEvicted(PooledItem item) {
+            }
+        };
+        for (int i = 0; i < poolCount; i++) {
+            pool.add(new PooledItem(1024 * (i + 1)));
+        }
+        oldestSize = 1024;
+    }
+
+    @Benchmark
+    public long poolHitNewest() {
+        return reuse(1024 * poolCount);
+    }
+
+    @Benchmark
+    public long poolHitOldest() {
+        // put back as the newest, so the next oldest is a different item
+        long byteCount = reuse(oldestSize);
+        oldestSize = oldestSize == 1024 * poolCount ? 1024 : oldestSize + 1024;
+        return byteCount;
+    }
+
+    @Benchmark
+    public long poolMiss() {
+        PooledItem item = pool.remove(new SizeMatcher(-1));
+        return item == null ? 0 : item.byteCount;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void cacheLookupUncontended() throws InterruptedException {
+        lookup("content://media/external/images/media/42|2097152|1420070400|1080x1920|FIT|ARGB_8888");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void cacheLookupContended() throws InterruptedException {
+        lookup("content://media/external/images/media/42|2097152|1420070400|1080x1920|FIT|ARGB_8888");
+    }
+
+    private void lookup(String key) throws InterruptedException {
+        keyedLock.lock(key);
+        try {
+            cacheStats.recordHit(true, 2097152);
+        } finally {
+            keyedLock.unlock(key);
+        }
+    }
+
+    private long reuse(int byteCount) {
+        PooledItem item = pool.remove(new SizeMatcher(byteCount));
+        if (item == null) {
+            throw new IllegalStateException("Nothing pooled of " + byteCount + " bytes");
+        }
+        pool.add(item);
+        return item.byteCount;
+    }
+
+    private static class PooledItem {
+        public final int byteCount;
+
+        public PooledItem(int byteCount) {
+            this.byteCount = byteCount;
+        }
+    }
+
+    private static class SizeMatcher implements LruPool.Matcher<PooledItem> {
+        private final int byteCount;
+
+        public SizeMatcher(int byteCount) {
+            this.byteCount = byteCount;
+        }
+
+        @Override
+        public boolean matches(PooledItem item) {
+            return item.byteCount == byteCount;
+        }
+    }
+}
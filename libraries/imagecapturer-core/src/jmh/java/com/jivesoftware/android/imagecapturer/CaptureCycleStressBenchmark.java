@@ -0,0 +1,286 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Capture cycles back to back over a corpus of large generated JPEGs and PNGs, to catch latency and leak
+ * regressions in the parts of the pipeline that don't need Android: the source is staged to a temporary file,
+ * its header sniffed through a {@link RewindableInputStream}, and it is decoded subsampled into a pooled image
+ * under a {@link KeyedLock} and a {@link MemoryBudget}. Every <code>cancelEvery</code>th capture is cancelled after
+ * the header, like one the user backs out of.
+ * <p/>
+ * Each invocation is one capture, so the sampled times are the decode latency percentiles. Run with
+ * <code>-prof gc</code> for the allocation rate. The fork has a small heap, so a leak fails the run with an
+ * {@link OutOfMemoryError}, and the run fails with an {@link IllegalStateException} if a capture leaves a temporary
+ * file, a lock or budget behind, or the pool grows past its limit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+public class CaptureCycleStressBenchmark {
+    private static final int TARGET_SIZE = 1024;
+    private static final long POOL_MAX_SIZE_BYTES = 32 * 1024 * 1024;
+
+    @Param("10")
+    public int cancelEvery;
+
+    private final AtomicInteger captureCount = new AtomicInteger();
+    private final KeyedLock keyedLock = new KeyedLock();
+    private final MemoryBudget memoryBudget = new MemoryBudget(64 * 1024 * 1024);
+    private LruPool<BufferedImage> pool;
+    private File corpusDirectory;
+    private File stagingDirectory;
+    private File[] corpus;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (cancelEvery < 1) {
+            throw new IllegalArgumentException("cancelEvery must be greater than zero: " + cancelEvery);
+        }
+        pool = new LruPool<BufferedImage>(POOL_MAX_SIZE_BYTES) {
+            @Override
+            protected long sizeOf(BufferedImage image) {
+                return byteCount(image.getWidth(), image.getHeight());
+            }
+
+            @Override
+            protected void onEvicted(BufferedImage image) {
+            }
+        };
+        corpusDirectory = createDirectory("corpus");
+        stagingDirectory = createDirectory("staging");
+        Random random = new Random(42);
+        List<File> files = new ArrayList<File>();
+        files.add(write(generate(4032, 3024, random), "jpg"));
+        files.add(write(generate(3264, 2448, random), "jpg"));
+        files.add(write(generate(1080, 1920, random), "jpg"));
+        files.add(write(generate(2048, 2048, random), "png"));
+        files.add(write(generate(1440, 2560, random), "png"));
+        corpus = files.toArray(new File[files.size()]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        try {
+            String[] leftovers = stagingDirectory.list();
+            if (leftovers == null || leftovers.length > 0) {
+                throw new IllegalStateException("Temporary files left behind: " + (leftovers == null ? "?" : leftovers.length));
+            }
+            if (memoryBudget.getInFlightBytes() != 0) {
+                throw new IllegalStateException("Memory budget not released: " + memoryBudget.getInFlightBytes() + " bytes");
+            }
+            for (File file : corpus) {
+                if (keyedLock.isLocked(file.getPath())) {
+                    throw new IllegalStateException("Lock not released: " + file);
+                }
+            }
+            if (pool.getSizeBytes() > POOL_MAX_SIZE_BYTES) {
+                throw new IllegalStateException("Pool grew past its limit: " + pool.getSizeBytes() + " bytes");
+            }
+        } finally {
+            for (File file : corpus) {
+                file.delete();
+            }
+            stagingDirectory.delete();
+            corpusDirectory.delete();
+        }
+    }
+
+    /**
+     * @return the decoded area, or zero if the capture was cancelled
+     */
+    @Benchmark
+    public long capture() throws IOException, InterruptedException {
+        int capture = captureCount.getAndIncrement();
+        File source = corpus[capture % corpus.length];
+        String key = source.getPath();
+        keyedLock.lock(key);
+        try {
+            File stagedFile = stage(source);
+            try {
+                return decode(stagedFile, capture % cancelEvery == cancelEvery - 1);
+            } finally {
+                if (!stagedFile.delete()) {
+                    throw new IOException("Couldn't delete " + stagedFile);
+                }
+            }
+        } finally {
+            keyedLock.unlock(key);
+        }
+    }
+
+    private long decode(File file, boolean cancel) throws IOException, InterruptedException {
+        RewindableInputStream in = new RewindableInputStream(new FileInputStream(file), RewindableInputStream.HEADER_REWIND_LIMIT);
+        try {
+            ImageHeader imageHeader = ImageHeaderSniffer.sniff(in);
+            if (imageHeader == null) {
+                throw new IOException("Unknown image format: " + file);
+            }
+            if (cancel) {
+                return 0;
+            }
+            in.rewind();
+
+            int sampleSize = DecodeSizing.calculateInSampleSize(imageHeader.width, imageHeader.height, TARGET_SIZE, TARGET_SIZE);
+            int width = (imageHeader.width + sampleSize - 1) / sampleSize;
+            int height = (imageHeader.height + sampleSize - 1) / sampleSize;
+            long byteCount = byteCount(width, height);
+            memoryBudget.acquire(byteCount);
+            try {
+                BufferedImage image = read(in, sampleSize, width, height);
+                long area = (long) image.getWidth() * image.getHeight();
+                pool.add(image);
+                return area;
+            } finally {
+                memoryBudget.release(byteCount);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private BufferedImage read(InputStream in, int sampleSize, int width, int height) throws IOException {
+        ImageInputStream imageInputStream = ImageIO.createImageInputStream(in);
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                BufferedImage reusable = pool.remove(new SizeMatcher(width, height));
+                if (reusable != null) {
+                    param.setDestination(reusable);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            imageInputStream.close();
+        }
+    }
+
+    private File stage(File source) throws IOException {
+        File stagedFile = File.createTempFile("staged-", null, stagingDirectory);
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(stagedFile);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return stagedFile;
+    }
+
+    private static long byteCount(int width, int height) {
+        return (long) width * height * 4;
+    }
+
+    private static File createDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix + "-", null);
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * @return gradients with noise, so images compress about as well as photos
+     */
+    private static BufferedImage generate(int width, int height, Random random) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = (x * 255 / width + random.nextInt(24)) & 0xFF;
+                int green = (y * 255 / height + random.nextInt(24)) & 0xFF;
+                int blue = ((x + y) * 255 / (width + height) + random.nextInt(24)) & 0xFF;
+                row[x] = (red << 16) | (green << 8) | blue;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private File write(BufferedImage image, String format) throws IOException {
+        File file = new File(corpusDirectory, image.getWidth() + "x" + image.getHeight() + "." + format);
+        if (!ImageIO.write(image, format, file)) {
+            throw new IOException("No writer for " + format);
+        }
+        return file;
+    }
+
+    private static class SizeMatcher implements LruPool.Matcher<BufferedImage> {
+        private final int width;
+        private final int height;
+
+        public SizeMatcher(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean matches(BufferedImage image) {
+            return image.getWidth() == width && image.getHeight() == height;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sizing math run for every decode, over a spread of camera and gallery image sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeSizingBenchmark {
+    private static final int SIZE_COUNT = 1024;
+    private static final int MAX_WIDTH = 1080;
+    private static final int MAX_HEIGHT = 1920;
+
+    private final int[] widths = new int[SIZE_COUNT];
+    private final int[] heights = new int[SIZE_COUNT];
+    private int index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < SIZE_COUNT; i++) {
+            widths[i] = 320 + random.nextInt(8000);
+            heights[i] = 240 + random.nextInt(6000);
+        }
+    }
+
+    /**
+     * Everything <code>BitmapDecoder</code> works out before decoding: the scale, target size, sample size and
+     * density scaling of the output.
+     */
+    @Benchmark
+    public int decodeOptions() {
+        int i = nextIndex();
+        int width = widths[i];
+        int height = heights[i];
+        double scale = DecodeSizing.calculateScale(width, height, MAX_WIDTH, MAX_HEIGHT, false);
+        int targetWidth = DecodeSizing.scaleDimension(width, scale);
+        int targetHeight = DecodeSizing.scaleDimension(height, scale);
+        int sampleSize = DecodeSizing.calculateInSampleSize(width, height, targetWidth, targetHeight);
+        return DecodeSizing.calculateOutputDimension(width, sampleSize, width, targetWidth * sampleSize) +
+                DecodeSizing.calculateOutputDimension(height, sampleSize, width, targetWidth * sampleSize);
+    }
+
+    @Benchmark
+    public long estimateByteCount() {
+        int i = nextIndex();
+        return DecodeSizing.estimateByteCount(widths[i], heights[i], MAX_WIDTH, MAX_HEIGHT, true, 4);
+    }
+
+    private int nextIndex() {
+        index = (index + 1) & (SIZE_COUNT - 1);
+        return index;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header sniffing throughput over a corpus of images, read the way <code>ImageSource</code> reads them: through
+ * a {@link RewindableInputStream}.
+ * <p/>
+ * Set <code>corpusDirectory</code> to benchmark real JPEG, PNG and WebP files. Without it, headers like those
+ * cameras and galleries write are generated, including a JPEG whose frame header comes after 64KB of EXIF.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderSniffBenchmark {
+    // the most of each corpus file that is kept. Sniffing never reads further than the rewind limit.
+    private static final int MAX_PREFIX_BYTES = RewindableInputStream.HEADER_REWIND_LIMIT;
+
+    @Param("")
+    public String corpusDirectory;
+
+    private byte[][] images;
+    private byte[][] jpegs;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<byte[]> corpus = corpusDirectory.length() == 0 ? generateCorpus() : readCorpus(new File(corpusDirectory));
+        if (corpus.isEmpty()) {
+            throw new IllegalStateException("No JPEG, PNG or WebP files in " + corpusDirectory);
+        }
+        images = corpus.toArray(new byte[corpus.size()][]);
+        List<byte[]> jpegList = new ArrayList<byte[]>();
+        for (byte[] image : images) {
+            ImageHeader imageHeader = ImageHeaderSniffer.sniff(new ByteArrayInputStream(image));
+            if (imageHeader != null && imageHeader.format == ImageHeader.Format.JPEG) {
+                jpegList.add(image);
+            }
+        }
+        jpegs = jpegList.toArray(new byte[jpegList.size()][]);
+    }
+
+    /**
+     * @return the total area, so nothing is optimized away
+     */
+    @Benchmark
+    public long sniffCorpus() throws IOException {
+        long area = 0;
+        for (byte[] image : images) {
+            ImageHeader imageHeader = ImageHeaderSniffer.sniff(new RewindableInputStream(new ByteArrayInputStream(image), RewindableInputStream.HEADER_REWIND_LIMIT));
+            if (imageHeader != null) {
+                area += (long) imageHeader.width * imageHeader.height;
+            }
+        }
+        return area;
+    }
+
+    @Benchmark
+    public int readExifSegments() throws IOException {
+        int length = 0;
+        for (byte[] jpeg : jpegs) {
+            byte[] exifSegment = ExifReader.readExifSegment(new ByteArrayInputStream(jpeg));
+            if (exifSegment != null) {
+                length += exifSegment.length;
+            }
+        }
+        return length;
+    }
+
+    private static List<byte[]> readCorpus(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        List<byte[]> corpus = new ArrayList<byte[]>();
+        for (File file : files) {
+            String name = file.getName().toLowerCase(Locale.US);
+            if (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png") || name.endsWith(".webp")) {
+                corpus.add(readPrefix(file));
+            }
+        }
+        return corpus;
+    }
+
+    private static byte[] readPrefix(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while (out.size() < MAX_PREFIX_BYTES && (count = in.read(buffer, 0, Math.min(buffer.length, MAX_PREFIX_BYTES - out.size()))) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<byte[]> generateCorpus() throws IOException {
+        List<byte[]> corpus = new ArrayList<byte[]>();
+        corpus.add(jpeg(4032, 3024, 0));
+        corpus.add(jpeg(3264, 2448, 16 * 1024));
+        corpus.add(jpeg(1920, 1080, 64 * 1024 - 16));
+        corpus.add(png(1080, 1920));
+        corpus.add(webpLossy(1024, 768));
+        corpus.add(webpExtended(4000, 3000));
+        return corpus;
+    }
+
+    /**
+     * @param exifBytes the size of an APP1 segment before the frame header, or zero for none
+     */
+    private static byte[] jpeg(int width, int height, int exifBytes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(0xFFD8);
+        // JFIF APP0
+        out.writeShort(0xFFE0);
+        out.writeShort(16);
+        out.writeBytes("JFIF");
+        out.write(new byte[10]);
+        if (exifBytes > 0) {
+            out.writeShort(0xFFE1);
+            out.writeShort(exifBytes + 2);
+            out.writeBytes("Exif");
+            out.write(new byte[exifBytes - 4]);
+        }
+        // SOF0 with 3 components
+        out.writeShort(0xFFC0);
+        out.writeShort(17);
+        out.writeByte(8);
+        out.writeShort(height);
+        out.writeShort(width);
+        out.writeByte(3);
+        out.write(new byte[9]);
+        out.writeShort(0xFFDA);
+        out.write(new byte[1024]);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0x89504E470D0A1A0AL);
+        out.writeInt(13);
+        out.writeBytes("IHDR");
+        out.writeInt(width);
+        out.writeInt(height);
+        out.write(new byte[1024]);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] webpLossy(int width, int height) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("RIFF");
+        out.writeInt(0);
+        out.writeBytes("WEBPVP8 ");
+        out.writeInt(0);
+        out.write(new byte[]{0, 0, 0, (byte) 0x9D, 0x01, 0x2A});
+        writeShortLittleEndian(out, width);
+        writeShortLittleEndian(out, height);
+        out.write(new byte[1024]);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] webpExtended(int width, int height) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("RIFF");
+        out.writeInt(0);
+        out.writeBytes("WEBPVP8X");
+        out.writeInt(0);
+        out.writeInt(0);
+        write24LittleEndian(out, width - 1);
+        write24LittleEndian(out, height - 1);
+        out.write(new byte[1024]);
+        return bytes.toByteArray();
+    }
+
+    private static void writeShortLittleEndian(DataOutputStream out, int value) throws IOException {
+        out.writeByte(value & 0xFF);
+        out.writeByte((value >>> 8) & 0xFF);
+    }
+
+    private static void write24LittleEndian(DataOutputStream out, int value) throws IOException {
+        writeShortLittleEndian(out, value);
+        out.writeByte((value >>> 16) & 0xFF);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What duplicate detection adds to each capture once the pixels are sampled: hashing the sample grid and looking
+ * the hash up in a full {@link DuplicateIndex}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PerceptualHashBenchmark {
+    private static final int GRID_WIDTH = PerceptualHash.CELL_COLUMNS * 4;
+    private static final int GRID_HEIGHT = PerceptualHash.CELL_ROWS * 4;
+
+    /**
+     * How many earlier captures are indexed. Lookups compare against every one of them.
+     */
+    @Param({"16", "256"})
+    public int indexedCount;
+
+    private final int[] grid = new int[GRID_WIDTH * GRID_HEIGHT];
+    private DuplicateIndex duplicateIndex;
+    private long hash;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < grid.length; i++) {
+            grid[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        duplicateIndex = new DuplicateIndex(indexedCount, DuplicateIndex.DEFAULT_MAX_DISTANCE);
+        for (int i = 0; i < indexedCount; i++) {
+            duplicateIndex.findOrAdd("content://media/external/images/media/" + i, random.nextLong());
+        }
+        hash = PerceptualHash.dHash(grid, GRID_WIDTH, GRID_HEIGHT);
+    }
+
+    @Benchmark
+    public long hashGrid() {
+        return PerceptualHash.dHash(grid, GRID_WIDTH, GRID_HEIGHT);
+    }
+
+    @Benchmark
+    public String findInIndex() {
+        return duplicateIndex.find(hash);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+/**
+ * Counts the lookups of a two tier cache and the source bytes its hits saved reading.
+ * <p/>
+ * Thread safe.
+ */
+final class CacheStats {
+    private int memoryHitCount;
+    private int diskHitCount;
+    private int missCount;
+    private long bytesSaved;
+
+    /**
+     * @param memory      <code>true</code> for a hit in memory, <code>false</code> for one on disk
+     * @param sourceBytes the size of the original the hit didn't have to read
+     */
+    synchronized void recordHit(boolean memory, long sourceBytes) {
+        if (memory) {
+            memoryHitCount++;
+        } else {
+            diskHitCount++;
+        }
+        bytesSaved += sourceBytes;
+    }
+
+    synchronized void recordMiss() {
+        missCount++;
+    }
+
+    synchronized int getMemoryHitCount() {
+        return memoryHitCount;
+    }
+
+    synchronized int getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the fraction of lookups, from 0 to 1, served from memory or disk
+     */
+    synchronized float getHitRate() {
+        int lookupCount = memoryHitCount + diskHitCount + missCount;
+        return lookupCount == 0 ? 0 : (memoryHitCount + diskHitCount) / (float) lookupCount;
+    }
+
+    synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "memoryHits=" + memoryHitCount + ", diskHits=" + diskHitCount +
+                ", misses=" + missCount + ", bytesSaved=" + bytesSaved;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+/**
+ * Sample size and target size math used when decoding to a <code>DecodeSpec</code>.
+ * <p/>
+ * Pure Java, so it can be benchmarked on any JVM.
+ */
+final class DecodeSizing {
+    private DecodeSizing() {
+    }
+
+    /**
+     * @return the factor (never more than 1) that <code>width</code> x <code>height</code> must be multiplied by
+     * to fit or fill <code>maxWidth</code> x <code>maxHeight</code>.
+     *
+     * @param fill <code>true</code> to cover <code>maxWidth</code> x <code>maxHeight</code>, <code>false</code> to fit inside it
+     */
+    static double calculateScale(int width, int height, int maxWidth, int maxHeight, boolean fill) {
+        double widthScale = maxWidth / (double) width;
+        double heightScale = maxHeight / (double) height;
+        double scale;
+        if (fill) {
+            scale = Math.max(widthScale, heightScale);
+        } else {
+            scale = Math.min(widthScale, heightScale);
+        }
+        return Math.min(scale, 1.0);
+    }
+
+    static int scaleDimension(int dimension, double scale) {
+        return Math.max(1, (int) Math.round(dimension * scale));
+    }
+
+    /**
+     * @return an upper bound for the size of one dimension of the bitmap a decode
+     * with <code>sampleSize</code> and <code>density</code>/<code>targetDensity</code> scaling produces.
+     * A <code>density</code> of zero means no scaling.
+     */
+    static int calculateOutputDimension(int sourceDimension, int sampleSize, int density, int targetDensity) {
+        int sampledDimension = (sourceDimension + sampleSize - 1) / sampleSize;
+        if (density == 0) {
+            return sampledDimension;
+        }
+        return Math.max(1, (int) (sampledDimension * (targetDensity / (double) density) + 0.5));
+    }
+
+    /**
+     * @return the largest power of two that <code>width</code> x <code>height</code> can be divided by
+     * without becoming smaller than <code>targetWidth</code> x <code>targetHeight</code>.
+     */
+    static int calculateInSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while ((width / (sampleSize * 2)) >= targetWidth && (height / (sampleSize * 2)) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return about how many bytes a bitmap scaled to fit or fill <code>maxWidth</code> x <code>maxHeight</code>
+     * takes
+     */
+    static long estimateByteCount(int sourceWidth, int sourceHeight, int maxWidth, int maxHeight, boolean fill, int bytesPerPixel) {
+        double scale = calculateScale(sourceWidth, sourceHeight, maxWidth, maxHeight, fill);
+        long width = scaleDimension(sourceWidth, scale);
+        long height = scaleDimension(sourceHeight, scale);
+        return width * height * bytesPerPixel;
+    }
+}
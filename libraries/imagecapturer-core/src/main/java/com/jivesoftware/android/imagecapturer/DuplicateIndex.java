@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, in-process index of the {@link PerceptualHash}es of recently captured images, to spot when the same
+ * photo, or a near copy like the next shot of a burst, is captured again. The oldest images are forgotten first.
+ */
+public class DuplicateIndex {
+    public static final int DEFAULT_MAX_ENTRY_COUNT = 256;
+    /**
+     * Copies of an image are usually within this many bits; unrelated images are around 32 apart.
+     */
+    public static final int DEFAULT_MAX_DISTANCE = 10;
+
+    private final int maxEntryCount;
+    private final int maxDistance;
+    private final LinkedHashMap<String, Long> hashes;
+    private int duplicateCount;
+
+    public DuplicateIndex() {
+        this(DEFAULT_MAX_ENTRY_COUNT, DEFAULT_MAX_DISTANCE);
+    }
+
+    /**
+     * @param maxEntryCount how many images to remember
+     * @param maxDistance   the most bits two hashes may differ by to count as duplicates, from 0 to 64
+     */
+    public DuplicateIndex(final int maxEntryCount, int maxDistance) {
+        if (maxEntryCount < 1) {
+            throw new IllegalArgumentException("maxEntryCount must be greater than zero: " + maxEntryCount);
+        }
+        if (maxDistance < 0 || maxDistance > 64) {
+            throw new IllegalArgumentException("maxDistance must be from 0 to 64: " + maxDistance);
+        }
+        this.maxEntryCount = maxEntryCount;
+        this.maxDistance = maxDistance;
+        this.hashes = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntryCount;
+            }
+        };
+    }
+
+    /**
+     * Look for a near duplicate of <code>hash</code>, then remember it as <code>id</code>.
+     *
+     * @param id identifies the image, like its source {@link android.net.Uri}. Capturing the same <code>id</code>
+     *           again counts as a duplicate of it.
+     * @return the id of the closest earlier image within {@link #getMaxDistance()}, or <code>null</code>
+     */
+    public synchronized String findOrAdd(String id, long hash) {
+        if (id == null) {
+            throw new IllegalArgumentException("id must not be null");
+        }
+        String duplicateOf = find(hash);
+        if (duplicateOf != null) {
+            duplicateCount++;
+        }
+        // re-inserting makes it the newest
+        hashes.remove(id);
+        hashes.put(id, hash);
+        return duplicateOf;
+    }
+
+    /**
+     * @return the id of the closest image within {@link #getMaxDistance()} of <code>hash</code>, or
+     * <code>null</code>
+     */
+    public synchronized String find(long hash) {
+        String closestId = null;
+        int closestDistance = maxDistance + 1;
+        for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+            int distance = PerceptualHash.distance(hash, entry.getValue());
+            if (distance < closestDistance) {
+                closestId = entry.getKey();
+                closestDistance = distance;
+            }
+        }
+        return closestId;
+    }
+
+    /**
+     * Forget <code>id</code>, for example when the user removes the attachment again.
+     *
+     * @return <code>true</code> if it was indexed
+     */
+    public synchronized boolean remove(String id) {
+        return hashes.remove(id) != null;
+    }
+
+    public synchronized void clear() {
+        hashes.clear();
+    }
+
+    public synchronized int size() {
+        return hashes.size();
+    }
+
+    public int getMaxEntryCount() {
+        return maxEntryCount;
+    }
+
+    public int getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * @return how many times {@link #findOrAdd(String, long)} found a duplicate
+     */
+    public synchronized int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DuplicateIndex{size=" + hashes.size() + "/" + maxEntryCount + ", maxDistance=" + maxDistance +
+                ", duplicates=" + duplicateCount + "}";
+    }
+}
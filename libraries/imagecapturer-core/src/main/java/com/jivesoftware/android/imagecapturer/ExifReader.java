@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads EXIF metadata from the start of a JPEG without decoding it. Only the segments up to the
+ * APP1/EXIF segment are read.
+ */
+final class ExifReader {
+    private static final int MARKER_SOI = 0xFFD8;
+    private static final int MARKER_APP1 = 0xFFE1;
+    private static final int MARKER_SOS = 0xFFDA;
+    private static final int MARKER_EOI = 0xFFD9;
+    /**
+     * The image is stored the way it should be shown.
+     */
+    static final int ORIENTATION_NORMAL = 1;
+    static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    static final int ORIENTATION_ROTATE_180 = 3;
+    static final int ORIENTATION_FLIP_VERTICAL = 4;
+    /**
+     * Flipped along the top left to bottom right diagonal.
+     */
+    static final int ORIENTATION_TRANSPOSE = 5;
+    static final int ORIENTATION_ROTATE_90 = 6;
+    /**
+     * Flipped along the top right to bottom left diagonal.
+     */
+    static final int ORIENTATION_TRANSVERSE = 7;
+    static final int ORIENTATION_ROTATE_270 = 8;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int IFD_ENTRY_LENGTH = 12;
+    // "Exif" followed by two zero bytes
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private ExifReader() {
+    }
+
+    /**
+     * @return the APP1/EXIF segment of a JPEG, starting with the "Exif" header, or <code>null</code> if
+     * <code>in</code> isn't a JPEG or has no EXIF segment.
+     */
+    static byte[] readExifSegment(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if (data.readUnsignedShort() != MARKER_SOI) {
+                return null;
+            }
+            while (true) {
+                int marker = data.readUnsignedShort();
+                if ((marker & 0xFF00) != 0xFF00 || marker == MARKER_SOS || marker == MARKER_EOI) {
+                    // metadata always comes before the image data
+                    return null;
+                }
+                int length = data.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+                if (marker == MARKER_APP1 && length >= EXIF_HEADER.length) {
+                    byte[] segment = new byte[length];
+                    data.readFully(segment);
+                    if (startsWith(segment, EXIF_HEADER)) {
+                        return segment;
+                    }
+                } else {
+                    skipFully(data, length);
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param exifSegment from {@link #readExifSegment(java.io.InputStream)}
+     * @return the embedded JPEG thumbnail or <code>null</code> if there isn't one.
+     */
+    static byte[] readThumbnail(byte[] exifSegment) {
+        Tiff tiff = Tiff.parse(exifSegment);
+        if (tiff == null) {
+            return null;
+        }
+        // the thumbnail is described by IFD1, which follows IFD0
+        int ifd0Offset = tiff.readInt(4);
+        int ifd1Offset = tiff.readInt(tiff.getNextIfdOffsetPosition(ifd0Offset));
+        if (ifd1Offset <= 0) {
+            return null;
+        }
+        int entryCount = tiff.readUnsignedShort(ifd1Offset);
+        int thumbnailOffset = -1;
+        int thumbnailLength = -1;
+        for (int i = 0; i < entryCount; i++) {
+            int entryOffset = ifd1Offset + 2 + i * IFD_ENTRY_LENGTH;
+            int tag = tiff.readUnsignedShort(entryOffset);
+            if (tag == TAG_JPEG_INTERCHANGE_FORMAT) {
+                thumbnailOffset = tiff.readInt(entryOffset + 8);
+            } else if (tag == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+                thumbnailLength = tiff.readInt(entryOffset + 8);
+            }
+        }
+        return tiff.copyRange(thumbnailOffset, thumbnailLength);
+    }
+
+    /**
+     * Read the orientation tag from IFD0, stopping at the APP1/EXIF segment.
+     *
+     * @return one of the <code>ORIENTATION_</code> constants. {@link #ORIENTATION_NORMAL} if <code>in</code>
+     * isn't a JPEG, has no EXIF or an unknown orientation.
+     */
+    static int readOrientation(InputStream in) throws IOException {
+        byte[] exifSegment = readExifSegment(in);
+        return exifSegment == null ? ORIENTATION_NORMAL : readOrientation(exifSegment);
+    }
+
+    /**
+     * @param exifSegment from {@link #readExifSegment(java.io.InputStream)}
+     */
+    static int readOrientation(byte[] exifSegment) {
+        Tiff tiff = Tiff.parse(exifSegment);
+        if (tiff == null) {
+            return ORIENTATION_NORMAL;
+        }
+        int ifd0Offset = tiff.readInt(4);
+        int entryCount = tiff.readUnsignedShort(ifd0Offset);
+        for (int i = 0; i < entryCount; i++) {
+            int entryOffset = ifd0Offset + 2 + i * IFD_ENTRY_LENGTH;
+            if (tiff.readUnsignedShort(entryOffset) == TAG_ORIENTATION) {
+                // a SHORT, left justified in the value field
+                int orientation = tiff.readUnsignedShort(entryOffset + 8);
+                return orientation >= ORIENTATION_NORMAL && orientation <= ORIENTATION_ROTATE_270 ? orientation : ORIENTATION_NORMAL;
+            }
+        }
+        return ORIENTATION_NORMAL;
+    }
+
+    /**
+     * @return <code>true</code> if showing an image with <code>orientation</code> swaps its width and height
+     */
+    static boolean isTransposed(int orientation) {
+        return orientation >= ORIENTATION_TRANSPOSE && orientation <= ORIENTATION_ROTATE_270;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skipFully(DataInputStream data, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = data.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * The TIFF structure inside an EXIF segment. Offsets are relative to the TIFF header. Reads outside of the
+     * segment return -1 instead of throwing, since EXIF written by cameras is often slightly broken.
+     */
+    private static class Tiff {
+        private final byte[] bytes;
+        private final int start;
+        private final boolean littleEndian;
+
+        private Tiff(byte[] bytes, int start, boolean littleEndian) {
+            this.bytes = bytes;
+            this.start = start;
+            this.littleEndian = littleEndian;
+        }
+
+        static Tiff parse(byte[] exifSegment) {
+            int start = EXIF_HEADER.length;
+            if (exifSegment.length < start + 8) {
+                return null;
+            }
+            boolean littleEndian;
+            if (exifSegment[start] == 'I' && exifSegment[start + 1] == 'I') {
+                littleEndian = true;
+            } else if (exifSegment[start] == 'M' && exifSegment[start + 1] == 'M') {
+                littleEndian = false;
+            } else {
+                return null;
+            }
+            return new Tiff(exifSegment, start, littleEndian);
+        }
+
+        int getNextIfdOffsetPosition(int ifdOffset) {
+            int entryCount = readUnsignedShort(ifdOffset);
+            if (entryCount < 0) {
+                return -1;
+            }
+            return ifdOffset + 2 + entryCount * IFD_ENTRY_LENGTH;
+        }
+
+        int readUnsignedShort(int offset) {
+            int position = start + offset;
+            if (offset < 0 || position + 2 > bytes.length) {
+                return -1;
+            }
+            int b0 = bytes[position] & 0xFF;
+            int b1 = bytes[position + 1] & 0xFF;
+            return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+
+        int readInt(int offset) {
+            int position = start + offset;
+            if (offset < 0 || position + 4 > bytes.length) {
+                return -1;
+            }
+            int b0 = bytes[position] & 0xFF;
+            int b1 = bytes[position + 1] & 0xFF;
+            int b2 = bytes[position + 2] & 0xFF;
+            int b3 = bytes[position + 3] & 0xFF;
+            if (littleEndian) {
+                return (b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+            } else {
+                return (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+            }
+        }
+
+        byte[] copyRange(int offset, int length) {
+            int position = start + offset;
+            if (offset < 0 || length <= 0 || position + length > bytes.length) {
+                return null;
+            }
+            byte[] range = new byte[length];
+            System.arraycopy(bytes, position, range, 0, length);
+            return range;
+        }
+    }
+}
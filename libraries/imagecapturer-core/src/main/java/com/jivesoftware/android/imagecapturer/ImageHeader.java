@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+/**
+ * The format and dimensions of an encoded image, read without decoding it.
+ */
+final class ImageHeader {
+    final Format format;
+    final int width;
+    final int height;
+    /**
+     * One of the {@link ExifReader} <code>ORIENTATION_</code> constants. <code>width</code> and <code>height</code>
+     * are as stored, before it is applied.
+     */
+    final int orientation;
+
+    ImageHeader(Format format, int width, int height) {
+        this(format, width, height, ExifReader.ORIENTATION_NORMAL);
+    }
+
+    ImageHeader(Format format, int width, int height, int orientation) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+    }
+
+    ImageHeader withOrientation(int orientation) {
+        return new ImageHeader(format, width, height, orientation);
+    }
+
+    @Override
+    public String toString() {
+        return "ImageHeader{" + format + " " + width + "x" + height +
+                (orientation == ExifReader.ORIENTATION_NORMAL ? "" : ", orientation=" + orientation) + "}";
+    }
+
+    enum Format {
+        JPEG,
+        PNG,
+        WEBP,
+        GIF,
+        /**
+         * A format only the native decoder understands.
+         */
+        OTHER
+    }
+}
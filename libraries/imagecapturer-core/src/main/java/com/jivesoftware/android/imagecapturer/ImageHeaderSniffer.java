@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the format and dimensions of JPEG, PNG, WebP and GIF images from their headers in pure Java,
+ * without invoking the native decoder.
+ */
+final class ImageHeaderSniffer {
+    private static final int JPEG_SOI = 0xFFD8;
+    private static final int JPEG_SOS = 0xFFDA;
+    private static final int JPEG_EOI = 0xFFD9;
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int PNG_IHDR = 0x49484452;
+    private static final int RIFF = 0x52494646;
+    private static final int WEBP = 0x57454250;
+    private static final int WEBP_VP8 = 0x56503820;
+    private static final int WEBP_VP8L = 0x5650384C;
+    private static final int WEBP_VP8X = 0x56503858;
+    private static final int GIF = 0x474946;
+
+    private ImageHeaderSniffer() {
+    }
+
+    /**
+     * Read from the start of an image up to its dimensions.
+     *
+     * @return the header or <code>null</code> if the format isn't recognized or the header is broken.
+     */
+    static ImageHeader sniff(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            int first = data.readInt();
+            if ((first >>> 16) == JPEG_SOI) {
+                return sniffJpeg(data, first & 0xFFFF);
+            } else if ((first >>> 8) == GIF) {
+                return sniffGif(data);
+            } else if (first == (int) (PNG_SIGNATURE >>> 32)) {
+                return sniffPng(data);
+            } else if (first == RIFF) {
+                return sniffWebp(data);
+            } else {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static ImageHeader sniffJpeg(DataInputStream data, int firstMarker) throws IOException {
+        int marker = firstMarker;
+        while (true) {
+            if ((marker & 0xFF00) != 0xFF00 || marker == JPEG_SOS || marker == JPEG_EOI) {
+                return null;
+            }
+            int length = data.readUnsignedShort() - 2;
+            if (length < 0) {
+                return null;
+            }
+            if (isStartOfFrame(marker)) {
+                // precision, then height and width
+                data.readUnsignedByte();
+                int height = data.readUnsignedShort();
+                int width = data.readUnsignedShort();
+                return createHeader(ImageHeader.Format.JPEG, width, height);
+            }
+            skipFully(data, length);
+            marker = data.readUnsignedShort();
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15, except DHT, JPG and DAC which share the range
+        return marker >= 0xFFC0 && marker <= 0xFFCF && marker != 0xFFC4 && marker != 0xFFC8 && marker != 0xFFCC;
+    }
+
+    private static ImageHeader sniffPng(DataInputStream data) throws IOException {
+        if (data.readInt() != (int) PNG_SIGNATURE) {
+            return null;
+        }
+        // the IHDR chunk always comes first: length, type, width, height
+        data.readInt();
+        if (data.readInt() != PNG_IHDR) {
+            return null;
+        }
+        int width = data.readInt();
+        int height = data.readInt();
+        return createHeader(ImageHeader.Format.PNG, width, height);
+    }
+
+    private static ImageHeader sniffGif(DataInputStream data) throws IOException {
+        // the rest of "GIF87a" or "GIF89a", then the logical screen width and height
+        skipFully(data, 2);
+        int width = readUnsignedShortLittleEndian(data);
+        int height = readUnsignedShortLittleEndian(data);
+        return createHeader(ImageHeader.Format.GIF, width, height);
+    }
+
+    private static ImageHeader sniffWebp(DataInputStream data) throws IOException {
+        // RIFF size, "WEBP", then the first chunk's type and size
+        data.readInt();
+        if (data.readInt() != WEBP) {
+            return null;
+        }
+        int chunkType = data.readInt();
+        data.readInt();
+        if (chunkType == WEBP_VP8) {
+            // lossy: 3 byte frame tag, 3 byte start code, then 14 bit width and height
+            skipFully(data, 6);
+            int width = readUnsignedShortLittleEndian(data) & 0x3FFF;
+            int height = readUnsignedShortLittleEndian(data) & 0x3FFF;
+            return createHeader(ImageHeader.Format.WEBP, width, height);
+        } else if (chunkType == WEBP_VP8L) {
+            // lossless: 1 byte signature, then 14 bit width - 1 and 14 bit height - 1
+            if (data.readUnsignedByte() != 0x2F) {
+                return null;
+            }
+            int bits = readIntLittleEndian(data);
+            int width = (bits & 0x3FFF) + 1;
+            int height = ((bits >>> 14) & 0x3FFF) + 1;
+            return createHeader(ImageHeader.Format.WEBP, width, height);
+        } else if (chunkType == WEBP_VP8X) {
+            // extended: 4 bytes of flags, then 24 bit canvas width - 1 and height - 1
+            skipFully(data, 4);
+            int width = readUnsigned24LittleEndian(data) + 1;
+            int height = readUnsigned24LittleEndian(data) + 1;
+            return createHeader(ImageHeader.Format.WEBP, width, height);
+        } else {
+            return null;
+        }
+    }
+
+    private static ImageHeader createHeader(ImageHeader.Format format, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        return new ImageHeader(format, width, height);
+    }
+
+    private static int readUnsignedShortLittleEndian(DataInputStream data) throws IOException {
+        int b0 = data.readUnsignedByte();
+        int b1 = data.readUnsignedByte();
+        return (b1 << 8) | b0;
+    }
+
+    private static int readUnsigned24LittleEndian(DataInputStream data) throws IOException {
+        int b0 = data.readUnsignedByte();
+        int b1 = data.readUnsignedByte();
+        int b2 = data.readUnsignedByte();
+        return (b2 << 16) | (b1 << 8) | b0;
+    }
+
+    private static int readIntLittleEndian(DataInputStream data) throws IOException {
+        int low = readUnsignedShortLittleEndian(data);
+        int high = readUnsignedShortLittleEndian(data);
+        return (high << 16) | low;
+    }
+
+    private static void skipFully(DataInputStream data, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = data.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * One lock per key, so threads working on the same key take turns while threads on different keys don't wait.
+ */
+final class KeyedLock {
+    private final Set<String> lockedKeys = new HashSet<String>();
+
+    /**
+     * Wait until no other thread holds <code>key</code>, then claim it. Call {@link #unlock(String)} when done.
+     */
+    void lock(String key) throws InterruptedException {
+        synchronized (lockedKeys) {
+            while (!lockedKeys.add(key)) {
+                lockedKeys.wait();
+            }
+        }
+    }
+
+    void unlock(String key) {
+        synchronized (lockedKeys) {
+            lockedKeys.remove(key);
+            lockedKeys.notifyAll();
+        }
+    }
+
+    boolean isLocked(String key) {
+        synchronized (lockedKeys) {
+            return lockedKeys.contains(key);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The bookkeeping of a size bounded, least recently used pool of reusable objects: what's in it, how many bytes
+ * it holds, and how often lookups hit. Subclasses say how big an object is and free evicted ones.
+ * <p/>
+ * Thread safe.
+ */
+abstract class LruPool<T> {
+    private final LinkedList<T> items = new LinkedList<T>();
+    private long maxSizeBytes;
+    private long sizeBytes;
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    interface Matcher<T> {
+        boolean matches(T item);
+    }
+
+    LruPool(long maxSizeBytes) {
+        if (maxSizeBytes < 0) {
+            throw new IllegalArgumentException("maxSizeBytes must not be negative: " + maxSizeBytes);
+        }
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    protected abstract long sizeOf(T item);
+
+    /**
+     * Called with the pool locked, right after <code>item</code> was evicted.
+     */
+    protected abstract void onEvicted(T item);
+
+    /**
+     * @return <code>true</code> if <code>item</code> was added, <code>false</code> if it is bigger than the whole
+     * pool or already in it.
+     */
+    synchronized boolean add(T item) {
+        long itemBytes = sizeOf(item);
+        if (itemBytes > maxSizeBytes || items.contains(item)) {
+            return false;
+        }
+        items.addLast(item);
+        sizeBytes += itemBytes;
+        trimToSize(maxSizeBytes);
+        return true;
+    }
+
+    /**
+     * Remove and return the newest item that <code>matcher</code> accepts, so recently added items are reused
+     * before they are evicted.
+     *
+     * @return the item or <code>null</code> if none matched
+     */
+    synchronized T remove(Matcher<? super T> matcher) {
+        Iterator<T> iterator = items.descendingIterator();
+        while (iterator.hasNext()) {
+            T item = iterator.next();
+            if (matcher.matches(item)) {
+                iterator.remove();
+                sizeBytes -= sizeOf(item);
+                hitCount++;
+                return item;
+            }
+        }
+        missCount++;
+        return null;
+    }
+
+    synchronized void trimToSize(long targetSizeBytes) {
+        while (sizeBytes > targetSizeBytes && !items.isEmpty()) {
+            T eldest = items.removeFirst();
+            sizeBytes -= sizeOf(eldest);
+            evictionCount++;
+            onEvicted(eldest);
+        }
+    }
+
+    synchronized int getCount() {
+        return items.size();
+    }
+
+    synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    synchronized long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    synchronized void setMaxSizeBytes(long maxSizeBytes) {
+        if (maxSizeBytes < 0) {
+            throw new IllegalArgumentException("maxSizeBytes must not be negative: " + maxSizeBytes);
+        }
+        this.maxSizeBytes = maxSizeBytes;
+        trimToSize(maxSizeBytes);
+    }
+
+    synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    synchronized int getMissCount() {
+        return missCount;
+    }
+
+    synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+}
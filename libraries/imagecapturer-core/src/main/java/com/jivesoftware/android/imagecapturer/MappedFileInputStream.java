@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a local file through a read-only memory mapping, so reading it again after a rewind costs no system calls
+ * and no copies into the Java heap beyond the caller's buffer.
+ * <p/>
+ * The mapping can't be unmapped early, so {@link #close()} only makes every later read throw. That is how a
+ * cancelled capture stops a decode that is reading from another thread.
+ */
+final class MappedFileInputStream extends InputStream {
+    private final MappedByteBuffer buffer;
+    private int markPosition;
+    private boolean closed;
+
+    private MappedFileInputStream(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    static MappedFileInputStream open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // the mapping stays valid after the channel is closed
+            return new MappedFileInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return 0;
+        }
+        int remaining = buffer.remaining();
+        if (remaining == 0) {
+            return -1;
+        }
+        int count = Math.min(len, remaining);
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        ensureOpen();
+        if (n <= 0) {
+            return 0;
+        }
+        int count = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        ensureOpen();
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        markPosition = buffer.position();
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        ensureOpen();
+        buffer.position(markPosition);
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+/**
+ * Caps the bytes of decoded bitmaps that are in flight at once.
+ * Decodes block in {@link #acquire(long)} until earlier results have been delivered and {@link #release(long)}d.
+ */
+final class MemoryBudget {
+    private final long capacityBytes;
+    private long inFlightBytes;
+
+    MemoryBudget(long capacityBytes) {
+        if (capacityBytes < 1) {
+            throw new IllegalArgumentException("capacityBytes must be greater than zero: " + capacityBytes);
+        }
+        this.capacityBytes = capacityBytes;
+    }
+
+    synchronized void acquire(long bytes) throws InterruptedException {
+        // an image bigger than the whole budget still gets decoded, but only when nothing else is in flight
+        while (inFlightBytes > 0 && inFlightBytes + bytes > capacityBytes) {
+            wait();
+        }
+        inFlightBytes += bytes;
+    }
+
+    synchronized void release(long bytes) {
+        inFlightBytes -= bytes;
+        notifyAll();
+    }
+
+    synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    long getCapacityBytes() {
+        return capacityBytes;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+/**
+ * A 64 bit difference hash (dHash) of an image: the image is shrunk to 9 x 8 cells of average luminance and each
+ * bit says whether a cell is brighter than its right neighbour. Resized, recompressed or slightly edited copies of
+ * an image hash to values a few bits apart, see {@link #distance(long, long)}.
+ */
+public final class PerceptualHash {
+    /**
+     * Columns of cells. One more than the bits per row, since each bit compares two neighbours.
+     */
+    static final int CELL_COLUMNS = 9;
+    static final int CELL_ROWS = 8;
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * Hash a grid of pixels sampled evenly from the image. The grid is averaged into cells, so it should be a few
+     * samples per cell in each direction; a multiple of 9 x 8 averages best.
+     *
+     * @param argb       the sampled pixels, row by row, as {@link android.graphics.Color} ints
+     * @param gridWidth  samples per row, at least {@link #CELL_COLUMNS}
+     * @param gridHeight rows of samples, at least {@link #CELL_ROWS}
+     */
+    static long dHash(int[] argb, int gridWidth, int gridHeight) {
+        if (gridWidth < CELL_COLUMNS || gridHeight < CELL_ROWS) {
+            throw new IllegalArgumentException("grid must be at least " + CELL_COLUMNS + "x" + CELL_ROWS + ": " + gridWidth + "x" + gridHeight);
+        }
+        if (argb.length < gridWidth * gridHeight) {
+            throw new IllegalArgumentException("argb holds " + argb.length + " samples, needs " + gridWidth * gridHeight);
+        }
+        long[] sums = new long[CELL_COLUMNS * CELL_ROWS];
+        int[] counts = new int[CELL_COLUMNS * CELL_ROWS];
+        for (int y = 0; y < gridHeight; y++) {
+            int cellRow = y * CELL_ROWS / gridHeight;
+            int rowOffset = y * gridWidth;
+            for (int x = 0; x < gridWidth; x++) {
+                int cell = cellRow * CELL_COLUMNS + x * CELL_COLUMNS / gridWidth;
+                int pixel = argb[rowOffset + x];
+                // ITU-R BT.601 luma in fixed point
+                sums[cell] += (77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff)) >> 8;
+                counts[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for (int row = 0; row < CELL_ROWS; row++) {
+            for (int column = 0; column < CELL_COLUMNS - 1; column++) {
+                int cell = row * CELL_COLUMNS + column;
+                // compare averages without dividing: a/n > b/m  <=>  a*m > b*n
+                hash <<= 1;
+                if (sums[cell] * counts[cell + 1] > sums[cell + 1] * counts[cell]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return how many of the 64 bits differ. 0 for the same image, usually under 10 for copies of it, and around
+     * 32 for unrelated images.
+     */
+    public static int distance(long hash, long otherHash) {
+        return Long.bitCount(hash ^ otherHash);
+    }
+
+    public static String toHexString(long hash) {
+        String hex = Long.toHexString(hash);
+        StringBuilder builder = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; i++) {
+            builder.append('0');
+        }
+        return builder.append(hex).toString();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link java.io.BufferedInputStream} that can {@link #rewind()} to its start for as long as no more than
+ * its rewind limit has been read, so a header can be sniffed and the image decoded from one read of the source.
+ * <p/>
+ * Marks set by others are ignored, so the decoder can't move the rewind point.
+ */
+final class RewindableInputStream extends BufferedInputStream {
+    // enough for JPEGs with large EXIF, ICC and XMP segments before the frame header
+    static final int HEADER_REWIND_LIMIT = 256 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final CountingInputStream countingInputStream;
+
+    RewindableInputStream(InputStream in, int rewindLimit) {
+        this(new CountingInputStream(in), rewindLimit);
+    }
+
+    private RewindableInputStream(CountingInputStream countingInputStream, int rewindLimit) {
+        super(countingInputStream, BUFFER_SIZE);
+        this.countingInputStream = countingInputStream;
+        super.mark(rewindLimit);
+    }
+
+    /**
+     * @return <code>true</code> if no more than the rewind limit has been read
+     */
+    synchronized boolean canRewind() {
+        return markpos >= 0;
+    }
+
+    synchronized void rewind() throws IOException {
+        reset();
+    }
+
+    /**
+     * @return the bytes read from the underlying stream, which can be less than the bytes read from this
+     * stream after rewinding.
+     */
+    long getSourceBytesRead() {
+        return countingInputStream.bytesRead;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // keep the rewind point
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long bytesRead;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                bytesRead += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            if (skipped > 0) {
+                bytesRead += skipped;
+            }
+            return skipped;
+        }
+    }
+}
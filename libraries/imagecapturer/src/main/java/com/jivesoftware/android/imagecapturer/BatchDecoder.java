@@ -0,0 +1,384 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Decodes several captured images concurrently and streams each result through the {@link CaptureRegistry} to a
+ * {@link ImageCapturer.BatchImageCapturedCallback} on the main thread as soon as it is ready.
+ */
+final class BatchDecoder implements CaptureRegistry.Work {
+    private final ContentResolver contentResolver;
+    private final List<Uri> imageUris;
+    private final File imageFile;
+    private final DecodeSpec decodeSpec;
+    private final BitmapPool bitmapPool;
+    private final MemoryBudget memoryBudget;
+    private final MemoryGovernor memoryGovernor;
+    private final DuplicateIndex duplicateIndex;
+    private final DecodedImageCache decodedImageCache;
+    private final DecodeExecutor decodeExecutor;
+    private final long chooserLaunchNanos;
+    private final ImageStager imageStager;
+    private final CaptureRegistry captureRegistry;
+    private final String captureId;
+    private final DecodeControl decodeControl = new DecodeControl();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean cancelled;
+    // only touched on the main thread
+    private int deliveredCount;
+    private int failedCount;
+
+    /**
+     * @param imageUris  the picked images. If empty, <code>imageFile</code> is decoded instead.
+     * @param imageFile  the file a camera may have written to.
+     * @param decodeSpec the size to decode to or <code>null</code> for full resolution.
+     * @param duplicateIndex     flags images that were captured before. May be <code>null</code>.
+     * @param chooserLaunchNanos reported in every image's {@link CaptureMetrics}
+     * @param imageStager        copies remote images to local files first. May be <code>null</code>.
+     * @param captureId          what the batch is registered as in <code>captureRegistry</code>
+     */
+    BatchDecoder(
+            ContentResolver contentResolver,
+            List<Uri> imageUris,
+            File imageFile,
+            DecodeSpec decodeSpec,
+            BitmapPool bitmapPool,
+            MemoryBudget memoryBudget,
+            MemoryGovernor memoryGovernor,
+            DuplicateIndex duplicateIndex,
+            DecodedImageCache decodedImageCache,
+            DecodeExecutor decodeExecutor,
+            long chooserLaunchNanos,
+            ImageStager imageStager,
+            CaptureRegistry captureRegistry,
+            String captureId) {
+        this.contentResolver = contentResolver;
+        this.imageUris = imageUris;
+        this.imageFile = imageFile;
+        this.decodeSpec = decodeSpec;
+        this.bitmapPool = bitmapPool;
+        this.memoryBudget = memoryBudget;
+        this.memoryGovernor = memoryGovernor;
+        this.duplicateIndex = duplicateIndex;
+        this.decodedImageCache = decodedImageCache;
+        this.decodeExecutor = decodeExecutor;
+        this.chooserLaunchNanos = chooserLaunchNanos;
+        this.imageStager = imageStager;
+        this.captureRegistry = captureRegistry;
+        this.captureId = captureId;
+    }
+
+    @Override
+    public void start(Executor executor) {
+        int imageCount = getImageCount();
+        for (int i = 0; i < imageCount; i++) {
+            executor.execute(new DecodeImageRunnable(i, new CaptureMetrics.Recorder(getSourceUri(i), chooserLaunchNanos)));
+        }
+    }
+
+    /**
+     * Stop delivering results. Decodes that haven't started yet are skipped.
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+        decodeControl.cancel();
+    }
+
+    @Override
+    public DecodeControl getDecodeControl() {
+        return decodeControl;
+    }
+
+    private int getImageCount() {
+        return imageUris.isEmpty() ? 1 : imageUris.size();
+    }
+
+    private Uri getSourceUri(int index) {
+        return imageUris.isEmpty() ? Uri.fromFile(imageFile) : imageUris.get(index);
+    }
+
+    private void deliver(final DecodedImage decodedImage) {
+        memoryBudget.release(decodedImage.byteCount);
+        if (cancelled) {
+            discard(decodedImage);
+            return;
+        }
+
+        final int imageCount = getImageCount();
+        if (decodedImage.bitmap == null) {
+            failedCount++;
+        }
+        deliveredCount++;
+        captureRegistry.deliver(captureId, new CaptureRegistry.Delivery() {
+            @Override
+            public void deliver(Object callback, ImageCapturer.CaptureMetricsListener metricsListener) {
+                ImageCapturer.BatchImageCapturedCallback batchImageCapturedCallback = (ImageCapturer.BatchImageCapturedCallback) callback;
+                if (decodedImage.bitmap != null) {
+                    File deliveredImageFile;
+                    if (decodedImage.stagedFile != null) {
+                        deliveredImageFile = decodedImage.stagedFile;
+                    } else {
+                        deliveredImageFile = (imageUris.isEmpty() && imageFile.exists()) ? imageFile : null;
+                    }
+                    batchImageCapturedCallback.onBatchImageCaptured(decodedImage.index, imageCount, decodedImage.bitmap, decodedImage.imageUri, deliveredImageFile, decodedImage.decodeInfo);
+                } else if (decodedImage.ioException != null) {
+                    batchImageCapturedCallback.onBatchImageCaptureFailed(decodedImage.index, imageCount, decodedImage.imageUri, decodedImage.ioException);
+                } else {
+                    batchImageCapturedCallback.onBatchImageCaptureOutOfMemory(decodedImage.index, imageCount, decodedImage.imageUri, decodedImage.outOfMemoryError, decodedImage.nullPointerException);
+                }
+                if (metricsListener != null) {
+                    metricsListener.onCaptureMetrics(decodedImage.metrics.build(decodedImage.bitmap != null));
+                }
+            }
+
+            @Override
+            public void discard() {
+                BatchDecoder.this.discard(decodedImage);
+            }
+        }, false);
+
+        if (deliveredCount == imageCount) {
+            final int batchFailedCount = failedCount;
+            captureRegistry.deliver(captureId, new CaptureRegistry.Delivery() {
+                @Override
+                public void deliver(Object callback, ImageCapturer.CaptureMetricsListener metricsListener) {
+                    ((ImageCapturer.BatchImageCapturedCallback) callback).onBatchCaptureComplete(imageCount, batchFailedCount);
+                }
+
+                @Override
+                public void discard() {
+                }
+            }, true);
+        }
+    }
+
+    /**
+     * Free a result that will never be delivered, because the capture was cancelled.
+     */
+    private void discard(DecodedImage decodedImage) {
+        // cached images are handed out as copies, so the bitmap is always ours to reuse
+        if (decodedImage.bitmap != null) {
+            bitmapPool.put(decodedImage.bitmap);
+        }
+        if (imageStager != null) {
+            imageStager.release(true);
+        }
+    }
+
+    private static class DecodedImage {
+        public final int index;
+        public final Uri imageUri;
+        public final long byteCount;
+        public final Bitmap bitmap;
+        public final DecodeInfo decodeInfo;
+        public final IOException ioException;
+        public final OutOfMemoryError outOfMemoryError;
+        public final NullPointerException nullPointerException;
+        public final CaptureMetrics.Recorder metrics;
+        public final File stagedFile;
+
+        public DecodedImage(
+                int index,
+                Uri imageUri,
+                long byteCount,
+                Bitmap bitmap,
+                DecodeInfo decodeInfo,
+                IOException ioException,
+                OutOfMemoryError outOfMemoryError,
+                NullPointerException nullPointerException,
+                CaptureMetrics.Recorder metrics,
+                File stagedFile) {
+            this.index = index;
+            this.imageUri = imageUri;
+            this.byteCount = byteCount;
+            this.bitmap = bitmap;
+            this.decodeInfo = decodeInfo;
+            this.ioException = ioException;
+            this.outOfMemoryError = outOfMemoryError;
+            this.nullPointerException = nullPointerException;
+            this.metrics = metrics;
+            this.stagedFile = stagedFile;
+        }
+    }
+
+    private class DecodeImageRunnable implements Runnable {
+        private final int index;
+        private final CaptureMetrics.Recorder metrics;
+        // only touched on the background thread
+        private long byteCount;
+        private File stagedFile;
+
+        private DecodeImageRunnable(int index, CaptureMetrics.Recorder metrics) {
+            this.index = index;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void run() {
+            metrics.backgroundStarted();
+
+            Uri imageUri = imageUris.isEmpty() ? null : imageUris.get(index);
+            Uri sourceUri = getSourceUri(index);
+
+            DecodedImage decodedImage;
+            try {
+                if (cancelled) {
+                    // still reported, so the batch's bookkeeping adds up
+                    throw new IOException("Cancelled");
+                }
+                BitmapDecoder.DecodedBitmap decodedBitmap = decode(sourceUri);
+                if (decodedBitmap == null) {
+                    throw new IOException("Decoding image file FAILED for unknown reason");
+                }
+                metrics.recordOutput(decodedBitmap.bitmap, decodedBitmap.decodeInfo);
+                DecodeInfo decodeInfo = decodedBitmap.decodeInfo;
+                if (duplicateIndex != null) {
+                    // earlier images of the same batch count too
+                    metrics.startStage(null);
+                    decodeInfo = Fingerprinter.fingerprint(decodedBitmap.bitmap, decodeInfo, sourceUri.toString(), duplicateIndex);
+                    metrics.addPostProcessNanos(metrics.endStage(null));
+                }
+                decodedImage = new DecodedImage(index, imageUri, byteCount, decodedBitmap.bitmap, decodeInfo, null, null, null, metrics, stagedFile);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                decodedImage = new DecodedImage(index, imageUri, byteCount, null, null, new IOException("Interrupted while waiting to decode"), null, null, metrics, null);
+            } catch (IOException e) {
+                decodedImage = new DecodedImage(index, imageUri, byteCount, null, null, e, null, null, metrics, null);
+            } catch (OutOfMemoryError e) {
+                decodedImage = new DecodedImage(index, imageUri, byteCount, null, null, null, e, null, metrics, null);
+            } catch (NullPointerException e) {
+                // This NPE seems to be OOM related
+                decodedImage = new DecodedImage(index, imageUri, byteCount, null, null, null, null, e, metrics, null);
+            } catch (RuntimeException e) {
+                // like a SecurityException from a provider that no longer grants access
+                decodedImage = new DecodedImage(index, imageUri, byteCount, null, null, new IOException("Reading image FAILED: " + e, e), null, null, metrics, null);
+            }
+
+            metrics.backgroundFinished();
+            final DecodedImage result = decodedImage;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(result);
+                }
+            });
+        }
+
+        private BitmapDecoder.DecodedBitmap decode(Uri sourceUri) throws IOException, InterruptedException {
+            metrics.startStage(null);
+            DecodedImageCache.Key cacheKey = decodeSpec == null ? null : DecodedImageCache.createKey(contentResolver, sourceUri, decodeSpec);
+            DecodedImageCache.Entry cachedEntry = cacheKey == null ? null : getCached(cacheKey);
+            metrics.addDecodeNanos(metrics.endStage(null));
+            if (cachedEntry != null) {
+                // served without decoding, so it doesn't wait for the budget
+                return new BitmapDecoder.DecodedBitmap(cachedEntry.bitmap, cachedEntry.decodeInfo);
+            }
+
+            // a remote image is opened once, by the copy, and everything else reads the local file
+            stagedFile = imageStager == null ? null : imageStager.stage(sourceUri, decodeControl, metrics);
+            ImageSource imageSource = decodeControl.open(contentResolver, stagedFile == null ? sourceUri : Uri.fromFile(stagedFile));
+            try {
+                metrics.startStage(imageSource);
+                ImageHeader imageHeader = imageSource.readHeader();
+                metrics.addBoundsNanos(metrics.endStage(imageSource));
+                metrics.recordHeader(imageHeader);
+                // wait for the budget before taking the cache lock, so other captures of this image don't wait with us
+                long estimatedByteCount = BitmapDecoder.estimatePeakByteCount(imageHeader, decodeSpec);
+                if (cacheKey != null) {
+                    // the cache copies the result while we still hold it
+                    estimatedByteCount = Math.max(estimatedByteCount, 2 * BitmapDecoder.estimateByteCount(imageHeader, decodeSpec));
+                }
+                memoryBudget.acquire(estimatedByteCount);
+                byteCount = estimatedByteCount;
+                if (cancelled) {
+                    throw new IOException("Cancelled");
+                }
+                if (cacheKey == null) {
+                    BitmapDecoder.DecodedBitmap decodedBitmap = decodeSource(imageSource, imageHeader);
+                    holdResultOnly(imageHeader);
+                    return decodedBitmap;
+                }
+
+                decodedImageCache.lock(cacheKey);
+                try {
+                    // another capture may have decoded it while we waited
+                    cachedEntry = decodedImageCache.get(cacheKey);
+                    if (cachedEntry != null) {
+                        memoryBudget.release(byteCount);
+                        byteCount = 0;
+                        return new BitmapDecoder.DecodedBitmap(cachedEntry.bitmap, cachedEntry.decodeInfo);
+                    }
+                    BitmapDecoder.DecodedBitmap decodedBitmap = decodeSource(imageSource, imageHeader);
+                    if (decodedBitmap != null) {
+                        metrics.startStage(null);
+                        decodedImageCache.put(cacheKey, decodedBitmap.bitmap, decodedBitmap.decodeInfo, memoryGovernor, decodeExecutor);
+                        metrics.addPostProcessNanos(metrics.endStage(null));
+                    }
+                    // the copy belongs to the cache now, which bounds its own memory
+                    holdResultOnly(imageHeader);
+                    return decodedBitmap;
+                } finally {
+                    decodedImageCache.unlock(cacheKey);
+                }
+            } finally {
+                decodeControl.close(imageSource);
+                metrics.recordSource(imageSource);
+            }
+        }
+
+        /**
+         * @return the cached image, after waiting for a decode of the same image that another capture may be running
+         */
+        private DecodedImageCache.Entry getCached(DecodedImageCache.Key cacheKey) throws InterruptedException {
+            decodedImageCache.lock(cacheKey);
+            try {
+                return decodedImageCache.get(cacheKey);
+            } finally {
+                decodedImageCache.unlock(cacheKey);
+            }
+        }
+
+        private BitmapDecoder.DecodedBitmap decodeSource(ImageSource imageSource, ImageHeader imageHeader) throws IOException {
+            metrics.startStage(imageSource);
+            BitmapDecoder.DecodedBitmap decodedBitmap = BitmapDecoder.decode(imageSource, imageHeader, decodeSpec, bitmapPool, memoryGovernor, decodeControl);
+            metrics.addDecodeNanos(metrics.endStage(imageSource));
+            return decodedBitmap;
+        }
+
+        /**
+         * Only the result is held until it is delivered, not what scaling and caching needed on the way.
+         */
+        private void holdResultOnly(ImageHeader imageHeader) {
+            long resultByteCount = BitmapDecoder.estimateByteCount(imageHeader, decodeSpec);
+            if (resultByteCount < byteCount) {
+                memoryBudget.release(byteCount - resultByteCount);
+                byteCount = resultByteCount;
+            }
+        }
+    }
+}
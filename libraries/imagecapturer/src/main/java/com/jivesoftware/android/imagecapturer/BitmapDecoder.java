@@ -0,0 +1,356 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * Decodes images straight to the size described by a {@link DecodeSpec}.
+ * <p/>
+ * The image dimensions are read from its header, then a single decode both subsamples by the largest
+ * power of two that stays above the target and scales the rest of the way with
+ * <code>inDensity</code>/<code>inTargetDensity</code>, so the full size image is never allocated. From KitKat the
+ * decoder scales while it decodes. Before KitKat it decodes the subsampled {@link Bitmap} first and scales a copy
+ * of it, so both are briefly in memory; {@link MemoryGovernor} and {@link #estimatePeakByteCount} count that.
+ * When a {@link BitmapPool} has a compatible {@link Bitmap} the decode reuses it, and a {@link MemoryGovernor}
+ * can downgrade the decode before it runs out of memory.
+ * <p/>
+ * A JPEG's EXIF orientation is applied too. The {@link DecodeSpec} describes the upright image, so for rotations
+ * by 90 degrees its width and height are swapped before the sample size is picked. Only the downsampled
+ * {@link Bitmap} is rotated or flipped, never the full size image.
+ */
+final class BitmapDecoder {
+    private BitmapDecoder() {
+    }
+
+    static class DecodedBitmap {
+        public final Bitmap bitmap;
+        public final DecodeInfo decodeInfo;
+
+        public DecodedBitmap(Bitmap bitmap, DecodeInfo decodeInfo) {
+            this.bitmap = bitmap;
+            this.decodeInfo = decodeInfo;
+        }
+    }
+
+    /**
+     * Quickly decode a small preview of an image. The JPEG thumbnail embedded in EXIF is used if there is one,
+     * otherwise the image is decoded with a high <code>inSampleSize</code>.
+     *
+     * @param imageHeader   from {@link ImageSource#readHeader()}
+     * @param decodeControl cancels the decode. May be <code>null</code>.
+     * @return a {@link Bitmap} about <code>maxDimension</code> pixels on its longer edge, or <code>null</code>.
+     */
+    static Bitmap decodePreview(ImageSource imageSource, ImageHeader imageHeader, int maxDimension, DecodeControl decodeControl) throws IOException {
+        if (imageHeader.format == ImageHeader.Format.JPEG) {
+            byte[] exifSegment = ExifReader.readExifSegment(imageSource.openStream());
+            if (exifSegment != null) {
+                byte[] thumbnail = ExifReader.readThumbnail(exifSegment);
+                if (thumbnail != null) {
+                    Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+                    if (bitmap != null) {
+                        return applyOrientation(bitmap, imageHeader.orientation, null);
+                    }
+                }
+            }
+        }
+
+        int sourceWidth = imageHeader.width;
+        int sourceHeight = imageHeader.height;
+        double scale = DecodeSizing.calculateScale(sourceWidth, sourceHeight, maxDimension, maxDimension, false);
+        BitmapFactory.Options previewOpts = new BitmapFactory.Options();
+        previewOpts.inSampleSize = DecodeSizing.calculateInSampleSize(
+                sourceWidth, sourceHeight, DecodeSizing.scaleDimension(sourceWidth, scale), DecodeSizing.scaleDimension(sourceHeight, scale));
+        previewOpts.inPreferredConfig = Bitmap.Config.RGB_565;
+        registerOrThrow(decodeControl, previewOpts);
+        try {
+            Bitmap bitmap = BitmapFactory.decodeStream(imageSource.openStream(), null, previewOpts);
+            return bitmap == null ? null : applyOrientation(bitmap, imageHeader.orientation, null);
+        } finally {
+            if (decodeControl != null) {
+                decodeControl.unregister(previewOpts);
+            }
+        }
+    }
+
+    /**
+     * @param imageHeader    from {@link ImageSource#readHeader()}
+     * @param decodeSpec     the size to decode to or <code>null</code> for full resolution
+     * @param bitmapPool     reusable {@link Bitmap}s to decode into. May be <code>null</code>.
+     * @param memoryGovernor downgrades the decode if it wouldn't fit in memory. May be <code>null</code>.
+     * @param decodeControl  cancels the decode. May be <code>null</code>.
+     * @throws IOException if reading failed or the decode was cancelled
+     */
+    static DecodedBitmap decode(
+            ImageSource imageSource,
+            ImageHeader imageHeader,
+            DecodeSpec decodeSpec,
+            BitmapPool bitmapPool,
+            MemoryGovernor memoryGovernor,
+            DecodeControl decodeControl) throws IOException {
+        int sourceWidth = imageHeader.width;
+        int sourceHeight = imageHeader.height;
+        int orientation = imageHeader.orientation;
+        BitmapFactory.Options decodeOpts = createDecodeOptions(sourceWidth, sourceHeight, decodeSpec, orientation);
+        int requestedSampleSize = decodeOpts.inSampleSize;
+        Bitmap.Config requestedConfig = decodeOpts.inPreferredConfig;
+        if (memoryGovernor != null) {
+            memoryGovernor.fit(sourceWidth, sourceHeight, decodeOpts, orientation != ExifReader.ORIENTATION_NORMAL);
+        }
+        // mutable so that callers can hand the result back to the BitmapPool
+        decodeOpts.inMutable = true;
+        if (bitmapPool != null) {
+            decodeOpts.inBitmap = getReusableBitmap(bitmapPool, sourceWidth, sourceHeight, decodeOpts);
+        }
+
+        Bitmap bitmap;
+        registerOrThrow(decodeControl, decodeOpts);
+        try {
+            try {
+                bitmap = BitmapFactory.decodeStream(imageSource.openStream(), null, decodeOpts);
+            } catch (IllegalArgumentException e) {
+                if (decodeOpts.inBitmap == null) {
+                    throw e;
+                }
+                // the decoder couldn't use the pooled bitmap after all. It's still good for someone else.
+                bitmapPool.put(decodeOpts.inBitmap);
+                decodeOpts.inBitmap = null;
+                bitmap = BitmapFactory.decodeStream(imageSource.openStream(), null, decodeOpts);
+            }
+        } catch (IOException e) {
+            // likely the source closed by a cancel. The pooled bitmap wasn't handed out.
+            if (decodeOpts.inBitmap != null) {
+                bitmapPool.put(decodeOpts.inBitmap);
+            }
+            throw e;
+        } finally {
+            if (decodeControl != null) {
+                decodeControl.unregister(decodeOpts);
+            }
+        }
+        if (decodeControl != null && decodeControl.isCancelled()) {
+            // nobody wants the result. Give back whatever memory it holds.
+            if (bitmap != null && bitmapPool != null) {
+                bitmapPool.put(bitmap);
+            } else if (decodeOpts.inBitmap != null) {
+                bitmapPool.put(decodeOpts.inBitmap);
+            }
+            throw new IOException("Cancelled: " + imageSource.getUri());
+        }
+        if (bitmap == null) {
+            if (decodeOpts.inBitmap != null) {
+                bitmapPool.put(decodeOpts.inBitmap);
+            }
+            return null;
+        }
+        if (decodeOpts.inDensity != 0) {
+            // the decoder stamps the Bitmap with inTargetDensity. Put back the density an unscaled decode would have.
+            bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+        }
+        bitmap = applyOrientation(bitmap, orientation, bitmapPool);
+        DecodeInfo decodeInfo = new DecodeInfo(
+                sourceWidth,
+                sourceHeight,
+                requestedSampleSize,
+                decodeOpts.inSampleSize,
+                requestedConfig,
+                decodeOpts.inPreferredConfig,
+                orientation);
+        return new DecodedBitmap(bitmap, decodeInfo);
+    }
+
+    /**
+     * Rotate and flip a decoded {@link Bitmap} so it is upright. Pooled {@link Bitmap}s are reused for the result.
+     *
+     * @param orientation one of the {@link ExifReader} <code>ORIENTATION_</code> constants
+     * @param bitmapPool  gets <code>bitmap</code> back once it has been copied. May be <code>null</code>.
+     * @return <code>bitmap</code> itself if it is upright already, otherwise a mutable copy
+     */
+    static Bitmap applyOrientation(Bitmap bitmap, int orientation, BitmapPool bitmapPool) {
+        if (orientation == ExifReader.ORIENTATION_NORMAL) {
+            return bitmap;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        boolean transposed = ExifReader.isTransposed(orientation);
+        int orientedWidth = transposed ? height : width;
+        int orientedHeight = transposed ? width : height;
+        Bitmap.Config config = bitmap.getConfig() == null ? Bitmap.Config.ARGB_8888 : bitmap.getConfig();
+
+        Bitmap oriented;
+        try {
+            oriented = bitmapPool == null ? null : bitmapPool.get(orientedWidth, orientedHeight, config, true);
+            if (oriented == null) {
+                oriented = Bitmap.createBitmap(orientedWidth, orientedHeight, config);
+            } else {
+                // drawing blends with what a pooled bitmap still holds
+                oriented.eraseColor(0);
+            }
+        } catch (OutOfMemoryError e) {
+            if (bitmapPool != null) {
+                bitmapPool.put(bitmap);
+            }
+            throw e;
+        }
+        oriented.setDensity(bitmap.getDensity());
+        oriented.setHasAlpha(bitmap.hasAlpha());
+        new Canvas(oriented).drawBitmap(bitmap, createOrientationMatrix(orientation, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+        if (bitmapPool != null) {
+            bitmapPool.put(bitmap);
+        }
+        return oriented;
+    }
+
+    /**
+     * @return a {@link Matrix} that maps a <code>width</code> x <code>height</code> image stored with
+     * <code>orientation</code> onto its upright copy
+     */
+    static Matrix createOrientationMatrix(int orientation, int width, int height) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifReader.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                matrix.postTranslate(width, 0);
+                break;
+            case ExifReader.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                matrix.postTranslate(width, height);
+                break;
+            case ExifReader.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                matrix.postTranslate(0, height);
+                break;
+            case ExifReader.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifReader.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                matrix.postTranslate(height, 0);
+                break;
+            case ExifReader.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                matrix.postTranslate(height, width);
+                break;
+            case ExifReader.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                matrix.postTranslate(0, width);
+                break;
+            default:
+                break;
+        }
+        return matrix;
+    }
+
+    private static void registerOrThrow(DecodeControl decodeControl, BitmapFactory.Options options) throws IOException {
+        if (decodeControl != null && !decodeControl.register(options)) {
+            throw new IOException("Cancelled");
+        }
+    }
+
+    static Bitmap getReusableBitmap(BitmapPool bitmapPool, int sourceWidth, int sourceHeight, BitmapFactory.Options decodeOpts) {
+        Bitmap.Config config = decodeOpts.inPreferredConfig;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // leave room for the decoder rounding up
+            int width = DecodeSizing.calculateOutputDimension(sourceWidth, decodeOpts.inSampleSize, decodeOpts.inDensity, decodeOpts.inTargetDensity) + 1;
+            int height = DecodeSizing.calculateOutputDimension(sourceHeight, decodeOpts.inSampleSize, decodeOpts.inDensity, decodeOpts.inTargetDensity) + 1;
+            return bitmapPool.get(width, height, config, false);
+        } else if (decodeOpts.inSampleSize == 1 && decodeOpts.inDensity == 0) {
+            // before KitKat inBitmap only works for unscaled decodes into a Bitmap of exactly the same size
+            return bitmapPool.get(sourceWidth, sourceHeight, config, true);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return about how many bytes decoding the image described by <code>imageHeader</code> to
+     * <code>decodeSpec</code> will allocate.
+     */
+    static long estimateByteCount(ImageHeader imageHeader, DecodeSpec decodeSpec) {
+        if (decodeSpec == null) {
+            return (long) imageHeader.width * imageHeader.height * BitmapPool.getBytesPerPixel(Bitmap.Config.ARGB_8888);
+        }
+        boolean transposed = ExifReader.isTransposed(imageHeader.orientation);
+        return DecodeSizing.estimateByteCount(
+                imageHeader.width,
+                imageHeader.height,
+                transposed ? decodeSpec.getMaxHeight() : decodeSpec.getMaxWidth(),
+                transposed ? decodeSpec.getMaxWidth() : decodeSpec.getMaxHeight(),
+                decodeSpec.getScaleMode() == DecodeSpec.ScaleMode.FILL,
+                BitmapPool.getBytesPerPixel(decodeSpec.getPreferredConfig()));
+    }
+
+    /**
+     * @return about how many bytes decoding the image described by <code>imageHeader</code> to
+     * <code>decodeSpec</code> holds at once while it runs. More than {@link #estimateByteCount} before KitKat, where
+     * scaling needs the subsampled {@link Bitmap} and the scaled one at the same time.
+     */
+    static long estimatePeakByteCount(ImageHeader imageHeader, DecodeSpec decodeSpec) {
+        if (decodeSpec == null || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return estimateByteCount(imageHeader, decodeSpec);
+        }
+        BitmapFactory.Options decodeOpts = createDecodeOptions(imageHeader.width, imageHeader.height, decodeSpec, imageHeader.orientation);
+        return Math.max(
+                estimateByteCount(imageHeader, decodeSpec),
+                MemoryGovernor.projectByteCount(imageHeader.width, imageHeader.height, decodeOpts, false));
+    }
+
+    /**
+     * @param orientation the image's EXIF orientation. <code>decodeSpec</code> describes the image after it is applied.
+     */
+    static BitmapFactory.Options createDecodeOptions(int sourceWidth, int sourceHeight, DecodeSpec decodeSpec, int orientation) {
+        if (decodeSpec == null) {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inSampleSize = 1;
+            opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            return opts;
+        }
+
+        // decode the stored image to the target box as it is stored, rotated along with the image
+        boolean transposed = ExifReader.isTransposed(orientation);
+        int maxWidth = transposed ? decodeSpec.getMaxHeight() : decodeSpec.getMaxWidth();
+        int maxHeight = transposed ? decodeSpec.getMaxWidth() : decodeSpec.getMaxHeight();
+        double scale = DecodeSizing.calculateScale(
+                sourceWidth, sourceHeight, maxWidth, maxHeight, decodeSpec.getScaleMode() == DecodeSpec.ScaleMode.FILL);
+        int targetWidth = DecodeSizing.scaleDimension(sourceWidth, scale);
+        int targetHeight = DecodeSizing.scaleDimension(sourceHeight, scale);
+        int sampleSize = DecodeSizing.calculateInSampleSize(sourceWidth, sourceHeight, targetWidth, targetHeight);
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = sampleSize;
+        opts.inPreferredConfig = decodeSpec.getPreferredConfig();
+        // scale from the subsampled size to the exact target using the longer edge for precision
+        boolean useWidth = sourceWidth >= sourceHeight;
+        int sourceDimension = useWidth ? sourceWidth : sourceHeight;
+        int targetDimension = useWidth ? targetWidth : targetHeight;
+        if (sourceDimension / sampleSize != targetDimension) {
+            opts.inScaled = true;
+            opts.inDensity = sourceDimension;
+            opts.inTargetDensity = targetDimension * sampleSize;
+        }
+        return opts;
+    }
+}
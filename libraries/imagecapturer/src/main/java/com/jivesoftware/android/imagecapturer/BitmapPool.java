@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * A size bounded, least recently used pool of mutable {@link android.graphics.Bitmap}s that decodes reuse through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}.
+ * <p/>
+ * Give {@link android.graphics.Bitmap}s you no longer draw back with {@link #put(android.graphics.Bitmap)} or
+ * {@link ImageCapturer#releaseBitmap(android.content.Context, android.graphics.Bitmap)}. The pool shrinks when
+ * Android calls {@link #onTrimMemory(int)}.
+ */
+public class BitmapPool implements ComponentCallbacks2 {
+    private static BitmapPool instance;
+
+    private final LruPool<Bitmap> bitmaps;
+
+    /**
+     * @return the pool shared by every {@link ImageCapturer} in this process. Its maximum size is an eighth
+     * of the heap available to the app.
+     */
+    public static synchronized BitmapPool getInstance(Context context) {
+        if (instance == null) {
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+            context.getApplicationContext().registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    public BitmapPool(long maxSizeBytes) {
+        this.bitmaps = new LruPool<Bitmap>(maxSizeBytes) {
+            @Override
+            protected long sizeOf(Bitmap bitmap) {
+                return getAllocationByteCount(bitmap);
+            }
+
+            @Override
+            protected void onEvicted(Bitmap bitmap) {
+                bitmap.recycle();
+            }
+        };
+    }
+
+    /**
+     * Offer a {@link android.graphics.Bitmap} for reuse. The caller must not use it afterwards.
+     * Immutable or recycled {@link android.graphics.Bitmap}s can't be reused and are ignored.
+     *
+     * @return <code>true</code> if <code>bitmap</code> was added to the pool.
+     */
+    public boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+        return bitmaps.add(bitmap);
+    }
+
+    /**
+     * Remove and return a {@link android.graphics.Bitmap} that a decode to <code>width</code> x <code>height</code>
+     * pixels of <code>config</code> can reuse.
+     *
+     * @param exactSizeOnly <code>true</code> if the decode can't subsample or scale into the reused
+     *                      {@link android.graphics.Bitmap}. Before KitKat this is always the case.
+     * @return a reusable {@link android.graphics.Bitmap} or <code>null</code> if there isn't one.
+     */
+    Bitmap get(final int width, final int height, final Bitmap.Config config, boolean exactSizeOnly) {
+        final long requiredBytes = (long) width * height * getBytesPerPixel(config);
+        final boolean allocationSizeOnly = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && !exactSizeOnly;
+        return bitmaps.remove(new LruPool.Matcher<Bitmap>() {
+            @Override
+            public boolean matches(Bitmap bitmap) {
+                if (allocationSizeOnly) {
+                    return getAllocationByteCount(bitmap) >= requiredBytes && bitmap.getConfig() == config;
+                } else {
+                    return bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+                }
+            }
+        });
+    }
+
+    public void trimToSize(long targetSizeBytes) {
+        bitmaps.trimToSize(targetSizeBytes);
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public long getSizeBytes() {
+        return bitmaps.getSizeBytes();
+    }
+
+    public long getMaxSizeBytes() {
+        return bitmaps.getMaxSizeBytes();
+    }
+
+    public void setMaxSizeBytes(long maxSizeBytes) {
+        bitmaps.setMaxSizeBytes(maxSizeBytes);
+    }
+
+    public int getHitCount() {
+        return bitmaps.getHitCount();
+    }
+
+    public int getMissCount() {
+        return bitmaps.getMissCount();
+    }
+
+    public int getEvictionCount() {
+        return bitmaps.getEvictionCount();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // we're likely to be killed soon. Give everything back.
+            clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(getSizeBytes() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public String toString() {
+        return "BitmapPool{size=" + getSizeBytes() + "/" + getMaxSizeBytes() +
+                ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "}";
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888 || config == null) {
+            return 4;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else {
+            return 2;
+        }
+    }
+
+    static long getAllocationByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        } else {
+            return (long) bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    }
+}
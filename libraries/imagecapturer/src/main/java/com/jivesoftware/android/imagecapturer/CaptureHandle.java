@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+/**
+ * Controls the background PROCESSING of one capture. Get it from {@link ImageCapturer#getCaptureHandle()} after
+ * <code>onActivityResult</code> returns {@link ImageCapturer.Result#PROCESSING}.
+ */
+public final class CaptureHandle {
+    private final String captureId;
+    private final DecodeControl decodeControl;
+    private boolean cancelled;
+
+    CaptureHandle(String captureId, DecodeControl decodeControl) {
+        this.captureId = captureId;
+        this.decodeControl = decodeControl;
+    }
+
+    /**
+     * Stop the capture, leaving other captures of the same {@link ImageCapturer} alone. A decode in progress is
+     * interrupted: the native decoder is asked to stop, the source is closed and pooled memory is given back, so
+     * the background thread is free right away. No callback is called afterwards.
+     * <p/>
+     * Call on the main thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        CaptureRegistry.getInstance().cancel(captureId);
+        if (decodeControl != null) {
+            decodeControl.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Call on the main thread.
+     *
+     * @return <code>true</code> once every result of the capture was delivered, or it was cancelled.
+     */
+    public boolean isDone() {
+        return !CaptureRegistry.getInstance().contains(captureId);
+    }
+
+    /**
+     * Can be called from any thread.
+     *
+     * @return how many bytes of the captured images have been read so far. Zero if the capture doesn't track it.
+     */
+    public long getBytesRead() {
+        return decodeControl == null ? 0 : decodeControl.getBytesRead();
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureHandle{" + captureId + ", bytesRead=" + getBytesRead() + (cancelled ? ", cancelled" : "") + "}";
+    }
+}
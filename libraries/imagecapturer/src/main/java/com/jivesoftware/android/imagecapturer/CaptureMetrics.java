@@ -0,0 +1,402 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+/**
+ * Where the time and memory went while capturing one image. Delivered to an
+ * {@link ImageCapturer.CaptureMetricsListener} after the capture's callback returns.
+ * <p/>
+ * Times are in nanoseconds. A stage that didn't run, like decoding an image served by {@link DecodedImageCache},
+ * takes zero. Opening the source is timed separately from the stages that caused it to be opened.
+ */
+public final class CaptureMetrics {
+    private final Uri sourceUri;
+    private final boolean succeeded;
+    private final long chooserLaunchNanos;
+    private final long queueWaitNanos;
+    private final long stageNanos;
+    private final long stagedByteCount;
+    private final long openNanos;
+    private final long boundsNanos;
+    private final long previewNanos;
+    private final long decodeNanos;
+    private final long postProcessNanos;
+    private final long deliveryNanos;
+    private final long bytesRead;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int outputWidth;
+    private final int outputHeight;
+    private final int sampleSize;
+    private final Bitmap.Config config;
+    private final long bitmapByteCount;
+    private final boolean fromCache;
+
+    private CaptureMetrics(Recorder recorder, boolean succeeded, long deliveryNanos) {
+        this.sourceUri = recorder.sourceUri;
+        this.succeeded = succeeded;
+        this.chooserLaunchNanos = recorder.chooserLaunchNanos;
+        this.queueWaitNanos = recorder.queueWaitNanos;
+        this.stageNanos = recorder.stageNanos;
+        this.stagedByteCount = recorder.stagedByteCount;
+        this.openNanos = recorder.openNanos;
+        this.boundsNanos = recorder.boundsNanos;
+        this.previewNanos = recorder.previewNanos;
+        this.decodeNanos = recorder.decodeNanos;
+        this.postProcessNanos = recorder.postProcessNanos;
+        this.deliveryNanos = deliveryNanos;
+        this.bytesRead = recorder.bytesRead;
+        this.sourceWidth = recorder.sourceWidth;
+        this.sourceHeight = recorder.sourceHeight;
+        this.outputWidth = recorder.outputWidth;
+        this.outputHeight = recorder.outputHeight;
+        this.sampleSize = recorder.sampleSize;
+        this.config = recorder.config;
+        this.bitmapByteCount = recorder.bitmapByteCount;
+        this.fromCache = recorder.fromCache;
+    }
+
+    /**
+     * @return the {@link android.net.Uri} the image was read from. A <code>file</code> {@link android.net.Uri}
+     * for camera captures.
+     */
+    public Uri getSourceUri() {
+        return sourceUri;
+    }
+
+    /**
+     * @return <code>true</code> if the image was delivered, <code>false</code> if the capture failed or ran out of memory
+     */
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * @return how long {@link ImageCapturer#awaitImageCapture(android.app.Activity, int)} took to prepare and
+     * start the chooser, or zero if the {@link ImageCapturer} was restored from a process that didn't record it.
+     */
+    public long getChooserLaunchNanos() {
+        return chooserLaunchNanos;
+    }
+
+    /**
+     * @return how long the capture waited for a background thread after <code>onActivityResult</code>
+     */
+    public long getQueueWaitNanos() {
+        return queueWaitNanos;
+    }
+
+    /**
+     * @return time spent copying a remote image to a local file before reading it, or zero if it wasn't staged.
+     * See {@link ImageCapturer#setStageRemoteImages(boolean)}.
+     */
+    public long getStageNanos() {
+        return stageNanos;
+    }
+
+    /**
+     * @return how many bytes were copied to the local file, or zero if the image wasn't staged
+     */
+    public long getStagedByteCount() {
+        return stagedByteCount;
+    }
+
+    /**
+     * @return time spent opening the source, across every time it was opened
+     */
+    public long getOpenNanos() {
+        return openNanos;
+    }
+
+    /**
+     * @return time spent reading the image format and dimensions
+     */
+    public long getBoundsNanos() {
+        return boundsNanos;
+    }
+
+    /**
+     * @return time spent decoding the preview for an {@link ImageCapturer.ImagePreviewCallback}
+     */
+    public long getPreviewNanos() {
+        return previewNanos;
+    }
+
+    /**
+     * @return time spent decoding the full image, or looking it up when it came from the cache
+     */
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    /**
+     * @return time spent after decoding on the background thread, like caching or encoding the result
+     */
+    public long getPostProcessNanos() {
+        return postProcessNanos;
+    }
+
+    /**
+     * @return time from the end of background work until the callback returned on the main thread
+     */
+    public long getDeliveryNanos() {
+        return deliveryNanos;
+    }
+
+    /**
+     * @return the total of every stage, from <code>onActivityResult</code> until the callback returned.
+     * Doesn't include {@link #getChooserLaunchNanos()}.
+     */
+    public long getTotalNanos() {
+        return queueWaitNanos + stageNanos + openNanos + boundsNanos + previewNanos + decodeNanos + postProcessNanos + deliveryNanos;
+    }
+
+    /**
+     * @return how many bytes were read from the source
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the width of the original image, or zero if it wasn't read
+     */
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    /**
+     * @return the height of the original image, or zero if it wasn't read
+     */
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    /**
+     * @return the width of the decoded {@link android.graphics.Bitmap}, or zero if there wasn't one
+     */
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    /**
+     * @return the height of the decoded {@link android.graphics.Bitmap}, or zero if there wasn't one
+     */
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    /**
+     * @return the <code>inSampleSize</code> the image was decoded with, or zero if it is unknown
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * @return the {@link android.graphics.Bitmap.Config} of the decoded {@link android.graphics.Bitmap}. May be <code>null</code>.
+     */
+    public Bitmap.Config getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the memory used by the decoded {@link android.graphics.Bitmap}, or zero if there wasn't one
+     */
+    public long getBitmapByteCount() {
+        return bitmapByteCount;
+    }
+
+    /**
+     * @return <code>true</code> if the image came from {@link DecodedImageCache} instead of being decoded
+     */
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureMetrics{" + sourceUri +
+                (succeeded ? "" : ", failed") +
+                ", chooser=" + toMillis(chooserLaunchNanos) + "ms" +
+                ", queueWait=" + toMillis(queueWaitNanos) + "ms" +
+                (stagedByteCount > 0 ? ", stage=" + toMillis(stageNanos) + "ms (" + stagedByteCount + " bytes)" : "") +
+                ", open=" + toMillis(openNanos) + "ms" +
+                ", bounds=" + toMillis(boundsNanos) + "ms" +
+                ", preview=" + toMillis(previewNanos) + "ms" +
+                ", decode=" + toMillis(decodeNanos) + "ms" +
+                ", postProcess=" + toMillis(postProcessNanos) + "ms" +
+                ", delivery=" + toMillis(deliveryNanos) + "ms" +
+                ", bytesRead=" + bytesRead +
+                ", source=" + sourceWidth + "x" + sourceHeight +
+                ", output=" + outputWidth + "x" + outputHeight +
+                ", sampleSize=" + sampleSize +
+                ", config=" + config +
+                ", bitmapByteCount=" + bitmapByteCount +
+                (fromCache ? ", from cache" : "") + "}";
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    /**
+     * Collects the metrics of one capture as it moves from the main thread to a background thread and back.
+     * Each stage is only touched by one thread at a time, and the handoffs between threads publish it.
+     */
+    static final class Recorder {
+        private final Uri sourceUri;
+        private final long chooserLaunchNanos;
+        private final long createdAtNanos = System.nanoTime();
+        private long queueWaitNanos;
+        private long backgroundFinishedAtNanos;
+        private long stageStartedAtNanos;
+        private long stageStartOpenNanos;
+        private long stageNanos;
+        private long stagedByteCount;
+        private long openNanos;
+        private long bytesRead;
+        private long boundsNanos;
+        private long previewNanos;
+        private long decodeNanos;
+        private long postProcessNanos;
+        private int sourceWidth;
+        private int sourceHeight;
+        private int outputWidth;
+        private int outputHeight;
+        private int sampleSize;
+        private Bitmap.Config config;
+        private long bitmapByteCount;
+        private boolean fromCache;
+
+        /**
+         * Call on the main thread when the capture is handed to the background.
+         *
+         * @param chooserLaunchNanos from {@link ImageCapturer#awaitImageCapture(android.app.Activity, int)}
+         */
+        Recorder(Uri sourceUri, long chooserLaunchNanos) {
+            this.sourceUri = sourceUri;
+            this.chooserLaunchNanos = chooserLaunchNanos;
+        }
+
+        /**
+         * Call when background work starts.
+         */
+        void backgroundStarted() {
+            queueWaitNanos = System.nanoTime() - createdAtNanos;
+        }
+
+        /**
+         * Call when background work is done, right before handing the result to the main thread.
+         */
+        void backgroundFinished() {
+            backgroundFinishedAtNanos = System.nanoTime();
+        }
+
+        /**
+         * Start timing a stage that reads <code>imageSource</code>.
+         */
+        void startStage(ImageSource imageSource) {
+            stageStartOpenNanos = imageSource == null ? 0 : imageSource.getOpenNanos();
+            stageStartedAtNanos = System.nanoTime();
+        }
+
+        /**
+         * @return how long the stage started by {@link #startStage(ImageSource)} took, not counting time spent
+         * opening <code>imageSource</code>.
+         */
+        long endStage(ImageSource imageSource) {
+            long elapsedNanos = System.nanoTime() - stageStartedAtNanos;
+            if (imageSource != null) {
+                elapsedNanos -= imageSource.getOpenNanos() - stageStartOpenNanos;
+            }
+            return elapsedNanos;
+        }
+
+        /**
+         * Count time spent opening a source that isn't read through an {@link ImageSource}.
+         */
+        void addOpenNanos(long nanos) {
+            openNanos += nanos;
+        }
+
+        void addBoundsNanos(long nanos) {
+            boundsNanos += nanos;
+        }
+
+        void addPreviewNanos(long nanos) {
+            previewNanos += nanos;
+        }
+
+        void addDecodeNanos(long nanos) {
+            decodeNanos += nanos;
+        }
+
+        /**
+         * Count time spent after decoding, like fingerprinting, caching and encoding.
+         */
+        void addPostProcessNanos(long nanos) {
+            postProcessNanos += nanos;
+        }
+
+        /**
+         * Call after <code>imageSource</code> is closed.
+         */
+        void recordSource(ImageSource imageSource) {
+            openNanos += imageSource.getOpenNanos();
+            bytesRead += imageSource.getBytesRead();
+        }
+
+        /**
+         * Call after {@link ImageStager} copied the source to a local file.
+         */
+        void recordStaging(long nanos, long byteCount) {
+            stageNanos += nanos;
+            stagedByteCount += byteCount;
+        }
+
+        void recordHeader(ImageHeader imageHeader) {
+            sourceWidth = imageHeader.width;
+            sourceHeight = imageHeader.height;
+        }
+
+        /**
+         * @param decodeInfo how <code>bitmap</code> was decoded. May be <code>null</code>.
+         */
+        void recordOutput(Bitmap bitmap, DecodeInfo decodeInfo) {
+            outputWidth = bitmap.getWidth();
+            outputHeight = bitmap.getHeight();
+            config = bitmap.getConfig();
+            bitmapByteCount = BitmapPool.getAllocationByteCount(bitmap);
+            if (decodeInfo != null) {
+                sourceWidth = decodeInfo.getSourceWidth();
+                sourceHeight = decodeInfo.getSourceHeight();
+                sampleSize = decodeInfo.getSampleSize();
+                fromCache = decodeInfo.isFromCache();
+            }
+        }
+
+        /**
+         * Call on the main thread after the capture's callback returns.
+         */
+        CaptureMetrics build(boolean succeeded) {
+            return new CaptureMetrics(this, succeeded, System.nanoTime() - backgroundFinishedAtNanos);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps track of background capture work for the whole process, keyed by a capture id that
+ * {@link ImageCapturer} saves in its {@link android.os.Parcel}.
+ * <p/>
+ * Work reports its results here instead of calling callbacks directly. While a callback is attached they are
+ * delivered right away. While none is, like between an {@link android.app.Activity} being destroyed for a
+ * configuration change and the new one restoring its {@link ImageCapturer}, they are held until one is attached
+ * again. So work is never redone, and finished work doesn't keep an old {@link android.app.Activity} alive.
+ * <p/>
+ * A capture that stays detached for the orphan timeout is cancelled, because nothing restored the
+ * {@link ImageCapturer} that would reattach it, and the results it holds would never be freed otherwise.
+ * <p/>
+ * Only use this on the main thread.
+ */
+final class CaptureRegistry {
+    /**
+     * Far longer than recreating an {@link android.app.Activity} for a configuration change takes.
+     */
+    static final long DEFAULT_ORPHAN_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private static CaptureRegistry instance;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable cancelOrphans = new Runnable() {
+        @Override
+        public void run() {
+            cancelOrphans();
+        }
+    };
+    private long orphanTimeoutMillis = DEFAULT_ORPHAN_TIMEOUT_MILLIS;
+
+    static CaptureRegistry getInstance() {
+        if (instance == null) {
+            instance = new CaptureRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * @param orphanTimeoutMillis how long a capture may stay detached before it is cancelled. Applies to captures
+     *                            that are detached already, too.
+     */
+    void setOrphanTimeoutMillis(long orphanTimeoutMillis) {
+        if (orphanTimeoutMillis < 1) {
+            throw new IllegalArgumentException("orphanTimeoutMillis must be greater than zero: " + orphanTimeoutMillis);
+        }
+        this.orphanTimeoutMillis = orphanTimeoutMillis;
+        scheduleOrphanCheck();
+    }
+
+    interface Work {
+        /**
+         * Start the work, once it is registered.
+         */
+        void start(Executor executor);
+
+        /**
+         * Stop the work. Results it still reports are discarded.
+         */
+        void cancel();
+
+        /**
+         * @return what cancels the work's decodes and tracks its progress, or <code>null</code> if it has none
+         */
+        DecodeControl getDecodeControl();
+    }
+
+    interface Delivery {
+        /**
+         * @param callback        the attached callback, an instance of the type given to {@link #register}
+         * @param metricsListener the attached listener. May be <code>null</code>.
+         */
+        void deliver(Object callback, ImageCapturer.CaptureMetricsListener metricsListener);
+
+        /**
+         * Free what this holds, because it will never be delivered.
+         */
+        void discard();
+    }
+
+    interface RemovalListener {
+        /**
+         * @param cancelled <code>true</code> if the capture was cancelled, <code>false</code> if it delivered its last result
+         */
+        void onRemoved(boolean cancelled);
+    }
+
+    /**
+     * @param callbackType the type of callback {@link Delivery}s of <code>work</code> are delivered to
+     * @param callback     an instance of <code>callbackType</code> to attach right away
+     */
+    void register(
+            String captureId,
+            Work work,
+            Class<?> callbackType,
+            Object callback,
+            ImageCapturer.CaptureMetricsListener metricsListener) {
+        if (!callbackType.isInstance(callback)) {
+            throw new IllegalArgumentException("callback must be a " + callbackType.getName() + ": " + callback);
+        }
+        if (entries.containsKey(captureId)) {
+            throw new IllegalStateException("Capture already registered: " + captureId);
+        }
+        Entry entry = new Entry(work, callbackType);
+        entry.callback = callback;
+        entry.metricsListener = metricsListener;
+        entries.put(captureId, entry);
+    }
+
+    /**
+     * Call <code>removalListener</code> when the capture is over. If it already is, it's called right away.
+     */
+    void addRemovalListener(String captureId, RemovalListener removalListener) {
+        Entry entry = entries.get(captureId);
+        if (entry == null) {
+            removalListener.onRemoved(false);
+        } else {
+            entry.removalListeners.add(removalListener);
+        }
+    }
+
+    /**
+     * @return the {@link DecodeControl} of the capture's work, or <code>null</code>
+     */
+    DecodeControl getDecodeControl(String captureId) {
+        Entry entry = entries.get(captureId);
+        return entry == null ? null : entry.work.getDecodeControl();
+    }
+
+    /**
+     * @return <code>true</code> if the capture is still running or has results that weren't delivered yet
+     */
+    boolean contains(String captureId) {
+        return entries.containsKey(captureId);
+    }
+
+    /**
+     * Attach a callback to a capture and deliver everything it reported while nothing was attached.
+     *
+     * @return <code>false</code> if there is no such capture or it delivers to a different type of callback
+     */
+    boolean attach(String captureId, Object callback, ImageCapturer.CaptureMetricsListener metricsListener) {
+        Entry entry = entries.get(captureId);
+        if (entry == null || !entry.callbackType.isInstance(callback)) {
+            return false;
+        }
+        entry.callback = callback;
+        entry.metricsListener = metricsListener;
+        entry.detachedAtMillis = 0;
+        flush(captureId, entry);
+        return true;
+    }
+
+    /**
+     * Stop delivering to the attached callback. The work keeps going and its results are held until a callback is
+     * attached again, or for the orphan timeout.
+     */
+    void detach(String captureId) {
+        Entry entry = entries.get(captureId);
+        if (entry != null && entry.callback != null) {
+            entry.callback = null;
+            entry.metricsListener = null;
+            entry.detachedAtMillis = SystemClock.uptimeMillis();
+            scheduleOrphanCheck();
+        }
+    }
+
+    private void cancelOrphans() {
+        long now = SystemClock.uptimeMillis();
+        List<String> orphanIds = new ArrayList<String>();
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (entry.detachedAtMillis != 0 && now - entry.detachedAtMillis >= orphanTimeoutMillis) {
+                orphanIds.add(mapEntry.getKey());
+            }
+        }
+        for (String orphanId : orphanIds) {
+            cancel(orphanId);
+        }
+        scheduleOrphanCheck();
+    }
+
+    /**
+     * Check again when the capture that was detached first times out, if there is one.
+     */
+    private void scheduleOrphanCheck() {
+        mainHandler.removeCallbacks(cancelOrphans);
+        long firstDetachedAtMillis = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.detachedAtMillis != 0 && (firstDetachedAtMillis == 0 || entry.detachedAtMillis < firstDetachedAtMillis)) {
+                firstDetachedAtMillis = entry.detachedAtMillis;
+            }
+        }
+        if (firstDetachedAtMillis != 0) {
+            mainHandler.postAtTime(cancelOrphans, firstDetachedAtMillis + orphanTimeoutMillis);
+        }
+    }
+
+    /**
+     * Called by work on the main thread when it has a result.
+     *
+     * @param last <code>true</code> if the work won't deliver anything else
+     */
+    void deliver(String captureId, Delivery delivery, boolean last) {
+        Entry entry = entries.get(captureId);
+        if (entry == null) {
+            delivery.discard();
+            return;
+        }
+        entry.pendingDeliveries.addLast(delivery);
+        if (last) {
+            entry.finished = true;
+        }
+        flush(captureId, entry);
+    }
+
+    void cancel(String captureId) {
+        Entry entry = entries.remove(captureId);
+        if (entry != null) {
+            entry.work.cancel();
+            for (Delivery delivery : entry.pendingDeliveries) {
+                delivery.discard();
+            }
+            entry.pendingDeliveries.clear();
+            notifyRemoved(entry, true);
+        }
+    }
+
+    private void flush(String captureId, Entry entry) {
+        // callbacks may cancel or detach the capture
+        while (entries.get(captureId) == entry && entry.callback != null && !entry.pendingDeliveries.isEmpty()) {
+            entry.pendingDeliveries.removeFirst().deliver(entry.callback, entry.metricsListener);
+        }
+        if (entry.finished && entry.pendingDeliveries.isEmpty() && entries.get(captureId) == entry) {
+            entries.remove(captureId);
+            notifyRemoved(entry, false);
+        }
+    }
+
+    private static void notifyRemoved(Entry entry, boolean cancelled) {
+        for (RemovalListener removalListener : entry.removalListeners) {
+            removalListener.onRemoved(cancelled);
+        }
+        entry.removalListeners.clear();
+    }
+
+    private static class Entry {
+        public final Work work;
+        public final Class<?> callbackType;
+        public final LinkedList<Delivery> pendingDeliveries = new LinkedList<Delivery>();
+        public final List<RemovalListener> removalListeners = new ArrayList<RemovalListener>();
+        public Object callback;
+        public ImageCapturer.CaptureMetricsListener metricsListener;
+        public boolean finished;
+        // when the callback was detached, or zero while one is attached
+        public long detachedAtMillis;
+
+        public Entry(Work work, Class<?> callbackType) {
+            this.work = work;
+            this.callbackType = callbackType;
+        }
+    }
+}
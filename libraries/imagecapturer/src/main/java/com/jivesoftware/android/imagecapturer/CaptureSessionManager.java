@@ -0,0 +1,248 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.SparseArray;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tracks many image captures at once, one {@link ImageCapturer} per request code, in one {@link android.os.Parcelable}.
+ * Use this when a screen has several image fields that can be filled in parallel.
+ * <p/>
+ * Background PROCESSING of every session goes through one shared, bounded queue that takes turns between
+ * sessions, and concurrent captures of the same image to the same {@link DecodeSpec} are decoded once.
+ * <p/>
+ * Like {@link ImageCapturer}, save it in {@link android.app.Activity#onSaveInstanceState(android.os.Bundle)} and restore it in
+ * {@link android.app.Activity#onCreate(android.os.Bundle)}, and only use it from the main thread. After restoring,
+ * reattach each field's callback with <code>getSession(requestCode).reattach(callback)</code>.
+ */
+public class CaptureSessionManager implements Parcelable {
+    public static final Creator<CaptureSessionManager> CREATOR =
+            new Creator<CaptureSessionManager>() {
+                public CaptureSessionManager createFromParcel(Parcel in) {
+                    CaptureSessionManager captureSessionManager = new CaptureSessionManager();
+                    captureSessionManager.imageSourceChooserTitle = in.readString();
+                    int sessionCount = in.readInt();
+                    for (int i = 0; i < sessionCount; i++) {
+                        int requestCode = in.readInt();
+                        captureSessionManager.sessions.put(requestCode, ImageCapturer.CREATOR.createFromParcel(in));
+                    }
+                    return captureSessionManager;
+                }
+
+                public CaptureSessionManager[] newArray(int size) {
+                    return new CaptureSessionManager[size];
+                }
+            };
+
+    private final SparseArray<ImageCapturer> sessions = new SparseArray<ImageCapturer>();
+    private String imageSourceChooserTitle;
+
+    /**
+     * @param imageSourceChooserTitle used by sessions created after this call
+     */
+    public void setImageSourceChooserTitle(String imageSourceChooserTitle) {
+        this.imageSourceChooserTitle = imageSourceChooserTitle;
+    }
+
+    /**
+     * @return the session for <code>requestCode</code>, created if there isn't one yet. Configure it before
+     * calling {@link #awaitImageCapture(android.app.Activity, int)}, but don't give it an executor: the
+     * {@link CaptureSessionManager} replaces it with the shared queue.
+     */
+    public ImageCapturer getSession(int requestCode) {
+        if (requestCode < 1) {
+            throw new IllegalArgumentException("requestCode must be greater than zero: " + requestCode);
+        }
+        ImageCapturer session = sessions.get(requestCode);
+        if (session == null) {
+            session = new ImageCapturer();
+            session.setImageSourceChooserTitle(imageSourceChooserTitle);
+            sessions.put(requestCode, session);
+        }
+        return session;
+    }
+
+    /**
+     * Start capturing an image for <code>requestCode</code>. Captures for other request codes may be outstanding.
+     *
+     * @see ImageCapturer#awaitImageCapture(android.app.Activity, int)
+     */
+    public void awaitImageCapture(Activity activity, int requestCode) throws IOException {
+        getSession(requestCode).awaitImageCapture(activity, requestCode);
+    }
+
+    /**
+     * @return {@link ImageCapturer.Result#IGNORED} if <code>requestCode</code> doesn't belong to a session.
+     * @see ImageCapturer#onActivityResult(android.app.Activity, int, int, android.content.Intent, ImageCapturer.ImageCapturedCallback, ImageCapturer.BackgroundBitmapProvider)
+     */
+    public ImageCapturer.Result onActivityResult(Activity activity, int requestCode, int resultCode, Intent data, ImageCapturer.ImageCapturedCallback imageCapturedCallback, ImageCapturer.BackgroundBitmapProvider backgroundBitmapProvider) {
+        ImageCapturer session = getSessionForResult(activity, requestCode);
+        if (session == null) {
+            return ImageCapturer.Result.IGNORED;
+        }
+        return session.onActivityResult(activity, requestCode, resultCode, data, imageCapturedCallback, backgroundBitmapProvider);
+    }
+
+    /**
+     * @return {@link ImageCapturer.Result#IGNORED} if <code>requestCode</code> doesn't belong to a session.
+     * @see ImageCapturer#onActivityResultDecoded(android.app.Activity, int, int, android.content.Intent, ImageCapturer.ImageCapturedCallback, DecodeSpec)
+     */
+    public ImageCapturer.Result onActivityResultDecoded(Activity activity, int requestCode, int resultCode, Intent data, ImageCapturer.ImageCapturedCallback imageCapturedCallback, DecodeSpec decodeSpec) {
+        ImageCapturer session = getSessionForResult(activity, requestCode);
+        if (session == null) {
+            return ImageCapturer.Result.IGNORED;
+        }
+        return session.onActivityResultDecoded(activity, requestCode, resultCode, data, imageCapturedCallback, decodeSpec);
+    }
+
+    /**
+     * @return {@link ImageCapturer.Result#IGNORED} if <code>requestCode</code> doesn't belong to a session.
+     * @see ImageCapturer#onActivityResultTransformed(android.app.Activity, int, int, android.content.Intent, ImageCapturer.ImageCapturedCallback, ImageTransformChain)
+     */
+    public ImageCapturer.Result onActivityResultTransformed(Activity activity, int requestCode, int resultCode, Intent data, ImageCapturer.ImageCapturedCallback imageCapturedCallback, ImageTransformChain transformChain) {
+        ImageCapturer session = getSessionForResult(activity, requestCode);
+        if (session == null) {
+            return ImageCapturer.Result.IGNORED;
+        }
+        return session.onActivityResultTransformed(activity, requestCode, resultCode, data, imageCapturedCallback, transformChain);
+    }
+
+    /**
+     * @return {@link ImageCapturer.Result#IGNORED} if <code>requestCode</code> doesn't belong to a session.
+     * @see ImageCapturer#onActivityResultBatch(android.app.Activity, int, int, android.content.Intent, ImageCapturer.BatchImageCapturedCallback, DecodeSpec)
+     */
+    public ImageCapturer.Result onActivityResultBatch(Activity activity, int requestCode, int resultCode, Intent data, ImageCapturer.BatchImageCapturedCallback batchImageCapturedCallback, DecodeSpec decodeSpec) {
+        ImageCapturer session = getSessionForResult(activity, requestCode);
+        if (session == null) {
+            return ImageCapturer.Result.IGNORED;
+        }
+        return session.onActivityResultBatch(activity, requestCode, resultCode, data, batchImageCapturedCallback, decodeSpec);
+    }
+
+    /**
+     * @return {@link ImageCapturer.Result#IGNORED} if <code>requestCode</code> doesn't belong to a session.
+     * @see ImageCapturer#onActivityResultEncoded(android.app.Activity, int, int, android.content.Intent, ImageCapturer.ImageEncodedCallback, EncodeSpec)
+     */
+    public ImageCapturer.Result onActivityResultEncoded(Activity activity, int requestCode, int resultCode, Intent data, ImageCapturer.ImageEncodedCallback imageEncodedCallback, EncodeSpec encodeSpec) {
+        ImageCapturer session = getSessionForResult(activity, requestCode);
+        if (session == null) {
+            return ImageCapturer.Result.IGNORED;
+        }
+        return session.onActivityResultEncoded(activity, requestCode, resultCode, data, imageEncodedCallback, encodeSpec);
+    }
+
+    /**
+     * @return {@link ImageCapturer.Result#IGNORED} if <code>requestCode</code> doesn't belong to a session.
+     * @see ImageCapturer#onActivityResultTiled(android.app.Activity, int, int, android.content.Intent, ImageCapturer.TiledImageCapturedCallback, int)
+     */
+    public ImageCapturer.Result onActivityResultTiled(Activity activity, int requestCode, int resultCode, Intent data, ImageCapturer.TiledImageCapturedCallback tiledImageCapturedCallback, int maxTileCacheBytes) {
+        ImageCapturer session = getSessionForResult(activity, requestCode);
+        if (session == null) {
+            return ImageCapturer.Result.IGNORED;
+        }
+        return session.onActivityResultTiled(activity, requestCode, resultCode, data, tiledImageCapturedCallback, maxTileCacheBytes);
+    }
+
+    /**
+     * @return {@link ImageCapturer.Result#IGNORED} if <code>requestCode</code> doesn't belong to a session.
+     * @see ImageCapturer#onActivityResultPixelBuffer(android.app.Activity, int, int, android.content.Intent, ImageCapturer.PixelBufferCallback, PixelBufferSpec)
+     */
+    public ImageCapturer.Result onActivityResultPixelBuffer(Activity activity, int requestCode, int resultCode, Intent data, ImageCapturer.PixelBufferCallback pixelBufferCallback, PixelBufferSpec pixelBufferSpec) {
+        ImageCapturer session = getSessionForResult(activity, requestCode);
+        if (session == null) {
+            return ImageCapturer.Result.IGNORED;
+        }
+        return session.onActivityResultPixelBuffer(activity, requestCode, resultCode, data, pixelBufferCallback, pixelBufferSpec);
+    }
+
+    /**
+     * @return {@link ImageCapturer.Result#IGNORED} if <code>requestCode</code> doesn't belong to a session.
+     * @see ImageCapturer#onActivityResultPixelBuffer(android.app.Activity, int, int, android.content.Intent, ImageCapturer.PixelBufferCallback, PixelBufferSpec, java.nio.ByteBuffer)
+     */
+    public ImageCapturer.Result onActivityResultPixelBuffer(Activity activity, int requestCode, int resultCode, Intent data, ImageCapturer.PixelBufferCallback pixelBufferCallback, PixelBufferSpec pixelBufferSpec, ByteBuffer targetBuffer) {
+        ImageCapturer session = getSessionForResult(activity, requestCode);
+        if (session == null) {
+            return ImageCapturer.Result.IGNORED;
+        }
+        return session.onActivityResultPixelBuffer(activity, requestCode, resultCode, data, pixelBufferCallback, pixelBufferSpec, targetBuffer);
+    }
+
+    private ImageCapturer getSessionForResult(Context context, int requestCode) {
+        ImageCapturer session = sessions.get(requestCode);
+        if (session != null) {
+            session.setExecutor(FairDecodeScheduler.getInstance(context).forSession(session, session.getPriority()));
+        }
+        return session;
+    }
+
+    /**
+     * @return <code>true</code> if the session for <code>requestCode</code> is waiting for an image to be chosen
+     */
+    public boolean isCapturing(int requestCode) {
+        ImageCapturer session = sessions.get(requestCode);
+        return session != null && session.isCapturing();
+    }
+
+    /**
+     * @return <code>true</code> if the session for <code>requestCode</code> has background PROCESSING that hasn't
+     * been delivered yet
+     */
+    public boolean isProcessing(int requestCode) {
+        ImageCapturer session = sessions.get(requestCode);
+        return session != null && session.isProcessing();
+    }
+
+    /**
+     * @see ImageCapturer#detach()
+     */
+    public void detach() {
+        for (int i = 0; i < sessions.size(); i++) {
+            sessions.valueAt(i).detach();
+        }
+    }
+
+    /**
+     * @see ImageCapturer#cancelBackgroundProcessing()
+     */
+    public void cancelBackgroundProcessing() {
+        for (int i = 0; i < sessions.size(); i++) {
+            sessions.valueAt(i).cancelBackgroundProcessing();
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(imageSourceChooserTitle);
+        dest.writeInt(sessions.size());
+        for (int i = 0; i < sessions.size(); i++) {
+            dest.writeInt(sessions.keyAt(i));
+            sessions.valueAt(i).writeToParcel(dest, flags);
+        }
+    }
+}
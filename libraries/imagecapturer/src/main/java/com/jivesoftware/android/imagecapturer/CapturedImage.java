@@ -0,0 +1,340 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A small {@link android.os.Parcelable} handle to a captured image, delivered to
+ * {@link ImageCapturer.CapturedImageCallback}. Save it in <code>onSaveInstanceState</code> instead of the
+ * {@link android.graphics.Bitmap}, which can be too large for the saved state, and {@link #load} the pixels again
+ * after the {@link android.app.Activity} is recreated.
+ * <p/>
+ * Pixels are reloaded from the {@link DecodedImageCache}, then from a compact copy the capture wrote to the
+ * {@link TemporaryImageStore} in the background after delivery, and only then by decoding the source image again.
+ */
+public class CapturedImage implements Parcelable {
+    private static final int LOCAL_COPY_QUALITY = 85;
+
+    public static final Creator<CapturedImage> CREATOR =
+            new Creator<CapturedImage>() {
+                public CapturedImage createFromParcel(Parcel in) {
+                    Uri sourceUri = in.readParcelable(Uri.class.getClassLoader());
+                    DecodeSpec decodeSpec = in.readParcelable(DecodeSpec.class.getClassLoader());
+                    int width = in.readInt();
+                    int height = in.readInt();
+                    String cacheKey = in.readString();
+                    long sourceByteCount = in.readLong();
+                    String localPath = in.readString();
+                    return new CapturedImage(sourceUri, decodeSpec, width, height, cacheKey, sourceByteCount, localPath == null ? null : new File(localPath));
+                }
+
+                public CapturedImage[] newArray(int size) {
+                    return new CapturedImage[size];
+                }
+            };
+
+    private final Uri sourceUri;
+    private final DecodeSpec decodeSpec;
+    private final int width;
+    private final int height;
+    private final String cacheKey;
+    private final long sourceByteCount;
+    private final File localFile;
+
+    /**
+     * @param cacheKey  the {@link DecodedImageCache} key of the decoded image or <code>null</code> if it isn't cached
+     * @param localFile a compact copy of the decoded image or <code>null</code>
+     */
+    CapturedImage(Uri sourceUri, DecodeSpec decodeSpec, int width, int height, String cacheKey, long sourceByteCount, File localFile) {
+        this.sourceUri = sourceUri;
+        this.decodeSpec = decodeSpec;
+        this.width = width;
+        this.height = height;
+        this.cacheKey = cacheKey;
+        this.sourceByteCount = sourceByteCount;
+        this.localFile = localFile;
+    }
+
+    /**
+     * Describe a captured image. Cheap: the compact copy, if any, is only reserved here and written later by
+     * <code>localCopy</code>.
+     *
+     * @param cacheKey  where <code>bitmap</code> is cached or <code>null</code>
+     * @param localCopy the reserved compact copy or <code>null</code> to reload from the cache or the source
+     */
+    static CapturedImage create(Uri sourceUri, DecodeSpec decodeSpec, DecodedImageCache.Key cacheKey, Bitmap bitmap, LocalCopy localCopy) {
+        return new CapturedImage(
+                sourceUri,
+                decodeSpec,
+                bitmap.getWidth(),
+                bitmap.getHeight(),
+                cacheKey == null ? null : cacheKey.value,
+                cacheKey == null ? 0 : cacheKey.sourceBytes,
+                localCopy == null ? null : localCopy.file);
+    }
+
+    /**
+     * @return where the image was captured from
+     */
+    public Uri getSourceUri() {
+        return sourceUri;
+    }
+
+    /**
+     * @return the size the image was decoded to or <code>null</code> for full resolution
+     */
+    public DecodeSpec getDecodeSpec() {
+        return decodeSpec;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Cheap enough for the main thread, so a restored {@link android.app.Activity} can show the image right away.
+     * Nothing is copied: the {@link android.graphics.Bitmap} is the {@link DecodedImageCache}'s own, shared with
+     * every other caller. Only draw it. Don't modify or recycle it, and don't give it to
+     * {@link ImageCapturer#releaseBitmap(android.content.Context, android.graphics.Bitmap)}. {@link #load} the
+     * pixels for a {@link android.graphics.Bitmap} of your own.
+     *
+     * @return the pixels if they are still in the {@link DecodedImageCache}'s memory, otherwise <code>null</code>.
+     */
+    public Bitmap getCachedBitmap(Context context) {
+        if (cacheKey == null) {
+            return null;
+        }
+        DecodedImageCache.Entry entry = DecodedImageCache.getInstance(context).peekMemory(getCacheKey());
+        return entry == null ? null : entry.bitmap;
+    }
+
+    /**
+     * Reload the pixels in the background and hand them to <code>loadCallback</code> on the main thread.
+     * <code>loadCallback</code> is referenced until then.
+     */
+    public void load(Context context, final LoadCallback loadCallback) {
+        if (loadCallback == null) {
+            throw new IllegalArgumentException("loadCallback must not be null");
+        }
+        final Context applicationContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        DecodeExecutor.getInstance(applicationContext).execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                IOException ioException = null;
+                try {
+                    bitmap = loadBitmap(applicationContext);
+                } catch (IOException e) {
+                    ioException = e;
+                } catch (OutOfMemoryError e) {
+                    ioException = new IOException("Out of memory reloading " + sourceUri, e);
+                }
+                final Bitmap loadedBitmap = bitmap;
+                final IOException loadException = ioException;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (loadedBitmap != null) {
+                            loadCallback.onCapturedImageLoaded(CapturedImage.this, loadedBitmap);
+                        } else {
+                            loadCallback.onCapturedImageLoadFailed(CapturedImage.this, loadException);
+                        }
+                    }
+                });
+            }
+        }, DecodeExecutor.Priority.FOREGROUND);
+    }
+
+    /**
+     * Call off the main thread.
+     */
+    Bitmap loadBitmap(Context context) throws IOException {
+        if (cacheKey == null) {
+            return decode(context).bitmap;
+        }
+
+        DecodedImageCache decodedImageCache = DecodedImageCache.getInstance(context);
+        DecodedImageCache.Key key = getCacheKey();
+        try {
+            decodedImageCache.lock(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for another decode of the same image");
+        }
+        try {
+            DecodedImageCache.Entry cachedEntry = decodedImageCache.get(key);
+            if (cachedEntry != null) {
+                return cachedEntry.bitmap;
+            }
+            BitmapDecoder.DecodedBitmap decodedBitmap = decode(context);
+            decodedImageCache.put(key, decodedBitmap.bitmap, decodedBitmap.decodeInfo, new MemoryGovernor(ImageCapturer.DEFAULT_MEMORY_HEADROOM_BYTES), DecodeExecutor.getInstance(context));
+            return decodedBitmap.bitmap;
+        } finally {
+            decodedImageCache.unlock(key);
+        }
+    }
+
+    private BitmapDecoder.DecodedBitmap decode(Context context) throws IOException {
+        ContentResolver contentResolver = context.getContentResolver();
+        if (localFile != null && localFile.exists()) {
+            try {
+                // already at the decoded size and upright
+                return decode(contentResolver, Uri.fromFile(localFile), null, context);
+            } catch (IOException e) {
+                // fall back to the source
+            }
+        }
+        return decode(contentResolver, sourceUri, decodeSpec, context);
+    }
+
+    private static BitmapDecoder.DecodedBitmap decode(ContentResolver contentResolver, Uri uri, DecodeSpec decodeSpec, Context context) throws IOException {
+        DecodeControl decodeControl = new DecodeControl();
+        ImageSource imageSource = decodeControl.open(contentResolver, uri);
+        BitmapDecoder.DecodedBitmap decodedBitmap;
+        try {
+            ImageHeader imageHeader = imageSource.readHeader();
+            decodedBitmap = BitmapDecoder.decode(imageSource, imageHeader, decodeSpec, BitmapPool.getInstance(context), new MemoryGovernor(ImageCapturer.DEFAULT_MEMORY_HEADROOM_BYTES), decodeControl);
+        } finally {
+            decodeControl.close(imageSource);
+        }
+        if (decodedBitmap == null) {
+            throw new IOException("Decoding image file FAILED for unknown reason: " + uri);
+        }
+        return decodedBitmap;
+    }
+
+    private DecodedImageCache.Key getCacheKey() {
+        return new DecodedImageCache.Key(cacheKey, sourceByteCount);
+    }
+
+    @Override
+    public String toString() {
+        return "CapturedImage{" + sourceUri + ", " + width + "x" + height + (localFile == null ? "" : ", local") + "}";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeParcelable(sourceUri, flags);
+        dest.writeParcelable(decodeSpec, flags);
+        dest.writeInt(width);
+        dest.writeInt(height);
+        dest.writeString(cacheKey);
+        dest.writeLong(sourceByteCount);
+        dest.writeString(localFile == null ? null : localFile.getPath());
+    }
+
+    /**
+     * A compact copy of a captured image in the {@link TemporaryImageStore}, reserved before delivery and written
+     * after it, so the encode never delays the callback. {@link #run} it at
+     * {@link DecodeExecutor.Priority#BACKGROUND} or {@link #discard} it. Until it is written, the handle reloads
+     * from the cache or the source instead.
+     */
+    static final class LocalCopy implements Runnable {
+        private final Bitmap bitmap;
+        private final TemporaryImageStore temporaryImageStore;
+        final File file;
+
+        private LocalCopy(Bitmap bitmap, TemporaryImageStore temporaryImageStore, File file) {
+            this.bitmap = bitmap;
+            this.temporaryImageStore = temporaryImageStore;
+            this.file = file;
+        }
+
+        /**
+         * @param bitmap an immutable {@link Bitmap} that is never recycled, like the {@link DecodedImageCache}'s
+         *               own copy. The delivered one belongs to the callback.
+         */
+        static LocalCopy reserve(Bitmap bitmap, TemporaryImageStore temporaryImageStore) throws IOException {
+            // JPEG drops the alpha channel
+            File file = temporaryImageStore.createFile(bitmap.hasAlpha() ? ".png" : ".jpg");
+            return new LocalCopy(bitmap, temporaryImageStore, file);
+        }
+
+        /**
+         * Encode into a partial file first and rename it, so a handle never reads a truncated copy. The copy is
+         * then left to the store's sweeper.
+         */
+        @Override
+        public void run() {
+            boolean png = file.getName().endsWith(".png");
+            boolean written = false;
+            File partialFile = null;
+            try {
+                partialFile = temporaryImageStore.createFile(".part");
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(partialFile));
+                try {
+                    written = bitmap.compress(png ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, LOCAL_COPY_QUALITY, out);
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+                written = written && partialFile.renameTo(file);
+            } catch (IOException e) {
+                // reload from the cache or the source
+            } finally {
+                if (partialFile != null) {
+                    temporaryImageStore.release(partialFile, true);
+                }
+                temporaryImageStore.release(file, !written);
+            }
+        }
+
+        void discard() {
+            temporaryImageStore.release(file, true);
+        }
+    }
+
+    public interface LoadCallback {
+        /**
+         * Called on main thread with the reloaded pixels. Give them back with
+         * {@link ImageCapturer#releaseBitmap(android.content.Context, android.graphics.Bitmap)} when you are done.
+         */
+        void onCapturedImageLoaded(CapturedImage capturedImage, Bitmap bitmap);
+
+        /**
+         * Called on main thread if the pixels couldn't be reloaded, for example because the source image is gone
+         * and the local copy was swept.
+         */
+        void onCapturedImageLoadFailed(CapturedImage capturedImage, IOException e);
+    }
+}
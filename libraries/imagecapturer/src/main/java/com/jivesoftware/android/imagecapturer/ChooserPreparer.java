@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ResolveInfo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Does the slow parts of showing the image source chooser ahead of time, so
+ * {@link ImageCapturer#awaitImageCapture(android.app.Activity, int)} doesn't query the
+ * {@link android.content.pm.PackageManager} or touch external storage on the main thread.
+ * <p/>
+ * The gallery activities are resolved once and kept until a package is added, removed or changed.
+ * Anything that isn't prepared yet when it's needed is done on the calling thread instead.
+ */
+final class ChooserPreparer {
+    private static ChooserPreparer instance;
+
+    private final Context context;
+    private final Executor executor;
+    private List<ComponentName> galleryComponents;
+    // incremented whenever galleryComponents is invalidated, so a resolve that started earlier doesn't cache a stale result
+    private int galleryComponentsGeneration;
+
+    static synchronized ChooserPreparer getInstance(Context context) {
+        if (instance == null) {
+            Context applicationContext = context.getApplicationContext();
+            instance = new ChooserPreparer(
+                    applicationContext,
+                    DecodeExecutor.getInstance(applicationContext).withPriority(DecodeExecutor.Priority.BACKGROUND));
+            instance.registerPackageReceiver();
+        }
+        return instance;
+    }
+
+    private ChooserPreparer(Context context, Executor executor) {
+        this.context = context;
+        this.executor = executor;
+    }
+
+    private void registerPackageReceiver() {
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateGalleryComponents();
+                prepareAsync();
+            }
+        }, packageFilter);
+    }
+
+    /**
+     * Resolve the gallery activities, create the {@link TemporaryImageStore} directory and sweep it on a
+     * background thread.
+     */
+    void prepareAsync() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                getGalleryComponents();
+                TemporaryImageStore temporaryImageStore = TemporaryImageStore.getInstance(context);
+                try {
+                    temporaryImageStore.getDirectory();
+                } catch (IOException e) {
+                    // awaitImageCapture tries again and reports it
+                    return;
+                }
+                temporaryImageStore.sweep();
+            }
+        });
+    }
+
+    /**
+     * @return the activities that can pick an image
+     */
+    List<ComponentName> getGalleryComponents() {
+        int generation;
+        synchronized (this) {
+            if (galleryComponents != null) {
+                return galleryComponents;
+            }
+            generation = galleryComponentsGeneration;
+        }
+
+        List<ResolveInfo> resolveInfos = context.getPackageManager().queryIntentActivities(createGalleryIntent(), 0);
+        List<ComponentName> resolvedComponents = new ArrayList<ComponentName>(resolveInfos.size());
+        for (ResolveInfo resolveInfo : resolveInfos) {
+            resolvedComponents.add(new ComponentName(resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name));
+        }
+        resolvedComponents = Collections.unmodifiableList(resolvedComponents);
+
+        synchronized (this) {
+            if (generation == galleryComponentsGeneration) {
+                galleryComponents = resolvedComponents;
+            }
+        }
+        return resolvedComponents;
+    }
+
+    synchronized void invalidateGalleryComponents() {
+        galleryComponents = null;
+        galleryComponentsGeneration++;
+    }
+
+    static Intent createGalleryIntent() {
+        Intent galleryIntent = new Intent(Intent.ACTION_GET_CONTENT);
+        galleryIntent.setType("image/*");
+        return galleryIntent;
+    }
+}
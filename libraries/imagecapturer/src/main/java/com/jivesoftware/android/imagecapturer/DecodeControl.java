@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ContentResolver;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets another thread stop the decodes of a capture while they run, and see how far they got.
+ * <p/>
+ * Workers register each {@link ImageSource} they read and each {@link android.graphics.BitmapFactory.Options}
+ * they decode with. {@link #cancel()} asks the native decoder to stop with
+ * {@link android.graphics.BitmapFactory.Options#requestCancelDecode()} and closes the sources under it, so a
+ * long decode gives its thread back right away instead of running to the end.
+ */
+final class DecodeControl {
+    private final List<ImageSource> imageSources = new ArrayList<ImageSource>();
+    private final List<BitmapFactory.Options> decodeOptions = new ArrayList<BitmapFactory.Options>();
+    private long finishedBytesRead;
+    private volatile boolean cancelled;
+
+    /**
+     * @return a registered {@link ImageSource}. Close it with {@link #close(ImageSource)}.
+     * @throws IOException if the capture was cancelled
+     */
+    ImageSource open(ContentResolver contentResolver, Uri uri) throws IOException {
+        ImageSource imageSource = new ImageSource(contentResolver, uri);
+        if (!register(imageSource)) {
+            throw new IOException("Cancelled: " + uri);
+        }
+        return imageSource;
+    }
+
+    void close(ImageSource imageSource) {
+        imageSource.close();
+        unregister(imageSource);
+    }
+
+    /**
+     * @return <code>false</code> if the capture was cancelled and <code>imageSource</code> shouldn't be read
+     */
+    synchronized boolean register(ImageSource imageSource) {
+        if (cancelled) {
+            return false;
+        }
+        imageSources.add(imageSource);
+        return true;
+    }
+
+    /**
+     * Call after <code>imageSource</code> is closed.
+     */
+    synchronized void unregister(ImageSource imageSource) {
+        if (imageSources.remove(imageSource)) {
+            finishedBytesRead += imageSource.getBytesRead();
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the capture was cancelled and shouldn't be decoded
+     */
+    synchronized boolean register(BitmapFactory.Options options) {
+        if (cancelled) {
+            return false;
+        }
+        decodeOptions.add(options);
+        return true;
+    }
+
+    synchronized void unregister(BitmapFactory.Options options) {
+        decodeOptions.remove(options);
+    }
+
+    /**
+     * Stop every decode of the capture, from any thread. Decodes that are running return <code>null</code>
+     * or fail with an {@link java.io.IOException} soon after.
+     */
+    void cancel() {
+        List<BitmapFactory.Options> cancelledOptions;
+        List<ImageSource> cancelledSources;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            cancelledOptions = new ArrayList<BitmapFactory.Options>(decodeOptions);
+            cancelledSources = new ArrayList<ImageSource>(imageSources);
+        }
+        for (BitmapFactory.Options options : cancelledOptions) {
+            options.requestCancelDecode();
+        }
+        for (ImageSource imageSource : cancelledSources) {
+            imageSource.cancel();
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the bytes read from every source of the capture so far
+     */
+    synchronized long getBytesRead() {
+        long bytesRead = finishedBytesRead;
+        for (ImageSource imageSource : imageSources) {
+            bytesRead += imageSource.getBytesRead();
+        }
+        return bytesRead;
+    }
+}
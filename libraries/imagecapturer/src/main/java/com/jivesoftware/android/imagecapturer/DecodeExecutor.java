@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of background threads dedicated to decoding images, so decodes don't wait behind unrelated
+ * work on {@link android.os.AsyncTask}'s shared executor.
+ * <p/>
+ * Queued work runs highest {@link Priority} first, and in submission order within a {@link Priority}. While it
+ * runs, its thread has the CPU priority of its {@link Priority}, so a decode the user is waiting for isn't starved
+ * by background work.
+ */
+public class DecodeExecutor implements Executor {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final ThreadLocal<Priority> runningPriority = new ThreadLocal<Priority>();
+    private static DecodeExecutor instance;
+
+    private final ThreadPoolExecutor threadPoolExecutor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @return the executor {@link ImageCapturer} uses unless it is given another one. It has one thread per core,
+     * limited so that devices with a small memory class don't hold many full size decodes at once.
+     */
+    public static synchronized DecodeExecutor getInstance(Context context) {
+        if (instance == null) {
+            ActivityManager activityManager = (ActivityManager) context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+            int cores = Runtime.getRuntime().availableProcessors();
+            // allow one concurrent decode per 32MB of heap
+            int memoryLimitedThreads = activityManager.getMemoryClass() / 32;
+            instance = new DecodeExecutor(Math.max(1, Math.min(cores, memoryLimitedThreads)));
+        }
+        return instance;
+    }
+
+    public DecodeExecutor(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be greater than zero: " + threadCount);
+        }
+        threadPoolExecutor = new ThreadPoolExecutor(
+                threadCount,
+                threadCount,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new DecodeThreadFactory());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs <code>command</code> at {@link Priority#NORMAL}.
+     */
+    @Override
+    public void execute(Runnable command) {
+        execute(command, Priority.NORMAL);
+    }
+
+    public void execute(Runnable command, Priority priority) {
+        if (command == null) {
+            throw new NullPointerException("command must not be null");
+        }
+        if (priority == null) {
+            throw new IllegalArgumentException("priority must not be null");
+        }
+        threadPoolExecutor.execute(new PrioritizedRunnable(command, priority, sequence.getAndIncrement()));
+    }
+
+    /**
+     * @return an {@link java.util.concurrent.Executor} that submits everything to this one at <code>priority</code>.
+     */
+    public Executor withPriority(final Priority priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                DecodeExecutor.this.execute(command, priority);
+            }
+        };
+    }
+
+    public int getThreadCount() {
+        return threadPoolExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Give the current thread the CPU priority of the work it is running again, if it is one of ours.
+     * {@link android.os.AsyncTask} drops every task to background priority before it starts.
+     */
+    static void restoreThreadPriority() {
+        Priority priority = runningPriority.get();
+        if (priority != null) {
+            Process.setThreadPriority(priority.threadPriority);
+        }
+    }
+
+    public enum Priority {
+        /**
+         * Work nobody is waiting for, like batches and prefetching.
+         */
+        BACKGROUND(Process.THREAD_PRIORITY_BACKGROUND),
+        NORMAL(Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE),
+        /**
+         * The image the user just captured.
+         */
+        FOREGROUND(Process.THREAD_PRIORITY_DEFAULT);
+
+        private final int threadPriority;
+
+        Priority(int threadPriority) {
+            this.threadPriority = threadPriority;
+        }
+    }
+
+    private static class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+        private final Runnable runnable;
+        private final Priority priority;
+        private final long sequence;
+
+        private PrioritizedRunnable(Runnable runnable, Priority priority, long sequence) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            runningPriority.set(priority);
+            Process.setThreadPriority(priority.threadPriority);
+            try {
+                runnable.run();
+            } finally {
+                // idle threads wait in the background
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runningPriority.remove();
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedRunnable another) {
+            int priorityComparison = another.priority.compareTo(priority);
+            if (priorityComparison != 0) {
+                return priorityComparison;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    private static class DecodeThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ImageCapturer decode #" + threadNumber.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.Bitmap;
+
+/**
+ * Describes how {@link ImageCapturer} decoded a captured image.
+ */
+public class DecodeInfo {
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int requestedSampleSize;
+    private final int sampleSize;
+    private final Bitmap.Config requestedConfig;
+    private final Bitmap.Config config;
+    private final int appliedOrientation;
+    private final boolean fromCache;
+    private final boolean hasPerceptualHash;
+    private final long perceptualHash;
+    private final String duplicateOf;
+
+    DecodeInfo(
+            int sourceWidth,
+            int sourceHeight,
+            int requestedSampleSize,
+            int sampleSize,
+            Bitmap.Config requestedConfig,
+            Bitmap.Config config,
+            int appliedOrientation) {
+        this(sourceWidth, sourceHeight, requestedSampleSize, sampleSize, requestedConfig, config, appliedOrientation, false, false, 0, null);
+    }
+
+    private DecodeInfo(
+            int sourceWidth,
+            int sourceHeight,
+            int requestedSampleSize,
+            int sampleSize,
+            Bitmap.Config requestedConfig,
+            Bitmap.Config config,
+            int appliedOrientation,
+            boolean fromCache,
+            boolean hasPerceptualHash,
+            long perceptualHash,
+            String duplicateOf) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.requestedSampleSize = requestedSampleSize;
+        this.sampleSize = sampleSize;
+        this.requestedConfig = requestedConfig;
+        this.config = config;
+        this.appliedOrientation = appliedOrientation;
+        this.fromCache = fromCache;
+        this.hasPerceptualHash = hasPerceptualHash;
+        this.perceptualHash = perceptualHash;
+        this.duplicateOf = duplicateOf;
+    }
+
+    /**
+     * @return a copy of this {@link DecodeInfo} for an image served by {@link DecodedImageCache}
+     */
+    DecodeInfo asFromCache() {
+        // whether it is a duplicate depends on what was captured before, so don't keep that
+        return new DecodeInfo(sourceWidth, sourceHeight, requestedSampleSize, sampleSize, requestedConfig, config, appliedOrientation, true, hasPerceptualHash, perceptualHash, null);
+    }
+
+    /**
+     * @param duplicateOf the id in the {@link DuplicateIndex} of an earlier capture this one duplicates, or
+     *                    <code>null</code>
+     */
+    DecodeInfo withPerceptualHash(long perceptualHash, String duplicateOf) {
+        return new DecodeInfo(sourceWidth, sourceHeight, requestedSampleSize, sampleSize, requestedConfig, config, appliedOrientation, fromCache, true, perceptualHash, duplicateOf);
+    }
+
+    /**
+     * @return the width of the original image as stored, before its orientation was applied
+     */
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    /**
+     * @return the height of the original image as stored, before its orientation was applied
+     */
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    /**
+     * @return the <code>inSampleSize</code> the {@link DecodeSpec} called for
+     */
+    public int getRequestedSampleSize() {
+        return requestedSampleSize;
+    }
+
+    /**
+     * @return the <code>inSampleSize</code> the image was decoded with
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * @return the {@link android.graphics.Bitmap.Config} the {@link DecodeSpec} called for
+     */
+    public Bitmap.Config getRequestedConfig() {
+        return requestedConfig;
+    }
+
+    /**
+     * @return the {@link android.graphics.Bitmap.Config} the image was decoded with
+     */
+    public Bitmap.Config getConfig() {
+        return config;
+    }
+
+    /**
+     * @return <code>true</code> if the image was decoded smaller or with fewer bits per pixel than requested
+     * because it wouldn't have fit in memory.
+     */
+    public boolean isDowngraded() {
+        return sampleSize != requestedSampleSize || config != requestedConfig;
+    }
+
+    /**
+     * @return the EXIF orientation that was applied to the decoded {@link android.graphics.Bitmap}, one of the
+     * {@link android.media.ExifInterface} <code>ORIENTATION_</code> constants. The {@link android.graphics.Bitmap}
+     * is upright, so don't rotate it again. {@link android.media.ExifInterface#ORIENTATION_NORMAL} if the image had
+     * no orientation.
+     */
+    public int getAppliedOrientation() {
+        return appliedOrientation;
+    }
+
+    /**
+     * @return <code>true</code> if the image came from {@link DecodedImageCache} instead of being decoded
+     */
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    /**
+     * @return <code>true</code> if duplicate detection was on, see {@link ImageCapturer#setDetectDuplicates(boolean)}
+     */
+    public boolean hasPerceptualHash() {
+        return hasPerceptualHash;
+    }
+
+    /**
+     * @return the {@link PerceptualHash} of the decoded image. Only meaningful if {@link #hasPerceptualHash()}.
+     */
+    public long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    /**
+     * @return the id, usually the source {@link android.net.Uri}, of an earlier capture that looks the same as this
+     * one, or <code>null</code> if there isn't one or duplicate detection is off
+     */
+    public String getDuplicateOf() {
+        return duplicateOf;
+    }
+
+    @Override
+    public String toString() {
+        return "DecodeInfo{source=" + sourceWidth + "x" + sourceHeight +
+                ", sampleSize=" + sampleSize + " (requested " + requestedSampleSize + ")" +
+                ", config=" + config + " (requested " + requestedConfig + ")" +
+                (appliedOrientation == ExifReader.ORIENTATION_NORMAL ? "" : ", orientation=" + appliedOrientation) +
+                (fromCache ? ", from cache" : "") +
+                (hasPerceptualHash ? ", hash=" + PerceptualHash.toHexString(perceptualHash) : "") +
+                (duplicateOf == null ? "" : ", duplicate of " + duplicateOf) + "}";
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.Bitmap;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Describes the {@link android.graphics.Bitmap} {@link ImageCapturer} should produce for a captured image.
+ * <p/>
+ * Images are never scaled up. They are scaled down so that they fit inside (or fill) a box of
+ * <code>maxWidth</code> x <code>maxHeight</code> pixels.
+ */
+public class DecodeSpec implements Parcelable {
+    public static final Creator<DecodeSpec> CREATOR =
+            new Creator<DecodeSpec>() {
+                public DecodeSpec createFromParcel(Parcel in) {
+                    int maxWidth = in.readInt();
+                    int maxHeight = in.readInt();
+                    ScaleMode scaleMode = ScaleMode.valueOf(in.readString());
+                    Bitmap.Config preferredConfig = Bitmap.Config.valueOf(in.readString());
+                    return new DecodeSpec(maxWidth, maxHeight, scaleMode, preferredConfig);
+                }
+
+                public DecodeSpec[] newArray(int size) {
+                    return new DecodeSpec[size];
+                }
+            };
+
+    private final int maxWidth;
+    private final int maxHeight;
+    private final ScaleMode scaleMode;
+    private final Bitmap.Config preferredConfig;
+
+    /**
+     * Fit the image inside <code>maxWidth</code> x <code>maxHeight</code> as an
+     * {@link android.graphics.Bitmap.Config#ARGB_8888} {@link android.graphics.Bitmap}.
+     */
+    public DecodeSpec(int maxWidth, int maxHeight) {
+        this(maxWidth, maxHeight, ScaleMode.FIT, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @param maxWidth        the maximum width of the decoded {@link android.graphics.Bitmap}. Must be greater than zero.
+     * @param maxHeight       the maximum height of the decoded {@link android.graphics.Bitmap}. Must be greater than zero.
+     * @param scaleMode       how the image is scaled relative to <code>maxWidth</code> x <code>maxHeight</code>
+     * @param preferredConfig the {@link android.graphics.Bitmap.Config} to decode to, if the decoder supports it
+     */
+    public DecodeSpec(int maxWidth, int maxHeight, ScaleMode scaleMode, Bitmap.Config preferredConfig) {
+        if (maxWidth < 1) {
+            throw new IllegalArgumentException("maxWidth must be greater than zero: " + maxWidth);
+        }
+        if (maxHeight < 1) {
+            throw new IllegalArgumentException("maxHeight must be greater than zero: " + maxHeight);
+        }
+        if (scaleMode == null) {
+            throw new IllegalArgumentException("scaleMode must not be null");
+        }
+        if (preferredConfig == null) {
+            throw new IllegalArgumentException("preferredConfig must not be null");
+        }
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.scaleMode = scaleMode;
+        this.preferredConfig = preferredConfig;
+    }
+
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public ScaleMode getScaleMode() {
+        return scaleMode;
+    }
+
+    public Bitmap.Config getPreferredConfig() {
+        return preferredConfig;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        DecodeSpec that = (DecodeSpec) o;
+        return maxWidth == that.maxWidth &&
+                maxHeight == that.maxHeight &&
+                scaleMode == that.scaleMode &&
+                preferredConfig == that.preferredConfig;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = maxWidth;
+        result = 31 * result + maxHeight;
+        result = 31 * result + scaleMode.hashCode();
+        result = 31 * result + preferredConfig.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DecodeSpec{" + maxWidth + "x" + maxHeight + ", " + scaleMode + ", " + preferredConfig + "}";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(maxWidth);
+        dest.writeInt(maxHeight);
+        dest.writeString(scaleMode.name());
+        dest.writeString(preferredConfig.name());
+    }
+
+    public enum ScaleMode {
+        /**
+         * The whole image fits inside <code>maxWidth</code> x <code>maxHeight</code>.
+         */
+        FIT,
+        /**
+         * The image covers <code>maxWidth</code> x <code>maxHeight</code>. One dimension may be larger.
+         */
+        FILL
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * A two tier cache of decoded images, so picking the same image again doesn't read or decode the original.
+ * <p/>
+ * The first tier keeps {@link android.graphics.Bitmap}s in memory, bounded by their byte count. The second
+ * keeps compressed copies of the downsampled images in the app's cache directory. Entries are keyed by the
+ * image's {@link android.net.Uri}, its size and last modified time, and the {@link DecodeSpec}. Only decodes
+ * to a {@link DecodeSpec} are cached.
+ * <p/>
+ * The cache keeps its own immutable copy of every image and hands out a new copy on every hit, so callers own
+ * the {@link android.graphics.Bitmap}s they get and may modify, recycle or pool them. Only
+ * {@link CapturedImage#getCachedBitmap(android.content.Context)} shares the cache's own copy, read-only.
+ */
+public class DecodedImageCache {
+    private static final String DISK_CACHE_DIRECTORY_NAME = "imagecapturer-decoded";
+    private static final long DEFAULT_MAX_DISK_BYTES = 20 * 1024 * 1024;
+    // the last byte is the version of the entry format
+    private static final int DISK_ENTRY_MAGIC = 0x49434432;
+    private static final int DISK_ENTRY_QUALITY = 90;
+    // documents providers, including most cloud galleries, report milliseconds
+    private static final String[] DOCUMENT_IDENTITY_PROJECTION = {OpenableColumns.SIZE, DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+    // the MediaStore reports seconds, which is as good for telling versions apart
+    private static final String[] MEDIA_IDENTITY_PROJECTION = {OpenableColumns.SIZE, MediaStore.MediaColumns.DATE_MODIFIED};
+    private static DecodedImageCache instance;
+
+    private final LruCache<String, Entry> memoryCache;
+    private final File diskCacheDirectory;
+    private final long maxDiskBytes;
+    private final KeyedLock keyedLock = new KeyedLock();
+    // entries are read and written under their own key, so disk I/O for one image doesn't hold up another
+    private final KeyedLock diskLock = new KeyedLock();
+    private final Object trimLock = new Object();
+    private final CacheStats stats = new CacheStats();
+
+    /**
+     * @return the cache shared by every {@link ImageCapturer} in this process. It keeps up to an eighth of the
+     * app's heap in memory.
+     */
+    public static synchronized DecodedImageCache getInstance(Context context) {
+        if (instance == null) {
+            int maxMemoryBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+            File diskCacheDirectory = new File(context.getApplicationContext().getCacheDir(), DISK_CACHE_DIRECTORY_NAME);
+            instance = new DecodedImageCache(maxMemoryBytes, diskCacheDirectory, DEFAULT_MAX_DISK_BYTES);
+        }
+        return instance;
+    }
+
+    public DecodedImageCache(int maxMemoryBytes, File diskCacheDirectory, long maxDiskBytes) {
+        this.memoryCache = new LruCache<String, Entry>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return (int) BitmapPool.getAllocationByteCount(entry.bitmap);
+            }
+        };
+        this.diskCacheDirectory = diskCacheDirectory;
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Keys the image by its size and last modified time, from the file itself or from the provider's metadata, so
+     * looking it up never opens the image. Opening a cloud provider's image can start a download. Call off the main
+     * thread.
+     *
+     * @return a key for <code>imageUri</code> decoded to <code>decodeSpec</code>, or <code>null</code> if the
+     * image's size and last modified time aren't known, so a cached copy could be stale.
+     */
+    static Key createKey(ContentResolver contentResolver, Uri imageUri, DecodeSpec decodeSpec) {
+        long[] identity;
+        if (ContentResolver.SCHEME_FILE.equals(imageUri.getScheme())) {
+            File file = new File(imageUri.getPath());
+            identity = new long[]{file.length(), file.lastModified()};
+        } else {
+            identity = queryIdentity(contentResolver, imageUri, DOCUMENT_IDENTITY_PROJECTION);
+            if (identity == null) {
+                identity = queryIdentity(contentResolver, imageUri, MEDIA_IDENTITY_PROJECTION);
+            }
+        }
+        if (identity == null || identity[0] <= 0 || identity[1] <= 0) {
+            return null;
+        }
+        long size = identity[0];
+        long lastModified = identity[1];
+        return new Key(imageUri + "|" + size + "|" + lastModified + "|" + decodeSpec.getMaxWidth() + "x" + decodeSpec.getMaxHeight() +
+                "|" + decodeSpec.getScaleMode() + "|" + decodeSpec.getPreferredConfig(), size);
+    }
+
+    /**
+     * @param projection the size column, then the last modified column
+     * @return the size and last modified time, or <code>null</code> if the provider doesn't know both
+     */
+    private static long[] queryIdentity(ContentResolver contentResolver, Uri imageUri, String[] projection) {
+        Cursor cursor;
+        try {
+            cursor = contentResolver.query(imageUri, projection, null, null, null);
+        } catch (RuntimeException e) {
+            // some providers don't support queries at all, or not of these columns
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            long size = getLong(cursor, projection[0]);
+            long lastModified = getLong(cursor, projection[1]);
+            return size <= 0 || lastModified <= 0 ? null : new long[]{size, lastModified};
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long getLong(Cursor cursor, String columnName) {
+        int columnIndex = cursor.getColumnIndex(columnName);
+        if (columnIndex < 0 || cursor.isNull(columnIndex)) {
+            return -1;
+        }
+        return cursor.getLong(columnIndex);
+    }
+
+    /**
+     * Look in memory, then on disk. Call off the main thread.
+     *
+     * @return a copy of the cached image that the caller owns, or <code>null</code>
+     */
+    Entry get(Key key) {
+        Entry entry = memoryCache.get(key.value);
+        if (entry != null) {
+            Entry copy = copyOf(entry);
+            if (copy != null) {
+                stats.recordHit(true, key.sourceBytes);
+                return copy;
+            }
+        }
+
+        entry = readDiskEntry(key);
+        if (entry != null) {
+            Entry copy = copyOf(entry);
+            if (copy != null) {
+                memoryCache.put(key.value, entry);
+                stats.recordHit(false, key.sourceBytes);
+                return copy;
+            }
+        }
+
+        stats.recordMiss();
+        return null;
+    }
+
+    /**
+     * Look in memory only, without copying, so it is cheap enough for the main thread. Doesn't count towards the
+     * hit rate.
+     *
+     * @return the cache's own entry, or <code>null</code>. Its {@link android.graphics.Bitmap} is shared, so it
+     * mustn't be modified, recycled or pooled.
+     */
+    Entry peekMemory(Key key) {
+        return memoryCache.get(key.value);
+    }
+
+    /**
+     * @return <code>true</code> if the image for <code>key</code> is in memory. Doesn't copy it.
+     */
+    boolean isInMemory(Key key) {
+        return memoryCache.get(key.value) != null;
+    }
+
+    /**
+     * Cache a copy of a decoded image in memory right away, and on disk using <code>executor</code>. The caller
+     * keeps <code>bitmap</code>. The copy is only made if it fits in what <code>memoryGovernor</code> leaves
+     * free; otherwise the image isn't cached, rather than crowding out the rest of the app.
+     */
+    void put(final Key key, Bitmap bitmap, DecodeInfo decodeInfo, MemoryGovernor memoryGovernor, DecodeExecutor executor) {
+        if (BitmapPool.getAllocationByteCount(bitmap) > memoryGovernor.getAvailableBytes()) {
+            return;
+        }
+        Bitmap cachedBitmap;
+        try {
+            cachedBitmap = bitmap.copy(getConfig(bitmap), false);
+        } catch (OutOfMemoryError e) {
+            // not worth failing the decode over
+            return;
+        }
+        if (cachedBitmap == null) {
+            return;
+        }
+        final Entry entry = new Entry(cachedBitmap, decodeInfo.asFromCache());
+        memoryCache.put(key.value, entry);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeDiskEntry(key, entry);
+            }
+        }, DecodeExecutor.Priority.BACKGROUND);
+    }
+
+    /**
+     * Cache a decoded image in memory only, for images that may never be asked for. The cache takes
+     * <code>bitmap</code> over, so the caller mustn't use it afterwards.
+     */
+    void putInMemory(Key key, Bitmap bitmap, DecodeInfo decodeInfo) {
+        memoryCache.put(key.value, new Entry(bitmap, decodeInfo.asFromCache()));
+    }
+
+    /**
+     * Drop the image for <code>key</code> from memory if it is still <code>bitmap</code>. A hit may be copying
+     * it right now, so it isn't recycled.
+     */
+    void removeFromMemory(Key key, Bitmap bitmap) {
+        Entry entry = memoryCache.get(key.value);
+        if (entry != null && entry.bitmap == bitmap) {
+            memoryCache.remove(key.value);
+        }
+    }
+
+    /**
+     * Wait until no other thread is decoding the image for <code>key</code>, then claim it, so that concurrent
+     * captures of the same image decode it once. Look in the cache after this returns, the other thread has
+     * probably just put it there. Call {@link #unlock(Key)} when done.
+     */
+    void lock(Key key) throws InterruptedException {
+        keyedLock.lock(key.value);
+    }
+
+    void unlock(Key key) {
+        keyedLock.unlock(key.value);
+    }
+
+    public void evictMemory() {
+        memoryCache.evictAll();
+    }
+
+    public int getMemoryHitCount() {
+        return stats.getMemoryHitCount();
+    }
+
+    public int getDiskHitCount() {
+        return stats.getDiskHitCount();
+    }
+
+    public int getMissCount() {
+        return stats.getMissCount();
+    }
+
+    /**
+     * @return the fraction of lookups, from 0 to 1, served from memory or disk
+     */
+    public float getHitRate() {
+        return stats.getHitRate();
+    }
+
+    /**
+     * @return how many bytes of original images didn't have to be read because of cache hits
+     */
+    public long getBytesSaved() {
+        return stats.getBytesSaved();
+    }
+
+    @Override
+    public String toString() {
+        return "DecodedImageCache{" + stats + "}";
+    }
+
+    /**
+     * @return a mutable copy of <code>entry</code>, or <code>null</code> if there isn't enough memory for one
+     */
+    private static Entry copyOf(Entry entry) {
+        Bitmap bitmap;
+        try {
+            bitmap = entry.bitmap.copy(getConfig(entry.bitmap), true);
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+        return bitmap == null ? null : new Entry(bitmap, entry.decodeInfo);
+    }
+
+    private static Bitmap.Config getConfig(Bitmap bitmap) {
+        return bitmap.getConfig() == null ? Bitmap.Config.ARGB_8888 : bitmap.getConfig();
+    }
+
+    private Entry readDiskEntry(Key key) {
+        try {
+            diskLock.lock(key.value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            return readDiskEntryLocked(key);
+        } finally {
+            diskLock.unlock(key.value);
+        }
+    }
+
+    private Entry readDiskEntryLocked(Key key) {
+        File file = getDiskFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != DISK_ENTRY_MAGIC || !key.value.equals(in.readUTF())) {
+                    return null;
+                }
+                DecodeInfo decodeInfo = new DecodeInfo(
+                        in.readInt(),
+                        in.readInt(),
+                        in.readInt(),
+                        in.readInt(),
+                        Bitmap.Config.valueOf(in.readUTF()),
+                        Bitmap.Config.valueOf(in.readUTF()),
+                        in.readInt()).asFromCache();
+                BitmapFactory.Options opts = new BitmapFactory.Options();
+                opts.inPreferredConfig = decodeInfo.getConfig();
+                Bitmap bitmap = BitmapFactory.decodeStream(in, null, opts);
+                if (bitmap == null) {
+                    return null;
+                }
+                // least recently used entries are trimmed first
+                file.setLastModified(System.currentTimeMillis());
+                return new Entry(bitmap, decodeInfo);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            // unknown Bitmap.Config name
+            return null;
+        }
+    }
+
+    /**
+     * The cache's own copy of the image is never handed out or recycled, so compressing it can't race with a caller.
+     */
+    private void writeDiskEntry(Key key, Entry entry) {
+        try {
+            diskLock.lock(key.value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            writeDiskEntryLocked(key, entry);
+        } finally {
+            diskLock.unlock(key.value);
+        }
+        trimDisk();
+    }
+
+    private void writeDiskEntryLocked(Key key, Entry entry) {
+        if (!diskCacheDirectory.exists() && !diskCacheDirectory.mkdirs()) {
+            return;
+        }
+        File file = getDiskFile(key);
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+            try {
+                DecodeInfo decodeInfo = entry.decodeInfo;
+                out.writeInt(DISK_ENTRY_MAGIC);
+                out.writeUTF(key.value);
+                out.writeInt(decodeInfo.getSourceWidth());
+                out.writeInt(decodeInfo.getSourceHeight());
+                out.writeInt(decodeInfo.getRequestedSampleSize());
+                out.writeInt(decodeInfo.getSampleSize());
+                out.writeUTF(decodeInfo.getRequestedConfig().name());
+                out.writeUTF(decodeInfo.getConfig().name());
+                out.writeInt(decodeInfo.getAppliedOrientation());
+                Bitmap.CompressFormat format = entry.bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+                entry.bitmap.compress(format, DISK_ENTRY_QUALITY, out);
+            } finally {
+                out.close();
+            }
+            if (!temporaryFile.renameTo(file)) {
+                temporaryFile.delete();
+            }
+        } catch (IOException e) {
+            temporaryFile.delete();
+        } catch (RuntimeException e) {
+            // the disk tier is only an optimization, a failed write mustn't take down the executor thread
+            temporaryFile.delete();
+        }
+    }
+
+    private void trimDisk() {
+        synchronized (trimLock) {
+            trimDiskLocked();
+        }
+    }
+
+    private void trimDiskLocked() {
+        File[] files = diskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (totalBytes <= maxDiskBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsLastModified = lhs.lastModified();
+                long rhsLastModified = rhs.lastModified();
+                return lhsLastModified < rhsLastModified ? -1 : (lhsLastModified == rhsLastModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (totalBytes <= maxDiskBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                totalBytes -= length;
+            }
+        }
+    }
+
+    private File getDiskFile(Key key) {
+        return new File(diskCacheDirectory, sha1Hex(key.value) + ".img");
+    }
+
+    private static String sha1Hex(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static class Key {
+        public final String value;
+        public final long sourceBytes;
+
+        public Key(String value, long sourceBytes) {
+            this.value = value;
+            this.sourceBytes = sourceBytes;
+        }
+    }
+
+    static class Entry {
+        public final Bitmap bitmap;
+        public final DecodeInfo decodeInfo;
+
+        public Entry(Bitmap bitmap, DecodeInfo decodeInfo) {
+            this.bitmap = bitmap;
+            this.decodeInfo = decodeInfo;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import java.io.IOException;
+
+/**
+ * Passed to <code>onImageCaptureFailed</code> when an image isn't encoded because it duplicates an earlier capture,
+ * see {@link ImageCapturer#setDetectDuplicates(boolean)}.
+ */
+public class DuplicateImageException extends IOException {
+    private final String duplicateOf;
+    private final long perceptualHash;
+
+    DuplicateImageException(String duplicateOf, long perceptualHash) {
+        super("Duplicate of " + duplicateOf);
+        this.duplicateOf = duplicateOf;
+        this.perceptualHash = perceptualHash;
+    }
+
+    /**
+     * @return the id in the {@link DuplicateIndex}, usually the source {@link android.net.Uri}, of the earlier capture
+     */
+    public String getDuplicateOf() {
+        return duplicateOf;
+    }
+
+    public long getPerceptualHash() {
+        return perceptualHash;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.Bitmap;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Describes the file {@link ImageCapturer} should encode a captured image to, for example to upload it.
+ */
+public class EncodeSpec implements Parcelable {
+    public static final Creator<EncodeSpec> CREATOR =
+            new Creator<EncodeSpec>() {
+                public EncodeSpec createFromParcel(Parcel in) {
+                    int maxDimension = in.readInt();
+                    Bitmap.CompressFormat format = Bitmap.CompressFormat.valueOf(in.readString());
+                    int quality = in.readInt();
+                    return new EncodeSpec(maxDimension, format, quality);
+                }
+
+                public EncodeSpec[] newArray(int size) {
+                    return new EncodeSpec[size];
+                }
+            };
+
+    private final int maxDimension;
+    private final Bitmap.CompressFormat format;
+    private final int quality;
+
+    /**
+     * @param maxDimension the longest edge of the encoded image, in pixels. Images are never scaled up.
+     * @param format       usually {@link android.graphics.Bitmap.CompressFormat#JPEG} or
+     *                     {@link android.graphics.Bitmap.CompressFormat#WEBP}
+     * @param quality      from 0 to 100, see {@link android.graphics.Bitmap#compress}
+     */
+    public EncodeSpec(int maxDimension, Bitmap.CompressFormat format, int quality) {
+        if (maxDimension < 1) {
+            throw new IllegalArgumentException("maxDimension must be greater than zero: " + maxDimension);
+        }
+        if (format == null) {
+            throw new IllegalArgumentException("format must not be null");
+        }
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("quality must be from 0 to 100: " + quality);
+        }
+        this.maxDimension = maxDimension;
+        this.format = format;
+        this.quality = quality;
+    }
+
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    public Bitmap.CompressFormat getFormat() {
+        return format;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * @return the extension, including the dot, of files in {@link #getFormat()}
+     */
+    public String getFileExtension() {
+        switch (format) {
+            case JPEG:
+                return ".jpg";
+            case PNG:
+                return ".png";
+            default:
+                return ".webp";
+        }
+    }
+
+    DecodeSpec toDecodeSpec() {
+        return new DecodeSpec(maxDimension, maxDimension, DecodeSpec.ScaleMode.FIT, Bitmap.Config.ARGB_8888);
+    }
+
+    @Override
+    public String toString() {
+        return "EncodeSpec{" + maxDimension + ", " + format + ", quality=" + quality + "}";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(maxDimension);
+        dest.writeString(format.name());
+        dest.writeInt(quality);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.Context;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Shares a {@link DecodeExecutor} fairly between capture sessions. Each session gets its own queue, and work is
+ * taken from the queues in turn, so a session with a big batch doesn't hold up another session's single image.
+ * <p/>
+ * At most as much work as the {@link DecodeExecutor} has threads is handed to it at a time. The rest waits here,
+ * where it can still be scheduled fairly.
+ */
+final class FairDecodeScheduler {
+    private static FairDecodeScheduler instance;
+
+    private final DecodeExecutor decodeExecutor;
+    private final int maxRunningCount;
+    // in the order sessions get their next turn
+    private final LinkedHashMap<Object, LinkedList<Runnable>> sessionQueues = new LinkedHashMap<Object, LinkedList<Runnable>>();
+    private final Map<Object, DecodeExecutor.Priority> sessionPriorities = new HashMap<Object, DecodeExecutor.Priority>();
+    private int runningCount;
+
+    static synchronized FairDecodeScheduler getInstance(Context context) {
+        if (instance == null) {
+            DecodeExecutor decodeExecutor = DecodeExecutor.getInstance(context);
+            instance = new FairDecodeScheduler(decodeExecutor, decodeExecutor.getThreadCount());
+        }
+        return instance;
+    }
+
+    FairDecodeScheduler(DecodeExecutor decodeExecutor, int maxRunningCount) {
+        if (maxRunningCount < 1) {
+            throw new IllegalArgumentException("maxRunningCount must be greater than zero: " + maxRunningCount);
+        }
+        this.decodeExecutor = decodeExecutor;
+        this.maxRunningCount = maxRunningCount;
+    }
+
+    /**
+     * @param session  identifies the session. Work for equal sessions shares a queue.
+     * @param priority what the work is run at once it is its session's turn
+     * @return an {@link java.util.concurrent.Executor} that queues work for <code>session</code>
+     */
+    Executor forSession(final Object session, final DecodeExecutor.Priority priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (command == null) {
+                    throw new NullPointerException("command must not be null");
+                }
+                enqueue(session, priority, command);
+            }
+        };
+    }
+
+    synchronized int getQueuedCount() {
+        int queuedCount = 0;
+        for (LinkedList<Runnable> queue : sessionQueues.values()) {
+            queuedCount += queue.size();
+        }
+        return queuedCount;
+    }
+
+    private synchronized void enqueue(Object session, DecodeExecutor.Priority priority, Runnable command) {
+        LinkedList<Runnable> queue = sessionQueues.get(session);
+        if (queue == null) {
+            queue = new LinkedList<Runnable>();
+            sessionQueues.put(session, queue);
+        }
+        queue.addLast(command);
+        sessionPriorities.put(session, priority);
+        dispatch();
+    }
+
+    private synchronized void finished() {
+        runningCount--;
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (runningCount < maxRunningCount && !sessionQueues.isEmpty()) {
+            Iterator<Map.Entry<Object, LinkedList<Runnable>>> iterator = sessionQueues.entrySet().iterator();
+            Map.Entry<Object, LinkedList<Runnable>> next = iterator.next();
+            Object session = next.getKey();
+            LinkedList<Runnable> queue = next.getValue();
+            final Runnable command = queue.removeFirst();
+            DecodeExecutor.Priority priority = sessionPriorities.get(session);
+            // move the session to the back of the line
+            iterator.remove();
+            if (queue.isEmpty()) {
+                sessionPriorities.remove(session);
+            } else {
+                sessionQueues.put(session, queue);
+            }
+
+            runningCount++;
+            decodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        finished();
+                    }
+                }
+            }, priority);
+        }
+    }
+}
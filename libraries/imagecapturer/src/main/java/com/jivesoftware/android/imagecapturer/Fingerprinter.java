@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.Bitmap;
+
+/**
+ * Computes the {@link PerceptualHash} of a decoded {@link android.graphics.Bitmap} and checks it against a
+ * {@link DuplicateIndex}. The hash is sampled from the pixels already in memory, so the source isn't read again.
+ */
+final class Fingerprinter {
+    /**
+     * Samples per cell in each direction. 4 x 4 per cell keeps the hash stable without reading the whole image.
+     */
+    private static final int SAMPLES_PER_CELL = 4;
+    private static final int GRID_WIDTH = PerceptualHash.CELL_COLUMNS * SAMPLES_PER_CELL;
+    private static final int GRID_HEIGHT = PerceptualHash.CELL_ROWS * SAMPLES_PER_CELL;
+
+    private Fingerprinter() {
+    }
+
+    static long computeHash(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] row = new int[width];
+        int[] grid = new int[GRID_WIDTH * GRID_HEIGHT];
+        for (int y = 0; y < GRID_HEIGHT; y++) {
+            // the center of each sample's share of the image
+            int sourceY = (int) ((y + 0.5) * height / GRID_HEIGHT);
+            bitmap.getPixels(row, 0, width, 0, sourceY, width, 1);
+            for (int x = 0; x < GRID_WIDTH; x++) {
+                grid[y * GRID_WIDTH + x] = row[(int) ((x + 0.5) * width / GRID_WIDTH)];
+            }
+        }
+        return PerceptualHash.dHash(grid, GRID_WIDTH, GRID_HEIGHT);
+    }
+
+    /**
+     * @param decodeInfo how <code>bitmap</code> was decoded. Its hash is reused if it has one.
+     * @param id         what to index the image as, usually its source {@link android.net.Uri}
+     * @return <code>decodeInfo</code> with the hash and the duplicate it found, if any
+     */
+    static DecodeInfo fingerprint(Bitmap bitmap, DecodeInfo decodeInfo, String id, DuplicateIndex duplicateIndex) {
+        long hash = decodeInfo.hasPerceptualHash() ? decodeInfo.getPerceptualHash() : computeHash(bitmap);
+        return decodeInfo.withPerceptualHash(hash, duplicateIndex.findOrAdd(id, hash));
+    }
+}
@@ -16,17 +16,16 @@
 package com.jivesoftware.android.imagecapturer;
 
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.AsyncTask;
-import android.os.Environment;
+import android.os.Build;
 import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -34,11 +33,20 @@ import android.provider.MediaStore;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 public class ImageCapturer implements Parcelable {
+    public static final long DEFAULT_MEMORY_HEADROOM_BYTES = 4 * 1024 * 1024;
+    public static final int PREVIEW_MAX_DIMENSION = 256;
+    private static final String ENCODED_IMAGE_DIRECTORY_NAME = "imagecapturer-encoded";
+    private static DuplicateIndex duplicateIndex;
+
     public static final Creator<ImageCapturer> CREATOR =
             new Creator<ImageCapturer>() {
                 public ImageCapturer createFromParcel(Parcel in) {
@@ -51,6 +59,16 @@ public class ImageCapturer implements Parcelable {
                         imageCapturer.imageTemporaryFile = new File(imageTemporaryFileAbsolutePath);
                     }
                     imageCapturer.requestCode = in.readInt();
+                    imageCapturer.priority = DecodeExecutor.Priority.valueOf(in.readString());
+                    imageCapturer.allowMultiple = in.readInt() != 0;
+                    imageCapturer.batchMemoryBudgetBytes = in.readLong();
+                    imageCapturer.memoryHeadroomBytes = in.readLong();
+                    imageCapturer.chooserLaunchNanos = in.readLong();
+                    imageCapturer.stageRemoteImages = in.readInt() != 0;
+                    imageCapturer.prefetchImageCount = in.readInt();
+                    imageCapturer.prefetchDecodeSpec = in.readParcelable(DecodeSpec.class.getClassLoader());
+                    imageCapturer.detectDuplicates = in.readInt() != 0;
+                    imageCapturer.captureIds = in.createStringArrayList();
                     return imageCapturer;
                 }
 
@@ -62,14 +80,171 @@ public class ImageCapturer implements Parcelable {
     private String imageSourceChooserTitle;
     private File imageTemporaryFile;
     private int requestCode = -1;
-    private DecodeReceivedImageAsyncTask decodeReceivedImageAsyncTask;
+    private DecodeExecutor.Priority priority = DecodeExecutor.Priority.FOREGROUND;
+    private boolean allowMultiple;
+    private long batchMemoryBudgetBytes;
+    private long memoryHeadroomBytes = DEFAULT_MEMORY_HEADROOM_BYTES;
+    private long chooserLaunchNanos;
+    private boolean stageRemoteImages;
+    private int prefetchImageCount;
+    private DecodeSpec prefetchDecodeSpec;
+    private boolean detectDuplicates;
+    private Executor executor;
+    private CaptureMetricsListener captureMetricsListener;
+    // background captures in the CaptureRegistry that may not have been delivered yet
+    private ArrayList<String> captureIds = new ArrayList<String>();
 
     public void setImageSourceChooserTitle(String imageSourceChooserTitle) {
         this.imageSourceChooserTitle = imageSourceChooserTitle;
     }
 
+    /**
+     * Run background PROCESSING on <code>executor</code> instead of the shared {@link DecodeExecutor}.
+     * Results are still delivered on the main thread.
+     * <p/>
+     * The executor isn't saved with this {@link ImageCapturer}. Set it again after restoring.
+     *
+     * @param executor an {@link java.util.concurrent.Executor} or <code>null</code> to use
+     *                 {@link DecodeExecutor#getInstance(android.content.Context)}.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param priority how urgent background PROCESSING is compared to other decodes on the same
+     *                 {@link DecodeExecutor}. Defaults to {@link DecodeExecutor.Priority#FOREGROUND}.
+     */
+    public void setPriority(DecodeExecutor.Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException("priority must not be null");
+        }
+        this.priority = priority;
+    }
+
+    DecodeExecutor.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param allowMultiple <code>true</code> to let galleries pick several images at once. Use
+     *                      {@link #onActivityResultBatch(android.app.Activity, int, int, android.content.Intent, BatchImageCapturedCallback, DecodeSpec)}
+     *                      to receive all of them.
+     */
+    public void setAllowMultiple(boolean allowMultiple) {
+        this.allowMultiple = allowMultiple;
+    }
+
+    /**
+     * @param stageRemoteImages <code>true</code> to copy images picked from other apps, like cloud galleries, to a
+     *                          local file once before reading them, so no stage goes back to the provider. The copy
+     *                          is handed to callbacks as their <code>imageFile</code>, next to the original
+     *                          <code>imageUri</code>, and stays in the
+     *                          {@link TemporaryImageStore} until it needs the space. Camera captures are local already
+     *                          and never copied.
+     */
+    public void setStageRemoteImages(boolean stageRemoteImages) {
+        this.stageRemoteImages = stageRemoteImages;
+    }
+
+    /**
+     * Decode the <code>imageCount</code> newest MediaStore images in the background while the image source chooser
+     * is showing, so that picking one of them is delivered almost at once. Only captures that ask for the same
+     * <code>decodeSpec</code> benefit. Prefetching stops when the result arrives; {@link ImagePrefetcher} counts how
+     * often it paid off. It needs the <code>READ_EXTERNAL_STORAGE</code> permission and is off by default.
+     *
+     * @param imageCount how many images to prefetch, or 0 to turn prefetching off
+     * @param decodeSpec the size to prefetch at. Must not be <code>null</code> unless <code>imageCount</code> is 0.
+     */
+    public void setPrefetch(int imageCount, DecodeSpec decodeSpec) {
+        if (imageCount < 0) {
+            throw new IllegalArgumentException("imageCount must not be negative: " + imageCount);
+        }
+        if (imageCount > 0 && decodeSpec == null) {
+            throw new IllegalArgumentException("decodeSpec must not be null");
+        }
+        this.prefetchImageCount = imageCount;
+        this.prefetchDecodeSpec = imageCount == 0 ? null : decodeSpec;
+    }
+
+    /**
+     * @param detectDuplicates <code>true</code> to compute a {@link PerceptualHash} of each decoded image and look it
+     *                         up in {@link #getDuplicateIndex()}. Decoded captures report what they duplicate in
+     *                         {@link DecodeInfo#getDuplicateOf()}; encoded captures are skipped with a
+     *                         {@link DuplicateImageException} before they are encoded.
+     */
+    public void setDetectDuplicates(boolean detectDuplicates) {
+        this.detectDuplicates = detectDuplicates;
+    }
+
+    /**
+     * @return the index of recent captures every {@link ImageCapturer} in this process checks for duplicates.
+     * {@link DuplicateIndex#remove(String)} an image when the user discards it.
+     */
+    public static synchronized DuplicateIndex getDuplicateIndex() {
+        if (duplicateIndex == null) {
+            duplicateIndex = new DuplicateIndex();
+        }
+        return duplicateIndex;
+    }
+
+    /**
+     * @param batchMemoryBudgetBytes the most bytes of decoded {@link android.graphics.Bitmap}s a batch holds
+     *                               before they are delivered. Zero means a quarter of the app's heap.
+     */
+    public void setBatchMemoryBudgetBytes(long batchMemoryBudgetBytes) {
+        if (batchMemoryBudgetBytes < 0) {
+            throw new IllegalArgumentException("batchMemoryBudgetBytes must not be negative: " + batchMemoryBudgetBytes);
+        }
+        this.batchMemoryBudgetBytes = batchMemoryBudgetBytes;
+    }
+
+    /**
+     * Before decoding, {@link ImageCapturer} checks that the decode fits in the free heap minus
+     * <code>memoryHeadroomBytes</code>. If it doesn't, the image is decoded smaller or as
+     * {@link android.graphics.Bitmap.Config#RGB_565} instead and {@link DecodeInfo#isDowngraded()} is <code>true</code>.
+     *
+     * @param memoryHeadroomBytes memory to leave for the rest of the app. Defaults to {@link #DEFAULT_MEMORY_HEADROOM_BYTES}.
+     */
+    public void setMemoryHeadroomBytes(long memoryHeadroomBytes) {
+        if (memoryHeadroomBytes < 0) {
+            throw new IllegalArgumentException("memoryHeadroomBytes must not be negative: " + memoryHeadroomBytes);
+        }
+        this.memoryHeadroomBytes = memoryHeadroomBytes;
+    }
+
+    /**
+     * The listener isn't saved with this {@link ImageCapturer}. Set it again after restoring.
+     *
+     * @param captureMetricsListener told how long each stage of every capture took, or <code>null</code>.
+     */
+    public void setCaptureMetricsListener(CaptureMetricsListener captureMetricsListener) {
+        this.captureMetricsListener = captureMetricsListener;
+    }
+
+    /**
+     * Cancel captures that stay detached for longer than <code>orphanTimeoutMillis</code>, because nothing restored
+     * the {@link ImageCapturer} that would reattach them. Five minutes by default. Call on the main thread.
+     */
+    public static void setOrphanTimeoutMillis(long orphanTimeoutMillis) {
+        assertOnMainThread();
+        CaptureRegistry.getInstance().setOrphanTimeoutMillis(orphanTimeoutMillis);
+    }
+
+    /**
+     * Prepare the image source chooser in the background, so that
+     * {@link #awaitImageCapture(android.app.Activity, int)} doesn't have to query installed apps or create
+     * directories on the main thread. Call this early, like in {@link android.app.Activity#onCreate(android.os.Bundle)}.
+     * It is cheap to call more than once.
+     */
+    public static void prepare(Context context) {
+        ChooserPreparer.getInstance(context).prepareAsync();
+    }
+
     /**
      * Start a new {@link android.app.Activity} to choose an image.
+     * <p/>
+     * Call {@link #prepare(android.content.Context)} beforehand to keep this fast.
      *
      * @param activity    the current {@link android.app.Activity}
      * @param requestCode the requestCode you want Android to pass back when it calls
@@ -87,7 +262,8 @@ public class ImageCapturer implements Parcelable {
             throw new IllegalStateException("Can only capture one file at a time. Previous file: " + imageTemporaryFile);
         }
 
-        PackageManager packageManager = activity.getPackageManager();
+        long startedAtNanos = System.nanoTime();
+        ChooserPreparer chooserPreparer = ChooserPreparer.getInstance(activity);
         String title;
         if (imageSourceChooserTitle == null) {
             title = "Select Image Source";
@@ -95,25 +271,18 @@ public class ImageCapturer implements Parcelable {
             title = imageSourceChooserTitle;
         }
 
-        String tempFileName = "capture-" + UUID.randomUUID().toString() + ".jpg";
-        File tempDir = new File(Environment.getExternalStorageDirectory(), "captured-images");
-        if (!tempDir.exists()) {
-            if (!tempDir.mkdir()) {
-                throw new IOException("Couldn't create temporary image storage directory: " + tempDir);
-            }
-        }
-        imageTemporaryFile = new File(tempDir, tempFileName);
+        imageTemporaryFile = TemporaryImageStore.getInstance(activity).createFile();
 
         final List<Intent> galleryIntents = new ArrayList<Intent>();
-        final Intent galleryIntent = new Intent(Intent.ACTION_GET_CONTENT);
-        galleryIntent.setType("image/*");
+        final Intent galleryIntent = ChooserPreparer.createGalleryIntent();
+        if (allowMultiple) {
+            galleryIntent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        }
 
-        final List<ResolveInfo> listGalleryListeners = packageManager.queryIntentActivities(galleryIntent, 0);
-        for (ResolveInfo res : listGalleryListeners) {
-            final String packageName = res.activityInfo.packageName;
+        for (ComponentName galleryComponent : chooserPreparer.getGalleryComponents()) {
             final Intent intent = new Intent(galleryIntent);
-            intent.setComponent(new ComponentName(res.activityInfo.packageName, res.activityInfo.name));
-            intent.setPackage(packageName);
+            intent.setComponent(galleryComponent);
+            intent.setPackage(galleryComponent.getPackageName());
             galleryIntents.add(intent);
         }
 
@@ -127,6 +296,11 @@ public class ImageCapturer implements Parcelable {
         chooserIntent.putExtra(Intent.EXTRA_INITIAL_INTENTS, galleryIntents.toArray(new Parcelable[galleryIntents.size()]));
         this.requestCode = requestCode;
         activity.startActivityForResult(chooserIntent, requestCode);
+        chooserLaunchNanos = System.nanoTime() - startedAtNanos;
+        if (prefetchImageCount > 0) {
+            // the user is busy picking for a while
+            ImagePrefetcher.getInstance(activity).start(prefetchImageCount, prefetchDecodeSpec, memoryHeadroomBytes);
+        }
     }
 
     /**
@@ -146,29 +320,243 @@ public class ImageCapturer implements Parcelable {
      * capture {@link android.content.Intent} FAILED.
      */
     public Result onActivityResult(Activity activity, int requestCode, int resultCode, Intent data, ImageCapturedCallback imageCapturedCallback, BackgroundBitmapProvider backgroundBitmapProvider) {
-        if (this.requestCode == requestCode) {
-            assertOnMainThread();
+        return decodeReceivedImage(activity, requestCode, resultCode, data, imageCapturedCallback, backgroundBitmapProvider, null, null);
+    }
+
+    /**
+     * Like {@link #onActivityResult(android.app.Activity, int, int, android.content.Intent, ImageCapturedCallback, BackgroundBitmapProvider)}
+     * but the image is decoded straight to the size described by <code>decodeSpec</code>.
+     *
+     * @param decodeSpec the size and {@link android.graphics.Bitmap.Config} of the created {@link android.graphics.Bitmap}s.
+     *                   May be <code>null</code> to decode at full resolution.
+     */
+    public Result onActivityResultDecoded(Activity activity, int requestCode, int resultCode, Intent data, ImageCapturedCallback imageCapturedCallback, DecodeSpec decodeSpec) {
+        return decodeReceivedImage(activity, requestCode, resultCode, data, imageCapturedCallback, null, decodeSpec, null);
+    }
+
+    /**
+     * Like {@link #onActivityResultDecoded(android.app.Activity, int, int, android.content.Intent, ImageCapturedCallback, DecodeSpec)}
+     * but the image is run through <code>transformChain</code> while it is decoded, so a crop, resize, color change
+     * and watermark produce one {@link android.graphics.Bitmap} instead of one per step. Transformed images aren't
+     * cached in the {@link DecodedImageCache}.
+     *
+     * @param transformChain what to do to the image. Must not be <code>null</code>.
+     */
+    public Result onActivityResultTransformed(Activity activity, int requestCode, int resultCode, Intent data, ImageCapturedCallback imageCapturedCallback, ImageTransformChain transformChain) {
+        if (transformChain == null) {
+            throw new IllegalArgumentException("transformChain must not be null");
+        }
+        return decodeReceivedImage(activity, requestCode, resultCode, data, imageCapturedCallback, null, null, transformChain);
+    }
 
-            if (imageTemporaryFile == null) {
-                throw new IllegalStateException("awaitImageCapture wasn't called first. Or maybe you didn't save/restore your ImageCapturer in onSaveInstanceState/onCreate");
+    private Result decodeReceivedImage(
+            final Activity activity,
+            int requestCode,
+            int resultCode,
+            Intent data,
+            final ImageCapturedCallback imageCapturedCallback,
+            final BackgroundBitmapProvider backgroundBitmapProvider,
+            final DecodeSpec decodeSpec,
+            final ImageTransformChain transformChain) {
+        return startCapture(activity, requestCode, resultCode, data, ImageCapturedCallback.class, imageCapturedCallback, new WorkFactory() {
+            @Override
+            public CaptureRegistry.Work create(String captureId, File imageFile, List<Uri> imageUris, Uri prefetchedUri, ImageStager imageStager) {
+                return new DecodeReceivedImageAsyncTask(
+                        imageFile,
+                        activity.getApplicationContext().getContentResolver(),
+                        imageUris,
+                        prefetchedUri,
+                        imageCapturedCallback instanceof ImagePreviewCallback,
+                        imageCapturedCallback instanceof CapturedImageCallback ? TemporaryImageStore.getInstance(activity) : null,
+                        backgroundBitmapProvider,
+                        decodeSpec,
+                        transformChain,
+                        BitmapPool.getInstance(activity),
+                        new MemoryGovernor(memoryHeadroomBytes),
+                        detectDuplicates ? getDuplicateIndex() : null,
+                        DecodedImageCache.getInstance(activity),
+                        DecodeExecutor.getInstance(activity),
+                        createMetrics(imageFile, imageUris),
+                        imageStager,
+                        CaptureRegistry.getInstance(),
+                        captureId);
             }
+        });
+    }
 
-            Result result;
-            if (resultCode == Activity.RESULT_OK) {
-                decodeReceivedImageAsyncTask = new DecodeReceivedImageAsyncTask(imageTemporaryFile, activity, data, imageCapturedCallback, backgroundBitmapProvider);
-                decodeReceivedImageAsyncTask.execute((Void[]) null);
-                result = Result.PROCESSING;
-            } else {
-                result = Result.FAILED;
+    /**
+     * Like {@link #onActivityResultDecoded(android.app.Activity, int, int, android.content.Intent, ImageCapturedCallback, DecodeSpec)}
+     * but every image picked after {@link #setAllowMultiple(boolean)} is decoded. Images are decoded concurrently
+     * and each is delivered to <code>batchImageCapturedCallback</code> as soon as it is ready.
+     *
+     * @param batchImageCapturedCallback called as each image finishes and when the whole batch is done.
+     * @param decodeSpec                 the size and {@link android.graphics.Bitmap.Config} of the created
+     *                                   {@link android.graphics.Bitmap}s. May be <code>null</code> to decode at full resolution.
+     */
+    public Result onActivityResultBatch(final Activity activity, int requestCode, int resultCode, Intent data, BatchImageCapturedCallback batchImageCapturedCallback, final DecodeSpec decodeSpec) {
+        return startCapture(activity, requestCode, resultCode, data, BatchImageCapturedCallback.class, batchImageCapturedCallback, new WorkFactory() {
+            @Override
+            public CaptureRegistry.Work create(String captureId, File imageFile, List<Uri> imageUris, Uri prefetchedUri, ImageStager imageStager) {
+                long memoryBudgetBytes = batchMemoryBudgetBytes == 0 ? Runtime.getRuntime().maxMemory() / 4 : batchMemoryBudgetBytes;
+                return new BatchDecoder(
+                        activity.getApplicationContext().getContentResolver(),
+                        imageUris,
+                        imageFile,
+                        decodeSpec,
+                        BitmapPool.getInstance(activity),
+                        new MemoryBudget(memoryBudgetBytes),
+                        new MemoryGovernor(memoryHeadroomBytes),
+                        detectDuplicates ? getDuplicateIndex() : null,
+                        DecodedImageCache.getInstance(activity),
+                        DecodeExecutor.getInstance(activity),
+                        chooserLaunchNanos,
+                        imageStager,
+                        CaptureRegistry.getInstance(),
+                        captureId);
             }
+        });
+    }
 
-            imageTemporaryFile = null;
-            this.requestCode = -1;
+    /**
+     * Like {@link #onActivityResultDecoded(android.app.Activity, int, int, android.content.Intent, ImageCapturedCallback, DecodeSpec)}
+     * but instead of decoding the whole image, a {@link TiledImageSource} is opened that decodes tiles on demand.
+     * Use this for images too big to decode at once, like panoramas and scanned documents.
+     *
+     * @param tiledImageCapturedCallback called when the {@link TiledImageSource} is ready.
+     * @param maxTileCacheBytes          the most bytes of decoded tiles the {@link TiledImageSource} keeps.
+     */
+    public Result onActivityResultTiled(final Activity activity, int requestCode, int resultCode, Intent data, TiledImageCapturedCallback tiledImageCapturedCallback, final int maxTileCacheBytes) {
+        return startCapture(activity, requestCode, resultCode, data, TiledImageCapturedCallback.class, tiledImageCapturedCallback, new WorkFactory() {
+            @Override
+            public CaptureRegistry.Work create(String captureId, File imageFile, List<Uri> imageUris, Uri prefetchedUri, ImageStager imageStager) {
+                return new TiledImageOpener(
+                        activity.getApplicationContext().getContentResolver(),
+                        imageUris.isEmpty() ? null : imageUris.get(0),
+                        imageFile,
+                        TiledImageSource.DEFAULT_TILE_SIZE,
+                        maxTileCacheBytes,
+                        imageStager,
+                        CaptureRegistry.getInstance(),
+                        captureId);
+            }
+        });
+    }
 
-            return result;
-        } else {
+    /**
+     * Like {@link #onActivityResultDecoded(android.app.Activity, int, int, android.content.Intent, ImageCapturedCallback, DecodeSpec)}
+     * but instead of handing out a {@link android.graphics.Bitmap}, the image is downsampled and encoded straight to
+     * a file in the app's cache directory in the background. Use this to prepare captured images for upload.
+     *
+     * @param imageEncodedCallback called when the encoded file is ready.
+     * @param encodeSpec           the size, format and quality of the encoded file.
+     */
+    public Result onActivityResultEncoded(final Activity activity, int requestCode, int resultCode, Intent data, ImageEncodedCallback imageEncodedCallback, final EncodeSpec encodeSpec) {
+        return startCapture(activity, requestCode, resultCode, data, ImageEncodedCallback.class, imageEncodedCallback, new WorkFactory() {
+            @Override
+            public CaptureRegistry.Work create(String captureId, File imageFile, List<Uri> imageUris, Uri prefetchedUri, ImageStager imageStager) {
+                return new ImageEncoder(
+                        activity.getApplicationContext().getContentResolver(),
+                        imageUris.isEmpty() ? null : imageUris.get(0),
+                        imageFile,
+                        new File(activity.getCacheDir(), ENCODED_IMAGE_DIRECTORY_NAME),
+                        encodeSpec,
+                        BitmapPool.getInstance(activity),
+                        new MemoryGovernor(memoryHeadroomBytes),
+                        detectDuplicates ? getDuplicateIndex() : null,
+                        createMetrics(imageFile, imageUris),
+                        imageStager,
+                        CaptureRegistry.getInstance(),
+                        captureId);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #onActivityResultDecoded(android.app.Activity, int, int, android.content.Intent, ImageCapturedCallback, DecodeSpec)}
+     * but the image's pixels are copied to a direct {@link java.nio.ByteBuffer} from the shared
+     * {@link PixelBufferPool} in the background. Use this to hand captured images to a model or to native code.
+     *
+     * @param pixelBufferCallback called when the pixels are ready.
+     * @param pixelBufferSpec     the size, pixel layout and row stride of the buffer.
+     */
+    public Result onActivityResultPixelBuffer(Activity activity, int requestCode, int resultCode, Intent data, PixelBufferCallback pixelBufferCallback, PixelBufferSpec pixelBufferSpec) {
+        return onActivityResultPixelBuffer(activity, requestCode, resultCode, data, pixelBufferCallback, pixelBufferSpec, null);
+    }
+
+    /**
+     * Like {@link #onActivityResultPixelBuffer(android.app.Activity, int, int, android.content.Intent, PixelBufferCallback, PixelBufferSpec)}
+     * but the pixels are written to <code>targetBuffer</code>. The capture fails if the decoded image doesn't fit.
+     *
+     * @param targetBuffer where to write the pixels, or <code>null</code> to use a pooled buffer. Must not be
+     *                     read-only, and must not be touched until the callback is called.
+     */
+    public Result onActivityResultPixelBuffer(final Activity activity, int requestCode, int resultCode, Intent data, PixelBufferCallback pixelBufferCallback, final PixelBufferSpec pixelBufferSpec, final ByteBuffer targetBuffer) {
+        if (pixelBufferSpec == null) {
+            throw new IllegalArgumentException("pixelBufferSpec must not be null");
+        }
+        if (targetBuffer != null && targetBuffer.isReadOnly()) {
+            throw new IllegalArgumentException("targetBuffer must not be read-only");
+        }
+        return startCapture(activity, requestCode, resultCode, data, PixelBufferCallback.class, pixelBufferCallback, new WorkFactory() {
+            @Override
+            public CaptureRegistry.Work create(String captureId, File imageFile, List<Uri> imageUris, Uri prefetchedUri, ImageStager imageStager) {
+                return new PixelBufferDecoder(
+                        activity.getApplicationContext().getContentResolver(),
+                        imageUris.isEmpty() ? null : imageUris.get(0),
+                        imageFile,
+                        pixelBufferSpec,
+                        targetBuffer,
+                        PixelBufferPool.getInstance(activity),
+                        BitmapPool.getInstance(activity),
+                        new MemoryGovernor(memoryHeadroomBytes),
+                        createMetrics(imageFile, imageUris),
+                        imageStager,
+                        CaptureRegistry.getInstance(),
+                        captureId);
+            }
+        });
+    }
+
+    /**
+     * What every <code>onActivityResult</code> variant does: check the result is ours, then register and start the
+     * work <code>workFactory</code> creates, or give up the temporary file if the chooser FAILED.
+     *
+     * @param callbackType the type of <code>callback</code> the work delivers to
+     */
+    private Result startCapture(Activity activity, int requestCode, int resultCode, Intent data, Class<?> callbackType, Object callback, WorkFactory workFactory) {
+        if (this.requestCode != requestCode) {
             return Result.IGNORED;
         }
+        assertOnMainThread();
+        Uri prefetchedUri = finishPrefetch(resultCode, data);
+
+        if (imageTemporaryFile == null) {
+            throw new IllegalStateException("awaitImageCapture wasn't called first. Or maybe you didn't save/restore your ImageCapturer in onSaveInstanceState/onCreate");
+        }
+
+        Result result;
+        if (resultCode == Activity.RESULT_OK) {
+            String captureId = createCaptureId();
+            ImageStager imageStager = createImageStager(activity);
+            CaptureRegistry.Work work = workFactory.create(captureId, imageTemporaryFile, getImageUris(data), prefetchedUri, imageStager);
+            CaptureRegistry.getInstance().register(captureId, work, callbackType, callback, captureMetricsListener);
+            work.start(getDecodeExecutor(activity));
+            releaseTemporaryFilesWhenDone(activity, captureId, imageTemporaryFile, imageStager);
+            result = Result.PROCESSING;
+        } else {
+            TemporaryImageStore.getInstance(activity).release(imageTemporaryFile, true);
+            result = Result.FAILED;
+        }
+
+        imageTemporaryFile = null;
+        this.requestCode = -1;
+        chooserLaunchNanos = 0;
+
+        return result;
+    }
+
+    private CaptureMetrics.Recorder createMetrics(File imageFile, List<Uri> imageUris) {
+        return new CaptureMetrics.Recorder(imageUris.isEmpty() ? Uri.fromFile(imageFile) : imageUris.get(0), chooserLaunchNanos);
     }
 
     /**
@@ -179,29 +567,243 @@ public class ImageCapturer implements Parcelable {
     public void cancelAwaitImageCapture() {
         assertOnMainThread();
 
+        TemporaryImageStore temporaryImageStore = TemporaryImageStore.getInstanceIfCreated();
+        if (imageTemporaryFile != null && temporaryImageStore != null) {
+            temporaryImageStore.release(imageTemporaryFile, true);
+        }
         imageTemporaryFile = null;
         requestCode = -1;
+        ImagePrefetcher imagePrefetcher = ImagePrefetcher.getInstanceIfCreated();
+        if (imagePrefetcher != null) {
+            imagePrefetcher.cancel();
+        }
     }
 
     /**
-     * Stop background PROCESSING from prior {@link #onActivityResult} calls.
+     * Stop background PROCESSING from prior {@link #onActivityResult} calls. Decodes in progress are interrupted.
      * <p/>
      * It is safe to call {@link #awaitImageCapture(android.app.Activity, int)} after this call.
      */
     public void cancelBackgroundProcessing() {
         assertOnMainThread();
 
-        if (decodeReceivedImageAsyncTask != null) {
-            decodeReceivedImageAsyncTask.cancel(true);
-            decodeReceivedImageAsyncTask = null;
+        CaptureRegistry captureRegistry = CaptureRegistry.getInstance();
+        for (String captureId : captureIds) {
+            captureRegistry.cancel(captureId);
+        }
+        captureIds.clear();
+    }
+
+    /**
+     * Stop delivering results to the callbacks given to {@link #onActivityResult}, but keep background PROCESSING
+     * going. Call this instead of {@link #cancelBackgroundProcessing()} when your {@link android.app.Activity} is
+     * destroyed for a configuration change, then call <code>reattach</code> on the restored {@link ImageCapturer}.
+     * Results that finish in between are kept until then.
+     */
+    public void detach() {
+        assertOnMainThread();
+
+        CaptureRegistry captureRegistry = CaptureRegistry.getInstance();
+        for (String captureId : captureIds) {
+            captureRegistry.detach(captureId);
+        }
+    }
+
+    /**
+     * Deliver results of background PROCESSING started by {@link #onActivityResultDecoded(android.app.Activity, int, int, android.content.Intent, ImageCapturedCallback, DecodeSpec)}
+     * before this {@link ImageCapturer} was saved, to <code>imageCapturedCallback</code>. Results that are already
+     * finished are delivered before this returns. The rest are delivered when they finish.
+     *
+     * @return <code>true</code> if there was background PROCESSING to reattach to.
+     * @see #detach()
+     */
+    public boolean reattach(ImageCapturedCallback imageCapturedCallback) {
+        return reattachCallback(imageCapturedCallback);
+    }
+
+    /**
+     * @see #reattach(ImageCapturedCallback)
+     */
+    public boolean reattach(BatchImageCapturedCallback batchImageCapturedCallback) {
+        return reattachCallback(batchImageCapturedCallback);
+    }
+
+    /**
+     * @see #reattach(ImageCapturedCallback)
+     */
+    public boolean reattach(TiledImageCapturedCallback tiledImageCapturedCallback) {
+        return reattachCallback(tiledImageCapturedCallback);
+    }
+
+    /**
+     * @see #reattach(ImageCapturedCallback)
+     */
+    public boolean reattach(ImageEncodedCallback imageEncodedCallback) {
+        return reattachCallback(imageEncodedCallback);
+    }
+
+    /**
+     * @see #reattach(ImageCapturedCallback)
+     */
+    public boolean reattach(PixelBufferCallback pixelBufferCallback) {
+        return reattachCallback(pixelBufferCallback);
+    }
+
+    private boolean reattachCallback(Object callback) {
+        assertOnMainThread();
+
+        if (callback == null) {
+            throw new IllegalArgumentException("callback must not be null");
+        }
+        CaptureRegistry captureRegistry = CaptureRegistry.getInstance();
+        boolean reattached = false;
+        // copy because delivered callbacks may start or cancel captures
+        for (String captureId : new ArrayList<String>(captureIds)) {
+            if (captureRegistry.attach(captureId, callback, captureMetricsListener)) {
+                reattached = true;
+            }
+        }
+        pruneCaptureIds();
+        return reattached;
+    }
+
+    /**
+     * @return a handle for the most recent background PROCESSING that hasn't been delivered yet, or
+     * <code>null</code> if there is none.
+     */
+    public CaptureHandle getCaptureHandle() {
+        assertOnMainThread();
+
+        pruneCaptureIds();
+        if (captureIds.isEmpty()) {
+            return null;
+        }
+        String captureId = captureIds.get(captureIds.size() - 1);
+        return new CaptureHandle(captureId, CaptureRegistry.getInstance().getDecodeControl(captureId));
+    }
+
+    /**
+     * @return <code>true</code> if background PROCESSING from prior {@link #onActivityResult} calls hasn't been
+     * delivered yet.
+     */
+    public boolean isProcessing() {
+        pruneCaptureIds();
+        return !captureIds.isEmpty();
+    }
+
+    private String createCaptureId() {
+        pruneCaptureIds();
+        String captureId = UUID.randomUUID().toString();
+        captureIds.add(captureId);
+        return captureId;
+    }
+
+    /**
+     * @return an {@link ImageStager} for a new capture, or <code>null</code> if remote images aren't staged
+     */
+    private ImageStager createImageStager(Context context) {
+        if (!stageRemoteImages) {
+            return null;
+        }
+        return new ImageStager(context.getApplicationContext().getContentResolver(), TemporaryImageStore.getInstance(context));
+    }
+
+    /**
+     * Give <code>imageFile</code> and the files staged by <code>imageStager</code> back to the
+     * {@link TemporaryImageStore} once the capture is over. They're deleted if the capture is cancelled; otherwise
+     * they were delivered and stay until the store needs the space.
+     *
+     * @param imageStager may be <code>null</code>
+     */
+    private static void releaseTemporaryFilesWhenDone(Context context, String captureId, final File imageFile, final ImageStager imageStager) {
+        final TemporaryImageStore temporaryImageStore = TemporaryImageStore.getInstance(context);
+        CaptureRegistry.getInstance().addRemovalListener(captureId, new CaptureRegistry.RemovalListener() {
+            @Override
+            public void onRemoved(boolean cancelled) {
+                temporaryImageStore.release(imageFile, cancelled);
+                if (imageStager != null) {
+                    imageStager.release(cancelled);
+                }
+            }
+        });
+    }
+
+    private void pruneCaptureIds() {
+        CaptureRegistry captureRegistry = CaptureRegistry.getInstance();
+        for (Iterator<String> iterator = captureIds.iterator(); iterator.hasNext(); ) {
+            if (!captureRegistry.contains(iterator.next())) {
+                iterator.remove();
+            }
         }
     }
 
+    /**
+     * Give a {@link android.graphics.Bitmap} from {@link ImageCapturedCallback#onImageCaptured} back to the
+     * shared {@link BitmapPool} so later captures can decode into it. Don't use <code>bitmap</code> afterwards.
+     *
+     * @return <code>true</code> if <code>bitmap</code> can be reused.
+     */
+    public static boolean releaseBitmap(Context context, Bitmap bitmap) {
+        return BitmapPool.getInstance(context).put(bitmap);
+    }
+
     public boolean isCapturing() {
         return imageTemporaryFile != null;
     }
 
-    private void assertOnMainThread() {
+    /**
+     * Stop prefetching now that the chooser returned.
+     *
+     * @return the MediaStore {@link android.net.Uri} the picked image was prefetched under, or <code>null</code>
+     */
+    private static Uri finishPrefetch(int resultCode, Intent data) {
+        ImagePrefetcher imagePrefetcher = ImagePrefetcher.getInstanceIfCreated();
+        if (imagePrefetcher == null) {
+            return null;
+        }
+        List<Uri> imageUris = resultCode == Activity.RESULT_OK ? getImageUris(data) : Collections.<Uri>emptyList();
+        return imagePrefetcher.finish(imageUris.isEmpty() ? null : imageUris.get(0));
+    }
+
+    /**
+     * @return the images picked by a gallery, or an empty list if a camera wrote to the temporary file instead.
+     */
+    private static List<Uri> getImageUris(Intent data) {
+        List<Uri> imageUris = new ArrayList<Uri>();
+        if (data != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                ClipData clipData = data.getClipData();
+                if (clipData != null) {
+                    for (int i = 0; i < clipData.getItemCount(); i++) {
+                        Uri uri = clipData.getItemAt(i).getUri();
+                        if (uri != null) {
+                            imageUris.add(uri);
+                        }
+                    }
+                }
+            }
+            if (imageUris.isEmpty() && data.getData() != null) {
+                imageUris.add(data.getData());
+            }
+        }
+        return imageUris;
+    }
+
+    private Executor getDecodeExecutor(Context context) {
+        Executor decodeExecutor;
+        if (executor == null) {
+            decodeExecutor = DecodeExecutor.getInstance(context);
+        } else {
+            decodeExecutor = executor;
+        }
+        if (decodeExecutor instanceof DecodeExecutor) {
+            return ((DecodeExecutor) decodeExecutor).withPriority(priority);
+        } else {
+            return decodeExecutor;
+        }
+    }
+
+    private static void assertOnMainThread() {
         Thread currentThread = Thread.currentThread();
         Thread mainThread = Looper.getMainLooper().getThread();
         if (mainThread != currentThread) {
@@ -225,6 +827,16 @@ public class ImageCapturer implements Parcelable {
         }
         dest.writeString(imageTemporaryFileAbsolutePath);
         dest.writeInt(requestCode);
+        dest.writeString(priority.name());
+        dest.writeInt(allowMultiple ? 1 : 0);
+        dest.writeLong(batchMemoryBudgetBytes);
+        dest.writeLong(memoryHeadroomBytes);
+        dest.writeLong(chooserLaunchNanos);
+        dest.writeInt(stageRemoteImages ? 1 : 0);
+        dest.writeInt(prefetchImageCount);
+        dest.writeParcelable(prefetchDecodeSpec, flags);
+        dest.writeInt(detectDuplicates ? 1 : 0);
+        dest.writeStringList(captureIds);
     }
 
     public interface BackgroundBitmapProvider {
@@ -240,15 +852,21 @@ public class ImageCapturer implements Parcelable {
     public interface ImageCapturedCallback {
         /**
          * Called on main thread when an image is captured.
-         * Only one of <code>imageUri</code> or <code>imageFile</code> will be non-<code>null</code>.
+         * A camera capture has only an <code>imageFile</code> and a picked image only an <code>imageUri</code>,
+         * unless remote images are staged with {@link ImageCapturer#setStageRemoteImages(boolean)}. Then a picked
+         * image has both: <code>imageUri</code> is where it came from and <code>imageFile</code> is the local copy
+         * it was read from.
          * This returns both a {@link android.net.Uri} and a {@link java.io.File} instead of just
          * a <code>Uri</code> because when possible, you might want to delete the <code>File</code>
          * when the bitmap is returned, but the <code>Uri</code> may be from a {@link android.content.ContentProvider},
-         * which may not support deleting an item at that <code>Uri</code>.
+         * which may not support deleting an item at that <code>Uri</code>. Deleting a staged copy is fine too;
+         * otherwise the {@link TemporaryImageStore} deletes it when it needs the space. Never delete what
+         * <code>imageUri</code> points to because of the copy.
          *
          * @param bitmap    A {@link android.graphics.Bitmap} of the captured image
          * @param imageUri  The {@link android.net.Uri} of the captured image or <code>null</code>.
-         * @param imageFile The {@link java.io.File} of the captured image or <code>null</code>.
+         * @param imageFile The {@link java.io.File} of the captured image, the local copy of <code>imageUri</code>
+         *                  if it was staged, or <code>null</code>.
          */
         void onImageCaptured(Bitmap bitmap, Uri imageUri, File imageFile);
 
@@ -269,6 +887,179 @@ public class ImageCapturer implements Parcelable {
         void onImageCaptureOutOfMemory(OutOfMemoryError outOfMemoryError, NullPointerException npe);
     }
 
+    public interface DetailedImageCapturedCallback extends ImageCapturedCallback {
+        /**
+         * Called on main thread when an image is captured, instead of
+         * {@link #onImageCaptured(android.graphics.Bitmap, android.net.Uri, java.io.File)}, with
+         * <code>imageUri</code> and <code>imageFile</code> set the same way.
+         *
+         * @param decodeInfo how the image was decoded, including whether it had to be downgraded to fit in memory.
+         *                   <code>null</code> if a {@link BackgroundBitmapProvider} decoded it.
+         * @see #onImageCaptured(android.graphics.Bitmap, android.net.Uri, java.io.File)
+         */
+        void onImageCaptured(Bitmap bitmap, Uri imageUri, File imageFile, DecodeInfo decodeInfo);
+    }
+
+    public interface CapturedImageCallback extends ImageCapturedCallback {
+        /**
+         * Called on main thread when an image is captured, instead of
+         * {@link #onImageCaptured(android.graphics.Bitmap, android.net.Uri, java.io.File)}.
+         *
+         * @param capturedImage a small handle to save in <code>onSaveInstanceState</code> instead of
+         *                      <code>bitmap</code>. {@link CapturedImage#load} reloads the pixels later.
+         * @see #onImageCaptured(android.graphics.Bitmap, android.net.Uri, java.io.File)
+         */
+        void onImageCaptured(Bitmap bitmap, CapturedImage capturedImage);
+    }
+
+    /**
+     * Implement this on the {@link ImageCapturedCallback} you pass to <code>onActivityResult</code> to get a low
+     * resolution preview of the captured image while the full decode is still running. There is no preview
+     * when a {@link BackgroundBitmapProvider} decodes the image.
+     */
+    public interface ImagePreviewCallback {
+        /**
+         * Called on main thread before {@link ImageCapturedCallback#onImageCaptured}, as soon as a preview is ready.
+         * It may not be called at all if no preview could be made.
+         *
+         * @param preview  a {@link android.graphics.Bitmap} about {@link #PREVIEW_MAX_DIMENSION} pixels on its longer edge.
+         * @param imageUri The {@link android.net.Uri} of the captured image or <code>null</code>.
+         */
+        void onImagePreview(Bitmap preview, Uri imageUri);
+    }
+
+    public interface BatchImageCapturedCallback {
+        /**
+         * Called on main thread as each image of a batch is captured. Images may finish in any order.
+         *
+         * @param index      the position of the image in the batch
+         * @param imageCount how many images are in the batch
+         * @param bitmap     A {@link android.graphics.Bitmap} of the captured image
+         * @param imageUri   The {@link android.net.Uri} of the captured image or <code>null</code>.
+         * @param imageFile  The {@link java.io.File} of the captured image, the local copy of <code>imageUri</code>
+         *                   if it was staged, or <code>null</code>.
+         * @param decodeInfo how the image was decoded
+         * @see ImageCapturedCallback#onImageCaptured(android.graphics.Bitmap, android.net.Uri, java.io.File)
+         */
+        void onBatchImageCaptured(int index, int imageCount, Bitmap bitmap, Uri imageUri, File imageFile, DecodeInfo decodeInfo);
+
+        /**
+         * Called on main thread when capturing one image of a batch fails with a {@link java.io.IOException}
+         */
+        void onBatchImageCaptureFailed(int index, int imageCount, Uri imageUri, IOException e);
+
+        /**
+         * Called on main thread when capturing one image of a batch runs out of memory.
+         *
+         * @see ImageCapturedCallback#onImageCaptureOutOfMemory(OutOfMemoryError, NullPointerException)
+         */
+        void onBatchImageCaptureOutOfMemory(int index, int imageCount, Uri imageUri, OutOfMemoryError outOfMemoryError, NullPointerException npe);
+
+        /**
+         * Called on main thread after every image of a batch has been delivered.
+         *
+         * @param imageCount  how many images were in the batch
+         * @param failedCount how many of them couldn't be captured
+         */
+        void onBatchCaptureComplete(int imageCount, int failedCount);
+    }
+
+    public interface TiledImageCapturedCallback {
+        /**
+         * Called on main thread when an image is captured and ready to be decoded tile by tile.
+         * Call {@link TiledImageSource#close()} when you are done with it.
+         *
+         * @param tiledImageSource decodes tiles of the captured image
+         * @param imageUri         The {@link android.net.Uri} of the captured image or <code>null</code>.
+         * @param imageFile        The {@link java.io.File} of the captured image, the local copy of
+         *                         <code>imageUri</code> if it was staged, or <code>null</code>.
+         * @see ImageCapturedCallback#onImageCaptured(android.graphics.Bitmap, android.net.Uri, java.io.File)
+         */
+        void onTiledImageCaptured(TiledImageSource tiledImageSource, Uri imageUri, File imageFile);
+
+        /**
+         * @see ImageCapturedCallback#onImageCaptureFailed(java.io.IOException)
+         */
+        void onImageCaptureFailed(IOException e);
+
+        /**
+         * @see ImageCapturedCallback#onImageCaptureOutOfMemory(OutOfMemoryError, NullPointerException)
+         */
+        void onImageCaptureOutOfMemory(OutOfMemoryError outOfMemoryError, NullPointerException npe);
+    }
+
+    public interface ImageEncodedCallback {
+        /**
+         * Called on main thread when an image is captured and encoded to a file. Delete
+         * <code>encodedFile</code> when you are done with it.
+         *
+         * @param encodedFile the encoded image, in the app's cache directory
+         * @param byteCount   the size of <code>encodedFile</code>
+         * @param width       the width of the encoded image
+         * @param height      the height of the encoded image
+         * @param imageUri    The {@link android.net.Uri} of the captured image or <code>null</code>.
+         * @param imageFile   The {@link java.io.File} of the captured image, the local copy of <code>imageUri</code>
+         *                    if it was staged, or <code>null</code>.
+         * @see ImageCapturedCallback#onImageCaptured(android.graphics.Bitmap, android.net.Uri, java.io.File)
+         */
+        void onImageEncoded(File encodedFile, long byteCount, int width, int height, Uri imageUri, File imageFile);
+
+        /**
+         * @see ImageCapturedCallback#onImageCaptureFailed(java.io.IOException)
+         */
+        void onImageCaptureFailed(IOException e);
+
+        /**
+         * @see ImageCapturedCallback#onImageCaptureOutOfMemory(OutOfMemoryError, NullPointerException)
+         */
+        void onImageCaptureOutOfMemory(OutOfMemoryError outOfMemoryError, NullPointerException npe);
+    }
+
+    public interface PixelBufferCallback {
+        /**
+         * Called on main thread when an image is captured and its pixels copied to a buffer. Call
+         * {@link PixelBuffer#release()} when you are done with it.
+         *
+         * @param pixelBuffer the pixels of the captured image, upright
+         * @param imageUri    The {@link android.net.Uri} of the captured image or <code>null</code>.
+         * @param imageFile   The {@link java.io.File} of the captured image, the local copy of <code>imageUri</code>
+         *                    if it was staged, or <code>null</code>.
+         * @see ImageCapturedCallback#onImageCaptured(android.graphics.Bitmap, android.net.Uri, java.io.File)
+         */
+        void onPixelBufferCaptured(PixelBuffer pixelBuffer, Uri imageUri, File imageFile);
+
+        /**
+         * @see ImageCapturedCallback#onImageCaptureFailed(java.io.IOException)
+         */
+        void onImageCaptureFailed(IOException e);
+
+        /**
+         * @see ImageCapturedCallback#onImageCaptureOutOfMemory(OutOfMemoryError, NullPointerException)
+         */
+        void onImageCaptureOutOfMemory(OutOfMemoryError outOfMemoryError, NullPointerException npe);
+    }
+
+    public interface CaptureMetricsListener {
+        /**
+         * Called on main thread after the callback of each capture returns, whether the capture succeeded or not.
+         * Not called for cancelled captures.
+         *
+         * @param captureMetrics where the time and memory went
+         */
+        void onCaptureMetrics(CaptureMetrics captureMetrics);
+    }
+
+    private interface WorkFactory {
+        /**
+         * @param imageFile     the file a camera may have written to
+         * @param imageUris     the picked images, empty if a camera wrote to <code>imageFile</code> instead
+         * @param prefetchedUri the MediaStore {@link android.net.Uri} the picked image was prefetched under, or <code>null</code>
+         * @param imageStager   may be <code>null</code>
+         * @return the work for a capture, not started yet
+         */
+        CaptureRegistry.Work create(String captureId, File imageFile, List<Uri> imageUris, Uri prefetchedUri, ImageStager imageStager);
+    }
+
     public enum Result {
         IGNORED,
         PROCESSING,
@@ -277,6 +1068,9 @@ public class ImageCapturer implements Parcelable {
 
     private static class DecodeReceivedImageTaskResult {
         public final Bitmap bitmap;
+        public final DecodeInfo decodeInfo;
+        public final CapturedImage capturedImage;
+        public final CapturedImage.LocalCopy localCopy;
         public final Uri imageLocationUri;
         public final IOException ioException;
         public final OutOfMemoryError outOfMemoryError;
@@ -284,11 +1078,17 @@ public class ImageCapturer implements Parcelable {
 
         public DecodeReceivedImageTaskResult(
                 Bitmap bitmap,
+                DecodeInfo decodeInfo,
+                CapturedImage capturedImage,
+                CapturedImage.LocalCopy localCopy,
                 Uri imageLocationUri,
                 IOException ioException,
                 OutOfMemoryError outOfMemoryError,
                 NullPointerException nullPointerException) {
             this.bitmap = bitmap;
+            this.decodeInfo = decodeInfo;
+            this.capturedImage = capturedImage;
+            this.localCopy = localCopy;
             this.imageLocationUri = imageLocationUri;
             this.ioException = ioException;
             this.outOfMemoryError = outOfMemoryError;
@@ -296,86 +1096,363 @@ public class ImageCapturer implements Parcelable {
         }
     }
 
-    private class DecodeReceivedImageAsyncTask extends AsyncTask<Void, Void, DecodeReceivedImageTaskResult> {
+    /**
+     * Doesn't reference the {@link android.app.Activity} or callbacks, so it can outlive them. Results go through
+     * the {@link CaptureRegistry}.
+     */
+    private static class DecodeReceivedImageAsyncTask extends AsyncTask<Void, Bitmap, DecodeReceivedImageTaskResult> implements CaptureRegistry.Work {
         private final File imageTemporaryFile;
-        private final Activity activity;
-        private final Intent intent;
-        private final ImageCapturedCallback imageCapturedCallback;
+        private final ContentResolver contentResolver;
+        private final Uri imageUri;
+        private final Uri prefetchedUri;
+        private final boolean decodePreview;
+        private final TemporaryImageStore handleStore;
         private final BackgroundBitmapProvider backgroundBitmapProvider;
+        private final DecodeSpec decodeSpec;
+        private final ImageTransformChain transformChain;
+        private final BitmapPool bitmapPool;
+        private final MemoryGovernor memoryGovernor;
+        private final DuplicateIndex duplicateIndex;
+        private final DecodedImageCache decodedImageCache;
+        private final DecodeExecutor decodeExecutor;
+        private final CaptureMetrics.Recorder metrics;
+        private final CaptureRegistry captureRegistry;
+        private final String captureId;
+        private final ImageStager imageStager;
+        private final DecodeControl decodeControl = new DecodeControl();
+        private volatile File stagedFile;
+        // only touched on the background thread
+        private DecodedImageCache.Key cacheKey;
 
         private DecodeReceivedImageAsyncTask(
                 File imageTemporaryFile,
-                Activity activity,
-                Intent intent,
-                ImageCapturedCallback imageCapturedCallback,
-                BackgroundBitmapProvider backgroundBitmapProvider) {
+                ContentResolver contentResolver,
+                List<Uri> imageUris,
+                Uri prefetchedUri,
+                boolean decodePreview,
+                TemporaryImageStore handleStore,
+                BackgroundBitmapProvider backgroundBitmapProvider,
+                DecodeSpec decodeSpec,
+                ImageTransformChain transformChain,
+                BitmapPool bitmapPool,
+                MemoryGovernor memoryGovernor,
+                DuplicateIndex duplicateIndex,
+                DecodedImageCache decodedImageCache,
+                DecodeExecutor decodeExecutor,
+                CaptureMetrics.Recorder metrics,
+                ImageStager imageStager,
+                CaptureRegistry captureRegistry,
+                String captureId) {
             this.imageTemporaryFile = imageTemporaryFile;
-            this.activity = activity;
-            this.intent = intent;
-            this.imageCapturedCallback = imageCapturedCallback;
+            this.contentResolver = contentResolver;
+            this.imageUri = imageUris.isEmpty() ? null : imageUris.get(0);
+            this.prefetchedUri = prefetchedUri;
+            this.decodePreview = decodePreview;
+            this.handleStore = handleStore;
             this.backgroundBitmapProvider = backgroundBitmapProvider;
+            this.decodeSpec = decodeSpec;
+            this.transformChain = transformChain;
+            this.bitmapPool = bitmapPool;
+            this.memoryGovernor = memoryGovernor;
+            this.duplicateIndex = duplicateIndex;
+            this.decodedImageCache = decodedImageCache;
+            this.decodeExecutor = decodeExecutor;
+            this.metrics = metrics;
+            this.imageStager = imageStager;
+            this.captureRegistry = captureRegistry;
+            this.captureId = captureId;
+        }
+
+        @Override
+        public void start(Executor executor) {
+            executeOnExecutor(executor, (Void[]) null);
+        }
+
+        @Override
+        public void cancel() {
+            decodeControl.cancel();
+            cancel(true);
+        }
+
+        @Override
+        public DecodeControl getDecodeControl() {
+            return decodeControl;
         }
 
         @Override
         protected DecodeReceivedImageTaskResult doInBackground(Void... unused) {
+            DecodeExecutor.restoreThreadPriority();
+            metrics.backgroundStarted();
+            try {
+                return decodeReceivedImage();
+            } finally {
+                metrics.backgroundFinished();
+            }
+        }
+
+        private DecodeReceivedImageTaskResult decodeReceivedImage() {
             Bitmap bitmap;
-            Uri imageUri;
+            DecodeInfo decodeInfo;
             Uri backgroundBitmapProviderImageUri;
 
             try {
-                if (intent == null) {
-                    imageUri = null;
+                if (imageUri == null) {
                     backgroundBitmapProviderImageUri = Uri.fromFile(imageTemporaryFile);
                 } else {
-                    imageUri = intent.getData();
                     backgroundBitmapProviderImageUri = imageUri;
                 }
-                ContentResolver contentResolver = activity.getContentResolver();
                 if (contentResolver == null) {
                     throw new IOException("Decoding image file FAILED because content resolver was null");
                 }
-                AssetFileDescriptor assetFileDescriptor = contentResolver.openAssetFileDescriptor(backgroundBitmapProviderImageUri, "r");
-                try {
-                    if (backgroundBitmapProvider == null) {
-                        bitmap = BitmapFactory.decodeFileDescriptor(assetFileDescriptor.getFileDescriptor());
+                if (backgroundBitmapProvider == null) {
+                    BitmapDecoder.DecodedBitmap decodedBitmap = decode(contentResolver, backgroundBitmapProviderImageUri);
+                    if (decodedBitmap == null) {
+                        bitmap = null;
+                        decodeInfo = null;
                     } else {
-                        bitmap = backgroundBitmapProvider.provideBitmap(assetFileDescriptor);
+                        bitmap = decodedBitmap.bitmap;
+                        decodeInfo = decodedBitmap.decodeInfo;
                     }
-                } finally {
+                } else {
+                    Uri readUri = stage(backgroundBitmapProviderImageUri);
+                    metrics.startStage(null);
+                    AssetFileDescriptor assetFileDescriptor = contentResolver.openAssetFileDescriptor(readUri, "r");
+                    metrics.addOpenNanos(metrics.endStage(null));
                     try {
-                        assetFileDescriptor.close();
-                    } catch (IOException e) {
-                        // ignore
+                        metrics.startStage(null);
+                        bitmap = backgroundBitmapProvider.provideBitmap(assetFileDescriptor);
+                        metrics.addDecodeNanos(metrics.endStage(null));
+                        decodeInfo = null;
+                    } finally {
+                        try {
+                            assetFileDescriptor.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
                     }
                 }
 
                 if (bitmap == null) {
                     throw new IOException("Decoding image file FAILED for unknown reason");
                 }
+                metrics.recordOutput(bitmap, decodeInfo);
+                if (duplicateIndex != null && decodeInfo != null) {
+                    metrics.startStage(null);
+                    decodeInfo = Fingerprinter.fingerprint(bitmap, decodeInfo, backgroundBitmapProviderImageUri.toString(), duplicateIndex);
+                    metrics.addPostProcessNanos(metrics.endStage(null));
+                }
             } catch (IOException e) {
-                return new DecodeReceivedImageTaskResult(null, null, e, null, null);
+                return new DecodeReceivedImageTaskResult(null, null, null, null, null, e, null, null);
             } catch (OutOfMemoryError e) {
-                return new DecodeReceivedImageTaskResult(null, null, null, e, null);
+                return new DecodeReceivedImageTaskResult(null, null, null, null, null, null, e, null);
             } catch (NullPointerException e) {
                 // This NPE seems to be OOM related
-                return new DecodeReceivedImageTaskResult(null, null, null, null, e);
+                return new DecodeReceivedImageTaskResult(null, null, null, null, null, null, null, e);
+            }
+
+            CapturedImage capturedImage = null;
+            CapturedImage.LocalCopy localCopy = null;
+            if (handleStore != null) {
+                // only the cache's own copy outlives the delivery, which hands the bitmap to the callback
+                DecodedImageCache.Entry cachedEntry = cacheKey == null ? null : decodedImageCache.peekMemory(cacheKey);
+                if (cachedEntry != null) {
+                    try {
+                        localCopy = CapturedImage.LocalCopy.reserve(cachedEntry.bitmap, handleStore);
+                    } catch (IOException e) {
+                        // reload from the cache or the source
+                    }
+                }
+                capturedImage = CapturedImage.create(backgroundBitmapProviderImageUri, decodeSpec, cacheKey, bitmap, localCopy);
+            }
+            return new DecodeReceivedImageTaskResult(bitmap, decodeInfo, capturedImage, localCopy, imageUri, null, null, null);
+        }
+
+        private BitmapDecoder.DecodedBitmap decode(ContentResolver contentResolver, Uri sourceUri) throws IOException {
+            if (decodeSpec == null) {
+                return decodeUncached(contentResolver, sourceUri, null);
+            }
+            // a prefetched image is cached under its MediaStore Uri, which the picker may have disguised
+            Uri cacheUri = prefetchedUri != null ? prefetchedUri : sourceUri;
+            DecodedImageCache.Key cacheKey = DecodedImageCache.createKey(contentResolver, cacheUri, decodeSpec);
+            if (cacheKey == null) {
+                return decodeUncached(contentResolver, sourceUri, null);
             }
+            this.cacheKey = cacheKey;
 
-            return new DecodeReceivedImageTaskResult(bitmap, imageUri, null, null, null);
+            metrics.startStage(null);
+            try {
+                decodedImageCache.lock(cacheKey);
+            } catch (InterruptedException e) {
+                // cancelled
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for another decode of the same image");
+            }
+            try {
+                DecodedImageCache.Entry cachedEntry = decodedImageCache.get(cacheKey);
+                metrics.addDecodeNanos(metrics.endStage(null));
+                if (cachedEntry != null) {
+                    return new BitmapDecoder.DecodedBitmap(cachedEntry.bitmap, cachedEntry.decodeInfo);
+                }
+                return decodeUncached(contentResolver, sourceUri, cacheKey);
+            } finally {
+                decodedImageCache.unlock(cacheKey);
+            }
         }
 
-        @Override
-        protected void onPostExecute(DecodeReceivedImageTaskResult result) {
-            decodeReceivedImageAsyncTask = null;
-            if (!isCancelled()) {
-                if (result.bitmap != null) {
-                    File imageFile = imageTemporaryFile.exists() ? imageTemporaryFile : null;
-                    imageCapturedCallback.onImageCaptured(result.bitmap, result.imageLocationUri, imageFile);
-                } else if (result.ioException != null) {
-                    imageCapturedCallback.onImageCaptureFailed(result.ioException);
+        /**
+         * Stage the image first if it is remote, so the source is opened once, by the copy, and everything else
+         * reads the local file.
+         *
+         * @param cacheKey where to cache the decoded image or <code>null</code>
+         */
+        private BitmapDecoder.DecodedBitmap decodeUncached(ContentResolver contentResolver, Uri sourceUri, DecodedImageCache.Key cacheKey) throws IOException {
+            ImageSource imageSource = decodeControl.open(contentResolver, stage(sourceUri));
+            BitmapDecoder.DecodedBitmap decodedBitmap;
+            try {
+                metrics.startStage(imageSource);
+                ImageHeader imageHeader = imageSource.readHeader();
+                metrics.addBoundsNanos(metrics.endStage(imageSource));
+                metrics.recordHeader(imageHeader);
+                if (decodePreview) {
+                    metrics.startStage(imageSource);
+                    publishPreview(imageSource, imageHeader);
+                    metrics.addPreviewNanos(metrics.endStage(imageSource));
+                }
+                metrics.startStage(imageSource);
+                if (transformChain != null) {
+                    decodedBitmap = TransformingDecoder.decode(imageSource, imageHeader, transformChain, bitmapPool, memoryGovernor, decodeControl);
                 } else {
-                    imageCapturedCallback.onImageCaptureOutOfMemory(result.outOfMemoryError, result.nullPointerException);
+                    decodedBitmap = BitmapDecoder.decode(imageSource, imageHeader, decodeSpec, bitmapPool, memoryGovernor, decodeControl);
+                }
+                metrics.addDecodeNanos(metrics.endStage(imageSource));
+            } finally {
+                decodeControl.close(imageSource);
+                metrics.recordSource(imageSource);
+            }
+
+            if (cacheKey != null && decodedBitmap != null) {
+                metrics.startStage(null);
+                decodedImageCache.put(cacheKey, decodedBitmap.bitmap, decodedBitmap.decodeInfo, memoryGovernor, decodeExecutor);
+                metrics.addPostProcessNanos(metrics.endStage(null));
+            }
+            return decodedBitmap;
+        }
+
+        /**
+         * @return where to read <code>sourceUri</code> from, a local copy if it is staged
+         */
+        private Uri stage(Uri sourceUri) throws IOException {
+            if (imageStager != null) {
+                File stagedImageFile = imageStager.stage(sourceUri, decodeControl, metrics);
+                if (stagedImageFile != null) {
+                    stagedFile = stagedImageFile;
+                    return Uri.fromFile(stagedImageFile);
+                }
+            }
+            return sourceUri;
+        }
+
+        private void publishPreview(ImageSource imageSource, ImageHeader imageHeader) {
+            try {
+                Bitmap preview = BitmapDecoder.decodePreview(imageSource, imageHeader, PREVIEW_MAX_DIMENSION, decodeControl);
+                if (preview != null) {
+                    publishProgress(preview);
                 }
+            } catch (IOException e) {
+                // no preview. The full decode reports failures.
+            } catch (OutOfMemoryError e) {
+                // no preview. The full decode reports failures.
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(final Bitmap... previews) {
+            if (isCancelled()) {
+                bitmapPool.put(previews[0]);
+            } else {
+                captureRegistry.deliver(captureId, new CaptureRegistry.Delivery() {
+                    @Override
+                    public void deliver(Object callback, CaptureMetricsListener metricsListener) {
+                        // the callback may have been replaced by one that doesn't want previews
+                        if (callback instanceof ImagePreviewCallback) {
+                            ((ImagePreviewCallback) callback).onImagePreview(previews[0], imageUri);
+                        } else {
+                            bitmapPool.put(previews[0]);
+                        }
+                    }
+
+                    @Override
+                    public void discard() {
+                        bitmapPool.put(previews[0]);
+                    }
+                }, false);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(final DecodeReceivedImageTaskResult result) {
+            if (!isCancelled()) {
+                captureRegistry.deliver(captureId, new CaptureRegistry.Delivery() {
+                    @Override
+                    public void deliver(Object callback, CaptureMetricsListener metricsListener) {
+                        ImageCapturedCallback imageCapturedCallback = (ImageCapturedCallback) callback;
+                        if (result.bitmap != null) {
+                            File imageFile = stagedFile != null ? stagedFile : (imageTemporaryFile.exists() ? imageTemporaryFile : null);
+                            if (imageCapturedCallback instanceof CapturedImageCallback && result.capturedImage != null) {
+                                ((CapturedImageCallback) imageCapturedCallback).onImageCaptured(result.bitmap, result.capturedImage);
+                                if (result.localCopy != null) {
+                                    // encoded after the delivery, so it never delays the callback
+                                    decodeExecutor.execute(result.localCopy, DecodeExecutor.Priority.BACKGROUND);
+                                }
+                            } else {
+                                if (result.localCopy != null) {
+                                    // nobody got the handle
+                                    result.localCopy.discard();
+                                }
+                                if (imageCapturedCallback instanceof DetailedImageCapturedCallback) {
+                                    ((DetailedImageCapturedCallback) imageCapturedCallback).onImageCaptured(result.bitmap, result.imageLocationUri, imageFile, result.decodeInfo);
+                                } else {
+                                    imageCapturedCallback.onImageCaptured(result.bitmap, result.imageLocationUri, imageFile);
+                                }
+                            }
+                        } else if (result.ioException != null) {
+                            imageCapturedCallback.onImageCaptureFailed(result.ioException);
+                        } else {
+                            imageCapturedCallback.onImageCaptureOutOfMemory(result.outOfMemoryError, result.nullPointerException);
+                        }
+                        if (metricsListener != null) {
+                            metricsListener.onCaptureMetrics(metrics.build(result.bitmap != null));
+                        }
+                    }
+
+                    @Override
+                    public void discard() {
+                        discardResult(result);
+                    }
+                }, true);
+            }
+        }
+
+        /**
+         * Runs instead of {@link #onPostExecute} once the task is cancelled.
+         */
+        @Override
+        protected void onCancelled(DecodeReceivedImageTaskResult result) {
+            if (result != null) {
+                discardResult(result);
+            }
+        }
+
+        private void discardResult(DecodeReceivedImageTaskResult result) {
+            // cached images are handed out as copies, so the bitmap is always ours to reuse
+            if (result.bitmap != null) {
+                bitmapPool.put(result.bitmap);
+            }
+            if (result.localCopy != null) {
+                result.localCopy.discard();
+            }
+            if (imageStager != null) {
+                imageStager.release(true);
             }
         }
     }
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Downsamples a captured image and encodes it straight to a file in the background, then delivers the file through
+ * the {@link CaptureRegistry} to a {@link ImageCapturer.ImageEncodedCallback} on the main thread. The decoded {@link android.graphics.Bitmap}
+ * never leaves the background thread and goes back to the {@link BitmapPool} afterwards.
+ */
+final class ImageEncoder implements Runnable, CaptureRegistry.Work {
+    private final ContentResolver contentResolver;
+    private final Uri imageUri;
+    private final File imageFile;
+    private final File outputDirectory;
+    private final EncodeSpec encodeSpec;
+    private final BitmapPool bitmapPool;
+    private final MemoryGovernor memoryGovernor;
+    private final DuplicateIndex duplicateIndex;
+    private final CaptureMetrics.Recorder metrics;
+    private final ImageStager imageStager;
+    private final CaptureRegistry captureRegistry;
+    private final String captureId;
+    private final DecodeControl decodeControl = new DecodeControl();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean cancelled;
+
+    /**
+     * @param imageUri        the picked image or <code>null</code> to encode <code>imageFile</code> instead.
+     * @param imageFile       the file a camera may have written to.
+     * @param outputDirectory where encoded files are written
+     * @param duplicateIndex  skips encoding images that were captured before. May be <code>null</code>.
+     * @param metrics         encoding counts as post-processing
+     * @param imageStager     copies a remote image to a local file first. May be <code>null</code>.
+     * @param captureId       what the capture is registered as in <code>captureRegistry</code>
+     */
+    ImageEncoder(
+            ContentResolver contentResolver,
+            Uri imageUri,
+            File imageFile,
+            File outputDirectory,
+            EncodeSpec encodeSpec,
+            BitmapPool bitmapPool,
+            MemoryGovernor memoryGovernor,
+            DuplicateIndex duplicateIndex,
+            CaptureMetrics.Recorder metrics,
+            ImageStager imageStager,
+            CaptureRegistry captureRegistry,
+            String captureId) {
+        this.contentResolver = contentResolver;
+        this.imageUri = imageUri;
+        this.imageFile = imageFile;
+        this.outputDirectory = outputDirectory;
+        this.encodeSpec = encodeSpec;
+        this.bitmapPool = bitmapPool;
+        this.memoryGovernor = memoryGovernor;
+        this.duplicateIndex = duplicateIndex;
+        this.metrics = metrics;
+        this.imageStager = imageStager;
+        this.captureRegistry = captureRegistry;
+        this.captureId = captureId;
+    }
+
+    @Override
+    public void start(Executor executor) {
+        executor.execute(this);
+    }
+
+    /**
+     * Stop delivering the result. A file encoded after this is deleted.
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+        decodeControl.cancel();
+    }
+
+    @Override
+    public DecodeControl getDecodeControl() {
+        return decodeControl;
+    }
+
+    @Override
+    public void run() {
+        if (cancelled) {
+            return;
+        }
+        metrics.backgroundStarted();
+
+        Uri sourceUri = imageUri == null ? Uri.fromFile(imageFile) : imageUri;
+        EncodedImage encodedImage;
+        try {
+            encodedImage = encode(sourceUri);
+        } catch (IOException e) {
+            encodedImage = new EncodedImage(null, null, 0, 0, 0, e, null, null);
+        } catch (OutOfMemoryError e) {
+            encodedImage = new EncodedImage(null, null, 0, 0, 0, null, e, null);
+        } catch (NullPointerException e) {
+            // This NPE seems to be OOM related
+            encodedImage = new EncodedImage(null, null, 0, 0, 0, null, null, e);
+        } catch (RuntimeException e) {
+            // like a SecurityException from a provider that no longer grants access
+            encodedImage = new EncodedImage(null, null, 0, 0, 0, new IOException("Reading image FAILED: " + e, e), null, null);
+        }
+
+        metrics.backgroundFinished();
+        final EncodedImage result = encodedImage;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliver(result);
+            }
+        });
+    }
+
+    private EncodedImage encode(Uri sourceUri) throws IOException {
+        BitmapDecoder.DecodedBitmap decodedBitmap;
+        File stagedFile = imageStager == null ? null : imageStager.stage(sourceUri, decodeControl, metrics);
+        ImageSource imageSource = decodeControl.open(contentResolver, stagedFile == null ? sourceUri : Uri.fromFile(stagedFile));
+        try {
+            metrics.startStage(imageSource);
+            ImageHeader imageHeader = imageSource.readHeader();
+            metrics.addBoundsNanos(metrics.endStage(imageSource));
+            metrics.recordHeader(imageHeader);
+            metrics.startStage(imageSource);
+            decodedBitmap = BitmapDecoder.decode(imageSource, imageHeader, encodeSpec.toDecodeSpec(), bitmapPool, memoryGovernor, decodeControl);
+            metrics.addDecodeNanos(metrics.endStage(imageSource));
+        } finally {
+            decodeControl.close(imageSource);
+            metrics.recordSource(imageSource);
+        }
+        if (decodedBitmap == null) {
+            throw new IOException("Decoding image file FAILED for unknown reason");
+        }
+
+        Bitmap bitmap = decodedBitmap.bitmap;
+        metrics.recordOutput(bitmap, decodedBitmap.decodeInfo);
+        metrics.startStage(null);
+        try {
+            if (duplicateIndex != null) {
+                DecodeInfo decodeInfo = Fingerprinter.fingerprint(bitmap, decodedBitmap.decodeInfo, sourceUri.toString(), duplicateIndex);
+                if (decodeInfo.getDuplicateOf() != null) {
+                    throw new DuplicateImageException(decodeInfo.getDuplicateOf(), decodeInfo.getPerceptualHash());
+                }
+            }
+            if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+                throw new IOException("Couldn't create encoded image directory: " + outputDirectory);
+            }
+            File encodedFile = new File(outputDirectory, "upload-" + UUID.randomUUID().toString() + encodeSpec.getFileExtension());
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(encodedFile));
+            boolean encoded = false;
+            long byteCount;
+            try {
+                if (!bitmap.compress(encodeSpec.getFormat(), encodeSpec.getQuality(), out)) {
+                    throw new IOException("Encoding image FAILED: " + encodeSpec);
+                }
+                out.close();
+                // here rather than on the main thread, where stat-ing the file could block
+                byteCount = encodedFile.length();
+                encoded = true;
+            } finally {
+                if (!encoded) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                    encodedFile.delete();
+                }
+            }
+            return new EncodedImage(encodedFile, stagedFile, byteCount, bitmap.getWidth(), bitmap.getHeight(), null, null, null);
+        } finally {
+            bitmapPool.put(bitmap);
+            metrics.addPostProcessNanos(metrics.endStage(null));
+        }
+    }
+
+    private void deliver(final EncodedImage encodedImage) {
+        if (cancelled) {
+            if (encodedImage.file != null) {
+                encodedImage.file.delete();
+            }
+            return;
+        }
+
+        captureRegistry.deliver(captureId, new CaptureRegistry.Delivery() {
+            @Override
+            public void deliver(Object callback, ImageCapturer.CaptureMetricsListener metricsListener) {
+                ImageCapturer.ImageEncodedCallback imageEncodedCallback = (ImageCapturer.ImageEncodedCallback) callback;
+                if (encodedImage.file != null) {
+                    File deliveredImageFile;
+                    if (encodedImage.stagedFile != null) {
+                        deliveredImageFile = encodedImage.stagedFile;
+                    } else {
+                        deliveredImageFile = (imageUri == null && imageFile.exists()) ? imageFile : null;
+                    }
+                    imageEncodedCallback.onImageEncoded(encodedImage.file, encodedImage.byteCount, encodedImage.width, encodedImage.height, imageUri, deliveredImageFile);
+                } else if (encodedImage.ioException != null) {
+                    imageEncodedCallback.onImageCaptureFailed(encodedImage.ioException);
+                } else {
+                    imageEncodedCallback.onImageCaptureOutOfMemory(encodedImage.outOfMemoryError, encodedImage.nullPointerException);
+                }
+                if (metricsListener != null) {
+                    metricsListener.onCaptureMetrics(metrics.build(encodedImage.file != null));
+                }
+            }
+
+            @Override
+            public void discard() {
+                if (encodedImage.file != null) {
+                    encodedImage.file.delete();
+                }
+            }
+        }, true);
+    }
+
+    private static class EncodedImage {
+        public final File file;
+        public final File stagedFile;
+        public final long byteCount;
+        public final int width;
+        public final int height;
+        public final IOException ioException;
+        public final OutOfMemoryError outOfMemoryError;
+        public final NullPointerException nullPointerException;
+
+        public EncodedImage(
+                File file,
+                File stagedFile,
+                long byteCount,
+                int width,
+                int height,
+                IOException ioException,
+                OutOfMemoryError outOfMemoryError,
+                NullPointerException nullPointerException) {
+            this.file = file;
+            this.stagedFile = stagedFile;
+            this.byteCount = byteCount;
+            this.width = width;
+            this.height = height;
+            this.ioException = ioException;
+            this.outOfMemoryError = outOfMemoryError;
+            this.nullPointerException = nullPointerException;
+        }
+    }
+}
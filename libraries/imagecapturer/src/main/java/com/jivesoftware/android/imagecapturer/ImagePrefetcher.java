@@ -0,0 +1,416 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the newest MediaStore images in the background while the image source chooser is showing, on the bet
+ * that the user picks one of them. See {@link ImageCapturer#setPrefetch(int, DecodeSpec)}.
+ * <p/>
+ * Prefetched images go into the {@link DecodedImageCache}'s memory, so a capture that asks for the same
+ * {@link DecodeSpec} finds them there. Everything still running is cancelled when the result arrives, and the
+ * images that weren't picked are dropped from the cache again. Reading MediaStore needs the
+ * <code>READ_EXTERNAL_STORAGE</code> permission; without it nothing is prefetched.
+ */
+public class ImagePrefetcher {
+    private static final String MEDIA_AUTHORITY = "media";
+    private static final String MEDIA_DOCUMENTS_AUTHORITY = "com.android.providers.media.documents";
+
+    private static ImagePrefetcher instance;
+
+    private final ContentResolver contentResolver;
+    private final DecodedImageCache decodedImageCache;
+    private final BitmapPool bitmapPool;
+    private final DecodeExecutor decodeExecutor;
+    private Session session;
+    private int sessionCount;
+    private int prefetchedCount;
+    private int hitCount;
+    private int missCount;
+    private int wastedCount;
+
+    public static synchronized ImagePrefetcher getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImagePrefetcher(
+                    context.getApplicationContext().getContentResolver(),
+                    DecodedImageCache.getInstance(context),
+                    BitmapPool.getInstance(context),
+                    DecodeExecutor.getInstance(context));
+        }
+        return instance;
+    }
+
+    /**
+     * @return the shared prefetcher, or <code>null</code> if nothing has used it yet
+     */
+    static synchronized ImagePrefetcher getInstanceIfCreated() {
+        return instance;
+    }
+
+    ImagePrefetcher(ContentResolver contentResolver, DecodedImageCache decodedImageCache, BitmapPool bitmapPool, DecodeExecutor decodeExecutor) {
+        this.contentResolver = contentResolver;
+        this.decodedImageCache = decodedImageCache;
+        this.bitmapPool = bitmapPool;
+        this.decodeExecutor = decodeExecutor;
+    }
+
+    /**
+     * Start prefetching the <code>imageCount</code> newest images, cancelling any earlier prefetch.
+     */
+    synchronized void start(int imageCount, DecodeSpec decodeSpec, long memoryHeadroomBytes) {
+        cancel();
+        final Session newSession = new Session(imageCount, decodeSpec, new MemoryGovernor(memoryHeadroomBytes));
+        session = newSession;
+        sessionCount++;
+        decodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                newSession.queryAndPrefetch();
+            }
+        }, DecodeExecutor.Priority.BACKGROUND);
+    }
+
+    /**
+     * Stop prefetching because the chooser returned <code>pickedUri</code>, and count whether it was prefetched.
+     * Prefetched images that weren't picked are dropped from the cache.
+     *
+     * @param pickedUri the image the user picked or <code>null</code> if it came from the camera or nothing was picked
+     * @return the MediaStore {@link android.net.Uri} <code>pickedUri</code> was prefetched under, or <code>null</code>
+     */
+    synchronized Uri finish(Uri pickedUri) {
+        if (session == null) {
+            return null;
+        }
+        Session finishedSession = session;
+        session = null;
+        long pickedId = pickedUri == null ? -1 : getMediaId(pickedUri);
+        Uri prefetchedUri = finishedSession.finish(pickedId);
+        if (pickedUri != null) {
+            if (prefetchedUri != null) {
+                hitCount++;
+            } else {
+                missCount++;
+            }
+        }
+        return prefetchedUri;
+    }
+
+    /**
+     * Stop prefetching without a result. Prefetched images stay cached.
+     */
+    synchronized void cancel() {
+        if (session != null) {
+            session.cancel();
+            session = null;
+        }
+    }
+
+    private synchronized void recordPrefetched() {
+        prefetchedCount++;
+    }
+
+    private synchronized void recordWasted(int count) {
+        wastedCount += count;
+    }
+
+    /**
+     * @return how many times the chooser was opened with prefetching on
+     */
+    public synchronized int getSessionCount() {
+        return sessionCount;
+    }
+
+    /**
+     * @return how many images were decoded ahead of time
+     */
+    public synchronized int getPrefetchedCount() {
+        return prefetchedCount;
+    }
+
+    /**
+     * @return how many picked images had been prefetched, or were being prefetched when they were picked
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return how many picked images weren't among the prefetched ones
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return how many prefetched images weren't picked
+     */
+    public synchronized int getWastedCount() {
+        return wastedCount;
+    }
+
+    /**
+     * @return the fraction of picked images that had been prefetched
+     */
+    public synchronized float getHitRate() {
+        int pickedCount = hitCount + missCount;
+        return pickedCount == 0 ? 0 : hitCount / (float) pickedCount;
+    }
+
+    /**
+     * @return the fraction of prefetched images that weren't picked
+     */
+    public synchronized float getWasteRate() {
+        return prefetchedCount == 0 ? 0 : wastedCount / (float) prefetchedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImagePrefetcher{sessions=" + sessionCount + ", prefetched=" + prefetchedCount +
+                ", hits=" + hitCount + ", misses=" + missCount + ", wasted=" + wastedCount + "}";
+    }
+
+    /**
+     * @return the MediaStore id of <code>uri</code>, from either the media provider or the media documents
+     * provider, or -1 if it isn't a MediaStore image
+     */
+    static long getMediaId(Uri uri) {
+        if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            return -1;
+        }
+        String lastSegment = uri.getLastPathSegment();
+        if (lastSegment == null) {
+            return -1;
+        }
+        if (MEDIA_DOCUMENTS_AUTHORITY.equals(uri.getAuthority())) {
+            // document ids look like "image:123"
+            int colon = lastSegment.indexOf(':');
+            if (colon < 0 || !"image".equals(lastSegment.substring(0, colon))) {
+                return -1;
+            }
+            lastSegment = lastSegment.substring(colon + 1);
+        } else if (!MEDIA_AUTHORITY.equals(uri.getAuthority())) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(lastSegment);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * One opening of the chooser. Each image has its own {@link DecodeControl}, so the one that gets picked can
+     * keep decoding while the rest are cancelled.
+     */
+    private class Session {
+        private final int imageCount;
+        private final DecodeSpec decodeSpec;
+        private final MemoryGovernor memoryGovernor;
+        // guarded by this
+        private final Map<Long, DecodeControl> decodeControls = new HashMap<Long, DecodeControl>();
+        private final Map<Long, Prefetched> prefetched = new HashMap<Long, Prefetched>();
+        private boolean cancelled;
+        private long pickedId = -1;
+
+        private Session(int imageCount, DecodeSpec decodeSpec, MemoryGovernor memoryGovernor) {
+            this.imageCount = imageCount;
+            this.decodeSpec = decodeSpec;
+            this.memoryGovernor = memoryGovernor;
+        }
+
+        void queryAndPrefetch() {
+            List<Long> ids = queryNewestImageIds();
+            for (final Long id : ids) {
+                final DecodeControl decodeControl = new DecodeControl();
+                synchronized (this) {
+                    if (cancelled) {
+                        return;
+                    }
+                    decodeControls.put(id, decodeControl);
+                }
+                decodeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        prefetch(id, decodeControl);
+                    }
+                }, DecodeExecutor.Priority.BACKGROUND);
+            }
+        }
+
+        private List<Long> queryNewestImageIds() {
+            List<Long> ids = new ArrayList<Long>();
+            Cursor cursor;
+            try {
+                cursor = contentResolver.query(
+                        MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                        new String[]{BaseColumns._ID},
+                        null,
+                        null,
+                        MediaStore.Images.ImageColumns.DATE_TAKEN + " DESC");
+            } catch (RuntimeException e) {
+                // no storage permission, or no MediaStore at all
+                return ids;
+            }
+            if (cursor == null) {
+                return ids;
+            }
+            try {
+                while (ids.size() < imageCount && cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            return ids;
+        }
+
+        private void prefetch(long id, DecodeControl decodeControl) {
+            if (decodeControl.isCancelled()) {
+                return;
+            }
+            Uri uri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id);
+            DecodedImageCache.Key cacheKey = DecodedImageCache.createKey(contentResolver, uri, decodeSpec);
+            if (cacheKey == null) {
+                return;
+            }
+            try {
+                // a capture of the same image waits for this decode instead of repeating it
+                decodedImageCache.lock(cacheKey);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                if (decodedImageCache.isInMemory(cacheKey)) {
+                    // cached by an earlier capture. It isn't ours to drop.
+                    record(id, uri, cacheKey, null);
+                    return;
+                }
+                ImageSource imageSource = decodeControl.open(contentResolver, uri);
+                BitmapDecoder.DecodedBitmap decodedBitmap;
+                try {
+                    ImageHeader imageHeader = imageSource.readHeader();
+                    decodedBitmap = BitmapDecoder.decode(imageSource, imageHeader, decodeSpec, bitmapPool, memoryGovernor, decodeControl);
+                } finally {
+                    decodeControl.close(imageSource);
+                }
+                if (decodedBitmap != null) {
+                    decodedImageCache.putInMemory(cacheKey, decodedBitmap.bitmap, decodedBitmap.decodeInfo);
+                    recordPrefetched();
+                    record(id, uri, cacheKey, decodedBitmap);
+                }
+            } catch (IOException e) {
+                // cancelled or unreadable. The capture decodes it itself if it is picked.
+            } catch (OutOfMemoryError e) {
+                // speculative, so never worth failing over
+            } finally {
+                decodedImageCache.unlock(cacheKey);
+            }
+        }
+
+        private void record(long id, Uri uri, DecodedImageCache.Key cacheKey, BitmapDecoder.DecodedBitmap decodedBitmap) {
+            boolean drop;
+            synchronized (this) {
+                decodeControls.remove(id);
+                drop = cancelled && id != pickedId;
+                if (!drop) {
+                    prefetched.put(id, new Prefetched(uri, cacheKey, decodedBitmap));
+                }
+            }
+            if (drop && decodedBitmap != null) {
+                // finished after the result arrived and wasn't picked
+                decodedImageCache.removeFromMemory(cacheKey, decodedBitmap.bitmap);
+                recordWasted(1);
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            for (DecodeControl decodeControl : decodeControls.values()) {
+                decodeControl.cancel();
+            }
+            decodeControls.clear();
+        }
+
+        /**
+         * @return the MediaStore {@link android.net.Uri} of <code>pickedId</code> if it was prefetched or is still
+         * being prefetched
+         */
+        Uri finish(long pickedId) {
+            List<Prefetched> unpicked = new ArrayList<Prefetched>();
+            Uri pickedUri = null;
+            synchronized (this) {
+                cancelled = true;
+                this.pickedId = pickedId;
+                for (Map.Entry<Long, DecodeControl> entry : decodeControls.entrySet()) {
+                    if (entry.getKey() == pickedId) {
+                        // let it finish, the capture is waiting on its cache lock
+                        pickedUri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, pickedId);
+                    } else {
+                        entry.getValue().cancel();
+                    }
+                }
+                decodeControls.clear();
+                for (Map.Entry<Long, Prefetched> entry : prefetched.entrySet()) {
+                    if (entry.getKey() == pickedId) {
+                        pickedUri = entry.getValue().uri;
+                    } else {
+                        unpicked.add(entry.getValue());
+                    }
+                }
+                prefetched.clear();
+            }
+
+            int wasted = 0;
+            for (Prefetched unpickedImage : unpicked) {
+                if (unpickedImage.decodedBitmap != null) {
+                    decodedImageCache.removeFromMemory(unpickedImage.cacheKey, unpickedImage.decodedBitmap.bitmap);
+                    wasted++;
+                }
+            }
+            recordWasted(wasted);
+            return pickedUri;
+        }
+    }
+
+    private static class Prefetched {
+        public final Uri uri;
+        public final DecodedImageCache.Key cacheKey;
+        public final BitmapDecoder.DecodedBitmap decodedBitmap;
+
+        /**
+         * @param decodedBitmap what was decoded, or <code>null</code> if the image was cached already
+         */
+        public Prefetched(Uri uri, DecodedImageCache.Key cacheKey, BitmapDecoder.DecodedBitmap decodedBitmap) {
+            this.uri = uri;
+            this.cacheKey = cacheKey;
+            this.decodedBitmap = decodedBitmap;
+        }
+    }
+}
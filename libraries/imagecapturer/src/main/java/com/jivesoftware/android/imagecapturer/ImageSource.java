@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A captured image that the decode stages read through one buffered stream.
+ * <p/>
+ * Each stage calls {@link #openStream()} to read from the start of the image. That rewinds the stream that
+ * is already open when possible, and only opens the source again when an earlier stage read too far.
+ * <p/>
+ * It is used by one thread, except for {@link #cancel()} and {@link #getBytesRead()}.
+ */
+final class ImageSource {
+    private final ContentResolver contentResolver;
+    private final Uri uri;
+    private volatile RewindableInputStream stream;
+    private volatile long closedStreamBytesRead;
+    private volatile boolean cancelled;
+    private int openCount;
+    private long openNanos;
+
+    ImageSource(ContentResolver contentResolver, Uri uri) {
+        this.contentResolver = contentResolver;
+        this.uri = uri;
+    }
+
+    Uri getUri() {
+        return uri;
+    }
+
+    /**
+     * @return a stream positioned at the start of the image. Don't close it, call {@link #close()} instead.
+     */
+    RewindableInputStream openStream() throws IOException {
+        if (cancelled) {
+            throw new IOException("Cancelled: " + uri);
+        }
+        if (stream != null) {
+            if (stream.canRewind()) {
+                stream.rewind();
+                return stream;
+            }
+            close();
+        }
+
+        long openStartedAtNanos = System.nanoTime();
+        try {
+            RewindableInputStream openedStream = new RewindableInputStream(openSourceStream(), RewindableInputStream.HEADER_REWIND_LIMIT);
+            stream = openedStream;
+            openCount++;
+            if (cancelled) {
+                // cancel() ran while opening and didn't see the new stream
+                close();
+                throw new IOException("Cancelled: " + uri);
+            }
+            return openedStream;
+        } finally {
+            openNanos += System.nanoTime() - openStartedAtNanos;
+        }
+    }
+
+    private InputStream openSourceStream() throws IOException {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            // local files, including staged copies of remote images, are read through a memory mapping
+            return MappedFileInputStream.open(new File(uri.getPath()));
+        }
+        AssetFileDescriptor assetFileDescriptor = contentResolver.openAssetFileDescriptor(uri, "r");
+        if (assetFileDescriptor == null) {
+            throw new IOException("Couldn't open image: " + uri);
+        }
+        // honors the descriptor's start offset and length, and closes it with the stream
+        return assetFileDescriptor.createInputStream();
+    }
+
+    /**
+     * Read the format and dimensions of the image, in pure Java when the format is known and with a
+     * bounds-only native decode otherwise. The EXIF orientation of JPEGs is read too.
+     */
+    ImageHeader readHeader() throws IOException {
+        ImageHeader imageHeader = ImageHeaderSniffer.sniff(openStream());
+        if (imageHeader != null) {
+            if (imageHeader.format == ImageHeader.Format.JPEG) {
+                // EXIF comes before the frame header, so this only reads what the sniff already buffered
+                imageHeader = imageHeader.withOrientation(ExifReader.readOrientation(openStream()));
+            }
+            return imageHeader;
+        }
+
+        BitmapFactory.Options boundsOpts = new BitmapFactory.Options();
+        boundsOpts.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(openStream(), null, boundsOpts);
+        if (boundsOpts.outWidth <= 0 || boundsOpts.outHeight <= 0) {
+            throw new IOException("Decoding image bounds FAILED");
+        }
+        return new ImageHeader(ImageHeader.Format.OTHER, boundsOpts.outWidth, boundsOpts.outHeight);
+    }
+
+    /**
+     * @return the bytes read from the source so far, across every time it was opened
+     */
+    long getBytesRead() {
+        RewindableInputStream currentStream = stream;
+        return closedStreamBytesRead + (currentStream == null ? 0 : currentStream.getSourceBytesRead());
+    }
+
+    /**
+     * @return how many times the source was opened
+     */
+    int getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * @return nanoseconds spent opening the source, across every time it was opened
+     */
+    long getOpenNanos() {
+        return openNanos;
+    }
+
+    /**
+     * Close the source from any thread. Reads in progress, like a native decode, fail soon after and the source
+     * can't be opened again. The thread using it still calls {@link #close()}.
+     */
+    void cancel() {
+        cancelled = true;
+        RewindableInputStream cancelledStream = stream;
+        if (cancelledStream != null) {
+            try {
+                cancelledStream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    void close() {
+        if (stream != null) {
+            closedStreamBytesRead += stream.getSourceBytesRead();
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            stream = null;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies remote captured images, like a cloud gallery's <code>content</code> {@link android.net.Uri}s, into the
+ * {@link TemporaryImageStore} once, so every later stage reads a local file instead of going back to the provider.
+ * <p/>
+ * The copy goes channel to channel with {@link java.nio.channels.FileChannel#transferTo}, which lets the kernel
+ * move the bytes without them passing through the Java heap. It honors the
+ * {@link android.content.res.AssetFileDescriptor}'s start offset and declared length. Providers that hand out a
+ * pipe, which can't be positioned, are read through {@link java.nio.channels.FileChannel#transferFrom} instead.
+ * <p/>
+ * One {@link ImageStager} belongs to one capture. Its files are released when the capture is over.
+ */
+final class ImageStager {
+    private static final long TRANSFER_CHUNK_BYTES = 1024 * 1024;
+
+    private final ContentResolver contentResolver;
+    private final TemporaryImageStore temporaryImageStore;
+    // guarded by this
+    private final List<File> stagedFiles = new ArrayList<File>();
+    private boolean released;
+    private boolean releasedWithDelete;
+
+    ImageStager(ContentResolver contentResolver, TemporaryImageStore temporaryImageStore) {
+        this.contentResolver = contentResolver;
+        this.temporaryImageStore = temporaryImageStore;
+    }
+
+    /**
+     * Copy <code>sourceUri</code> to a local file. Call on a background thread.
+     *
+     * @param metrics records how long the copy took and how big it was. May be <code>null</code>.
+     * @return the local copy, or <code>null</code> if <code>sourceUri</code> is a local file already
+     * @throws IOException if the copy failed or <code>decodeControl</code> was cancelled
+     */
+    File stage(Uri sourceUri, DecodeControl decodeControl, CaptureMetrics.Recorder metrics) throws IOException {
+        if (ContentResolver.SCHEME_FILE.equals(sourceUri.getScheme())) {
+            return null;
+        }
+
+        long startedAtNanos = System.nanoTime();
+        File stagedFile = temporaryImageStore.createFile(getFileExtension(sourceUri));
+        synchronized (this) {
+            stagedFiles.add(stagedFile);
+        }
+        boolean staged = false;
+        try {
+            long byteCount = copy(sourceUri, stagedFile, decodeControl);
+            if (metrics != null) {
+                metrics.recordStaging(System.nanoTime() - startedAtNanos, byteCount);
+            }
+            staged = true;
+        } finally {
+            if (!staged) {
+                release(stagedFile, true);
+            }
+        }
+
+        boolean releaseNow;
+        boolean deleteNow;
+        synchronized (this) {
+            // the capture may have ended while copying
+            releaseNow = released;
+            deleteNow = releasedWithDelete;
+        }
+        if (releaseNow) {
+            release(stagedFile, deleteNow);
+            if (deleteNow) {
+                throw new IOException("Cancelled: " + sourceUri);
+            }
+        }
+        return stagedFile;
+    }
+
+    /**
+     * Give every staged file back to the {@link TemporaryImageStore}, including ones still being copied.
+     *
+     * @param delete <code>true</code> to delete them right away, like when the capture was cancelled
+     */
+    void release(boolean delete) {
+        List<File> releasedFiles;
+        synchronized (this) {
+            released = true;
+            releasedWithDelete = delete;
+            releasedFiles = new ArrayList<File>(stagedFiles);
+            stagedFiles.clear();
+        }
+        for (File file : releasedFiles) {
+            temporaryImageStore.release(file, delete);
+        }
+    }
+
+    private void release(File stagedFile, boolean delete) {
+        synchronized (this) {
+            stagedFiles.remove(stagedFile);
+        }
+        temporaryImageStore.release(stagedFile, delete);
+    }
+
+    private long copy(Uri sourceUri, File stagedFile, DecodeControl decodeControl) throws IOException {
+        AssetFileDescriptor assetFileDescriptor = contentResolver.openAssetFileDescriptor(sourceUri, "r");
+        if (assetFileDescriptor == null) {
+            throw new IOException("Couldn't open image: " + sourceUri);
+        }
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(assetFileDescriptor.getFileDescriptor());
+            out = new FileOutputStream(stagedFile);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+
+            long startOffset = assetFileDescriptor.getStartOffset();
+            long length = assetFileDescriptor.getDeclaredLength();
+            long channelSize = inChannel.size();
+            long byteCount;
+            if (channelSize > 0) {
+                if (length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+                    length = channelSize - startOffset;
+                }
+                byteCount = transferTo(inChannel, startOffset, length, outChannel, decodeControl, sourceUri);
+            } else {
+                // a pipe. The provider wrote nothing before the start offset.
+                byteCount = transferFrom(inChannel, length, outChannel, decodeControl, sourceUri);
+            }
+            out.close();
+            out = null;
+            return byteCount;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            try {
+                assetFileDescriptor.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static long transferTo(FileChannel inChannel, long startOffset, long length, FileChannel outChannel, DecodeControl decodeControl, Uri sourceUri) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            throwIfCancelled(decodeControl, sourceUri);
+            long count = inChannel.transferTo(startOffset + transferred, Math.min(TRANSFER_CHUNK_BYTES, length - transferred), outChannel);
+            if (count <= 0) {
+                throw new IOException("Image ended after " + transferred + " of " + length + " bytes: " + sourceUri);
+            }
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    /**
+     * @param length the most bytes to copy or {@link android.content.res.AssetFileDescriptor#UNKNOWN_LENGTH}
+     */
+    private static long transferFrom(FileChannel inChannel, long length, FileChannel outChannel, DecodeControl decodeControl, Uri sourceUri) throws IOException {
+        long transferred = 0;
+        while (length == AssetFileDescriptor.UNKNOWN_LENGTH || transferred < length) {
+            throwIfCancelled(decodeControl, sourceUri);
+            long chunkBytes = length == AssetFileDescriptor.UNKNOWN_LENGTH ? TRANSFER_CHUNK_BYTES : Math.min(TRANSFER_CHUNK_BYTES, length - transferred);
+            // reads block until the provider writes, so nothing transferred means the pipe is closed
+            long count = outChannel.transferFrom(inChannel, transferred, chunkBytes);
+            if (count <= 0) {
+                break;
+            }
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    private static void throwIfCancelled(DecodeControl decodeControl, Uri sourceUri) throws IOException {
+        if (decodeControl.isCancelled()) {
+            throw new IOException("Cancelled: " + sourceUri);
+        }
+    }
+
+    private String getFileExtension(Uri sourceUri) {
+        String mimeType;
+        try {
+            mimeType = contentResolver.getType(sourceUri);
+        } catch (RuntimeException e) {
+            // some providers throw instead of returning null
+            mimeType = null;
+        }
+        String extension = mimeType == null ? null : MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
+        return extension == null ? ".img" : "." + extension;
+    }
+}
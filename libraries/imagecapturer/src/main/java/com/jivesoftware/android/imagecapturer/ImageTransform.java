@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.view.Gravity;
+
+/**
+ * One step of an {@link ImageTransformChain}. Steps are made by the static factory methods and come in three kinds:
+ * geometric ones (crops and resizes) are folded into the decode, color ones are merged into a single
+ * {@link android.graphics.ColorMatrix}, and overlays are drawn on top last.
+ */
+public abstract class ImageTransform {
+    enum Kind {
+        GEOMETRY,
+        COLOR,
+        OVERLAY
+    }
+
+    private final Kind kind;
+
+    ImageTransform(Kind kind) {
+        this.kind = kind;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    abstract void applyTo(TransformPlan plan);
+
+    /**
+     * Keep part of the image. The edges are fractions of the image as it is at this point of the chain, so
+     * <code>crop(0, 0, 0.5f, 1)</code> keeps the left half.
+     */
+    public static ImageTransform crop(final float left, final float top, final float right, final float bottom) {
+        if (left < 0 || top < 0 || right > 1 || bottom > 1 || left >= right || top >= bottom) {
+            throw new IllegalArgumentException("crop must be a non-empty part of the unit square: " +
+                    left + ", " + top + ", " + right + ", " + bottom);
+        }
+        return new ImageTransform(Kind.GEOMETRY) {
+            @Override
+            void applyTo(TransformPlan plan) {
+                plan.crop(left, top, right, bottom);
+            }
+
+            @Override
+            public String toString() {
+                return "crop(" + left + ", " + top + ", " + right + ", " + bottom + ")";
+            }
+        };
+    }
+
+    /**
+     * Keep the largest centered part of the image that is <code>widthRatio</code>:<code>heightRatio</code>,
+     * for example 1:1 for a square.
+     */
+    public static ImageTransform cropToAspectRatio(final int widthRatio, final int heightRatio) {
+        if (widthRatio < 1 || heightRatio < 1) {
+            throw new IllegalArgumentException("aspect ratio must be positive: " + widthRatio + ":" + heightRatio);
+        }
+        return new ImageTransform(Kind.GEOMETRY) {
+            @Override
+            void applyTo(TransformPlan plan) {
+                float aspectRatio = widthRatio / (float) heightRatio;
+                float width = plan.getOutputWidth();
+                float height = plan.getOutputHeight();
+                if (width / height > aspectRatio) {
+                    float keep = height * aspectRatio / width;
+                    plan.crop((1 - keep) / 2, 0, (1 + keep) / 2, 1);
+                } else {
+                    float keep = width / aspectRatio / height;
+                    plan.crop(0, (1 - keep) / 2, 1, (1 + keep) / 2);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "cropToAspectRatio(" + widthRatio + ":" + heightRatio + ")";
+            }
+        };
+    }
+
+    /**
+     * Shrink the image to fit inside <code>maxWidth</code> x <code>maxHeight</code>. Images are never scaled up.
+     */
+    public static ImageTransform resize(final int maxWidth, final int maxHeight) {
+        if (maxWidth < 1) {
+            throw new IllegalArgumentException("maxWidth must be greater than zero: " + maxWidth);
+        }
+        if (maxHeight < 1) {
+            throw new IllegalArgumentException("maxHeight must be greater than zero: " + maxHeight);
+        }
+        return new ImageTransform(Kind.GEOMETRY) {
+            @Override
+            void applyTo(TransformPlan plan) {
+                plan.fit(maxWidth, maxHeight);
+            }
+
+            @Override
+            public String toString() {
+                return "resize(" + maxWidth + "x" + maxHeight + ")";
+            }
+        };
+    }
+
+    public static ImageTransform grayscale() {
+        ColorMatrix colorMatrix = new ColorMatrix();
+        colorMatrix.setSaturation(0);
+        return colorMatrix(colorMatrix, "grayscale");
+    }
+
+    /**
+     * Recolor every pixel with <code>colorMatrix</code>, see {@link android.graphics.ColorMatrixColorFilter}.
+     */
+    public static ImageTransform colorMatrix(ColorMatrix colorMatrix) {
+        if (colorMatrix == null) {
+            throw new IllegalArgumentException("colorMatrix must not be null");
+        }
+        return colorMatrix(new ColorMatrix(colorMatrix), "colorMatrix");
+    }
+
+    private static ImageTransform colorMatrix(final ColorMatrix colorMatrix, final String name) {
+        return new ImageTransform(Kind.COLOR) {
+            @Override
+            void applyTo(TransformPlan plan) {
+                plan.concatColorMatrix(colorMatrix);
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+
+    /**
+     * Draw <code>watermark</code> at its own size over the finished image.
+     *
+     * @param gravity where to place it, a combination of {@link android.view.Gravity} constants such as
+     *                <code>Gravity.BOTTOM | Gravity.RIGHT</code>
+     * @param margin  the distance from the image's edges, in pixels
+     */
+    public static ImageTransform watermark(final Bitmap watermark, final int gravity, final int margin) {
+        if (watermark == null) {
+            throw new IllegalArgumentException("watermark must not be null");
+        }
+        if (margin < 0) {
+            throw new IllegalArgumentException("margin must not be negative: " + margin);
+        }
+        return new OverlayTransform() {
+            private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+            @Override
+            void draw(Canvas canvas, int width, int height) {
+                Rect container = new Rect(margin, margin, width - margin, height - margin);
+                Rect bounds = new Rect();
+                Gravity.apply(gravity, watermark.getWidth(), watermark.getHeight(), container, bounds);
+                canvas.drawBitmap(watermark, null, bounds, paint);
+            }
+
+            @Override
+            public String toString() {
+                return "watermark(" + watermark.getWidth() + "x" + watermark.getHeight() + ")";
+            }
+        };
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ordered list of {@link ImageTransform}s to run on a captured image while it is decoded, so that for example
+ * crop, resize, grayscale and watermark produce a single output {@link android.graphics.Bitmap}.
+ * <p/>
+ * Crops are decoded as a region and resizes through <code>inSampleSize</code>, so the pixels that are thrown away
+ * are never decoded. Everything else happens in one draw into the output, together with the image's EXIF
+ * orientation. Overlays must come last, because later steps would have to redraw them.
+ */
+public class ImageTransformChain {
+    private final List<ImageTransform> transforms;
+
+    /**
+     * @throws IllegalArgumentException if a geometric or color transform follows an overlay
+     */
+    public ImageTransformChain(ImageTransform... transforms) {
+        boolean overlaid = false;
+        for (ImageTransform transform : transforms) {
+            if (transform == null) {
+                throw new IllegalArgumentException("transforms must not contain null");
+            }
+            if (transform.getKind() == ImageTransform.Kind.OVERLAY) {
+                overlaid = true;
+            } else if (overlaid) {
+                throw new IllegalArgumentException(transform + " must come before the overlays: " + Arrays.toString(transforms));
+            }
+        }
+        this.transforms = Collections.unmodifiableList(new ArrayList<ImageTransform>(Arrays.asList(transforms)));
+    }
+
+    public List<ImageTransform> getTransforms() {
+        return transforms;
+    }
+
+    /**
+     * Work out what the chain does to an upright <code>width</code> x <code>height</code> image.
+     */
+    TransformPlan plan(int width, int height) {
+        TransformPlan plan = new TransformPlan(width, height);
+        for (ImageTransform transform : transforms) {
+            transform.applyTo(plan);
+        }
+        return plan;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageTransformChain" + transforms;
+    }
+}
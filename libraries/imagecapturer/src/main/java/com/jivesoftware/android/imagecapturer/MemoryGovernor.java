@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Checks how much memory a decode will need before it runs and downgrades it to fit in the heap that is left,
+ * so that {@link ImageCapturer.ImageCapturedCallback#onImageCaptureOutOfMemory} is a last resort.
+ * <p/>
+ * A decode that doesn't fit is first switched from {@link android.graphics.Bitmap.Config#ARGB_8888} to
+ * {@link android.graphics.Bitmap.Config#RGB_565}, then subsampled by ever larger powers of two.
+ */
+final class MemoryGovernor {
+    private final long headroomBytes;
+
+    /**
+     * @param headroomBytes memory to leave free for the rest of the app after the decode
+     */
+    MemoryGovernor(long headroomBytes) {
+        if (headroomBytes < 0) {
+            throw new IllegalArgumentException("headroomBytes must not be negative: " + headroomBytes);
+        }
+        this.headroomBytes = headroomBytes;
+    }
+
+    long getAvailableBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        long usedBytes = runtime.totalMemory() - runtime.freeMemory();
+        return runtime.maxMemory() - usedBytes - headroomBytes;
+    }
+
+    /**
+     * Downgrade <code>decodeOpts</code> in place until decoding a <code>sourceWidth</code> x <code>sourceHeight</code>
+     * image with them fits in {@link #getAvailableBytes()}.
+     *
+     * @param reoriented <code>true</code> if the decoded {@link android.graphics.Bitmap} is copied to apply its EXIF
+     *                   orientation
+     * @return <code>true</code> if <code>decodeOpts</code> was downgraded.
+     */
+    boolean fit(int sourceWidth, int sourceHeight, BitmapFactory.Options decodeOpts, boolean reoriented) {
+        long availableBytes = getAvailableBytes();
+        if (projectByteCount(sourceWidth, sourceHeight, decodeOpts, reoriented) <= availableBytes) {
+            return false;
+        }
+
+        if (decodeOpts.inPreferredConfig == Bitmap.Config.ARGB_8888) {
+            decodeOpts.inPreferredConfig = Bitmap.Config.RGB_565;
+            if (projectByteCount(sourceWidth, sourceHeight, decodeOpts, reoriented) <= availableBytes) {
+                return true;
+            }
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // exact scaling needs the subsampled bitmap and the scaled one at once. Drop it and subsample further.
+            decodeOpts.inDensity = 0;
+            decodeOpts.inTargetDensity = 0;
+        }
+        do {
+            decodeOpts.inSampleSize *= 2;
+        } while (projectByteCount(sourceWidth, sourceHeight, decodeOpts, reoriented) > availableBytes &&
+                (sourceWidth / decodeOpts.inSampleSize > 1 || sourceHeight / decodeOpts.inSampleSize > 1));
+        return true;
+    }
+
+    /**
+     * @return about how many bytes the decoder will allocate at peak to decode a
+     * <code>sourceWidth</code> x <code>sourceHeight</code> image with <code>decodeOpts</code>.
+     *
+     * @param reoriented <code>true</code> if the decoded {@link android.graphics.Bitmap} is copied to apply its EXIF
+     *                   orientation
+     */
+    static long projectByteCount(int sourceWidth, int sourceHeight, BitmapFactory.Options decodeOpts, boolean reoriented) {
+        int bytesPerPixel = BitmapPool.getBytesPerPixel(decodeOpts.inPreferredConfig);
+        long sampledByteCount = (long) DecodeSizing.calculateOutputDimension(sourceWidth, decodeOpts.inSampleSize, 0, 0) *
+                DecodeSizing.calculateOutputDimension(sourceHeight, decodeOpts.inSampleSize, 0, 0) *
+                bytesPerPixel;
+        if (decodeOpts.inDensity == 0) {
+            // reorienting holds the decoded bitmap and its upright copy at once
+            return reoriented ? sampledByteCount * 2 : sampledByteCount;
+        }
+        long scaledByteCount = (long) DecodeSizing.calculateOutputDimension(sourceWidth, decodeOpts.inSampleSize, decodeOpts.inDensity, decodeOpts.inTargetDensity) *
+                DecodeSizing.calculateOutputDimension(sourceHeight, decodeOpts.inSampleSize, decodeOpts.inDensity, decodeOpts.inTargetDensity) *
+                bytesPerPixel;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // the decoder scales while it decodes, so only the scaled bitmap is allocated
+            return reoriented ? scaledByteCount * 2 : scaledByteCount;
+        }
+        // before KitKat BitmapFactory decodes to the subsampled size first, then scales a copy. Reorienting the
+        // smaller scaled bitmap afterwards never needs more than that.
+        return sampledByteCount + scaledByteCount;
+    }
+}
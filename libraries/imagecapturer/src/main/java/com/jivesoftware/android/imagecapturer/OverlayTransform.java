@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.Canvas;
+
+/**
+ * An {@link ImageTransform} that draws on top of the finished image, after the geometric and color steps.
+ */
+abstract class OverlayTransform extends ImageTransform {
+    OverlayTransform() {
+        super(Kind.OVERLAY);
+    }
+
+    @Override
+    final void applyTo(TransformPlan plan) {
+        plan.addOverlay(this);
+    }
+
+    /**
+     * Draw onto the finished <code>width</code> x <code>height</code> image.
+     */
+    abstract void draw(Canvas canvas, int width, int height);
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The pixels of a captured image, delivered to {@link ImageCapturer.PixelBufferCallback}. Call {@link #release()}
+ * when you are done reading {@link #getBuffer()} so the next capture can reuse it.
+ */
+public class PixelBuffer {
+    private final ByteBuffer buffer;
+    private final PixelBufferSpec.Layout layout;
+    private final int width;
+    private final int height;
+    private final int rowStride;
+    private final Bitmap bitmap;
+    private final DecodeInfo decodeInfo;
+    private final PixelBufferPool pool;
+    private boolean released;
+
+    /**
+     * @param bitmap the decoded {@link android.graphics.Bitmap}, if the caller asked for it. May be <code>null</code>.
+     * @param pool   where <code>buffer</code> goes back to, or <code>null</code> if the caller supplied it
+     */
+    PixelBuffer(
+            ByteBuffer buffer,
+            PixelBufferSpec.Layout layout,
+            int width,
+            int height,
+            int rowStride,
+            Bitmap bitmap,
+            DecodeInfo decodeInfo,
+            PixelBufferPool pool) {
+        this.buffer = buffer;
+        this.layout = layout;
+        this.width = width;
+        this.height = height;
+        this.rowStride = rowStride;
+        this.bitmap = bitmap;
+        this.decodeInfo = decodeInfo;
+        this.pool = pool;
+    }
+
+    /**
+     * @return the pixels, in native byte order. Row <code>y</code> starts at <code>y * getRowStride()</code>; the
+     * position is 0 and the limit is <code>getRowStride() * getHeight()</code>.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public PixelBufferSpec.Layout getLayout() {
+        return layout;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the distance in bytes from the start of one row to the start of the next
+     */
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    /**
+     * @return the decoded {@link android.graphics.Bitmap} if {@link PixelBufferSpec#isKeepBitmap()}, otherwise
+     * <code>null</code>. It isn't released along with the buffer; use
+     * {@link ImageCapturer#releaseBitmap(android.content.Context, android.graphics.Bitmap)} for that.
+     */
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    public DecodeInfo getDecodeInfo() {
+        return decodeInfo;
+    }
+
+    /**
+     * Give the buffer back to the {@link PixelBufferPool}. Don't read it afterwards. Buffers passed in by the caller
+     * aren't pooled. Calling this more than once has no effect.
+     */
+    public void release() {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+        }
+        if (pool != null) {
+            pool.put(buffer);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PixelBuffer{" + width + "x" + height + ", " + layout + ", rowStride=" + rowStride + "}";
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Executor;
+
+/**
+ * Decodes a captured image at the requested size and copies its pixels into a {@link java.nio.ByteBuffer} in the
+ * background, then delivers the {@link PixelBuffer} through the {@link CaptureRegistry} to a
+ * {@link ImageCapturer.PixelBufferCallback} on the main thread. Unless the caller asked for it, the decoded
+ * {@link android.graphics.Bitmap} never leaves the background thread and goes back to the {@link BitmapPool}.
+ */
+final class PixelBufferDecoder implements Runnable, CaptureRegistry.Work {
+    private final ContentResolver contentResolver;
+    private final Uri imageUri;
+    private final File imageFile;
+    private final PixelBufferSpec pixelBufferSpec;
+    private final ByteBuffer targetBuffer;
+    private final PixelBufferPool pixelBufferPool;
+    private final BitmapPool bitmapPool;
+    private final MemoryGovernor memoryGovernor;
+    private final CaptureMetrics.Recorder metrics;
+    private final ImageStager imageStager;
+    private final CaptureRegistry captureRegistry;
+    private final String captureId;
+    private final DecodeControl decodeControl = new DecodeControl();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean cancelled;
+
+    /**
+     * @param imageUri     the picked image or <code>null</code> to decode <code>imageFile</code> instead.
+     * @param imageFile    the file a camera may have written to.
+     * @param targetBuffer the buffer to write the pixels to, or <code>null</code> to take one from
+     *                     <code>pixelBufferPool</code>
+     * @param metrics      copying the pixels counts as post-processing
+     * @param imageStager  copies a remote image to a local file first. May be <code>null</code>.
+     * @param captureId    what the capture is registered as in <code>captureRegistry</code>
+     */
+    PixelBufferDecoder(
+            ContentResolver contentResolver,
+            Uri imageUri,
+            File imageFile,
+            PixelBufferSpec pixelBufferSpec,
+            ByteBuffer targetBuffer,
+            PixelBufferPool pixelBufferPool,
+            BitmapPool bitmapPool,
+            MemoryGovernor memoryGovernor,
+            CaptureMetrics.Recorder metrics,
+            ImageStager imageStager,
+            CaptureRegistry captureRegistry,
+            String captureId) {
+        this.contentResolver = contentResolver;
+        this.imageUri = imageUri;
+        this.imageFile = imageFile;
+        this.pixelBufferSpec = pixelBufferSpec;
+        this.targetBuffer = targetBuffer;
+        this.pixelBufferPool = pixelBufferPool;
+        this.bitmapPool = bitmapPool;
+        this.memoryGovernor = memoryGovernor;
+        this.metrics = metrics;
+        this.imageStager = imageStager;
+        this.captureRegistry = captureRegistry;
+        this.captureId = captureId;
+    }
+
+    @Override
+    public void start(Executor executor) {
+        executor.execute(this);
+    }
+
+    /**
+     * Stop delivering the result. A buffer filled after this goes back to the pool.
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+        decodeControl.cancel();
+    }
+
+    @Override
+    public DecodeControl getDecodeControl() {
+        return decodeControl;
+    }
+
+    @Override
+    public void run() {
+        if (cancelled) {
+            return;
+        }
+        metrics.backgroundStarted();
+
+        Uri sourceUri = imageUri == null ? Uri.fromFile(imageFile) : imageUri;
+        DecodedPixels decodedPixels;
+        try {
+            decodedPixels = decode(sourceUri);
+        } catch (IOException e) {
+            decodedPixels = new DecodedPixels(null, e, null, null, null);
+        } catch (OutOfMemoryError e) {
+            decodedPixels = new DecodedPixels(null, null, e, null, null);
+        } catch (NullPointerException e) {
+            // This NPE seems to be OOM related
+            decodedPixels = new DecodedPixels(null, null, null, e, null);
+        } catch (RuntimeException e) {
+            // like a SecurityException from a provider that no longer grants access
+            decodedPixels = new DecodedPixels(null, new IOException("Reading image FAILED: " + e, e), null, null, null);
+        }
+
+        metrics.backgroundFinished();
+        final DecodedPixels result = decodedPixels;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliver(result);
+            }
+        });
+    }
+
+    private DecodedPixels decode(Uri sourceUri) throws IOException {
+        BitmapDecoder.DecodedBitmap decodedBitmap;
+        File stagedFile = imageStager == null ? null : imageStager.stage(sourceUri, decodeControl, metrics);
+        ImageSource imageSource = decodeControl.open(contentResolver, stagedFile == null ? sourceUri : Uri.fromFile(stagedFile));
+        try {
+            metrics.startStage(imageSource);
+            ImageHeader imageHeader = imageSource.readHeader();
+            metrics.addBoundsNanos(metrics.endStage(imageSource));
+            metrics.recordHeader(imageHeader);
+            metrics.startStage(imageSource);
+            decodedBitmap = BitmapDecoder.decode(imageSource, imageHeader, pixelBufferSpec.toDecodeSpec(), bitmapPool, memoryGovernor, decodeControl);
+            metrics.addDecodeNanos(metrics.endStage(imageSource));
+        } finally {
+            decodeControl.close(imageSource);
+            metrics.recordSource(imageSource);
+        }
+        if (decodedBitmap == null) {
+            throw new IOException("Decoding image file FAILED for unknown reason");
+        }
+
+        Bitmap bitmap = decodedBitmap.bitmap;
+        metrics.recordOutput(bitmap, decodedBitmap.decodeInfo);
+        metrics.startStage(null);
+        boolean keepBitmap = false;
+        try {
+            PixelBufferSpec.Layout layout = pixelBufferSpec.getLayout();
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int rowStride = pixelBufferSpec.getRowStride(width);
+            if (rowStride < width * layout.getBytesPerPixel()) {
+                throw new IOException("Row stride " + rowStride + " is too small for " + width + " " + layout + " pixels");
+            }
+            long byteCount = (long) rowStride * height;
+            if (byteCount > Integer.MAX_VALUE) {
+                throw new IOException("Image too large for a pixel buffer: " + width + "x" + height);
+            }
+            ByteBuffer buffer;
+            if (targetBuffer != null) {
+                if (targetBuffer.capacity() < byteCount) {
+                    throw new IOException("Pixel buffer holds " + targetBuffer.capacity() + " bytes, needs " + byteCount);
+                }
+                buffer = targetBuffer;
+                buffer.clear();
+                buffer.limit((int) byteCount);
+            } else {
+                buffer = pixelBufferPool.acquire((int) byteCount);
+            }
+            buffer.order(ByteOrder.nativeOrder());
+            copyPixels(bitmap, layout, buffer, rowStride);
+            buffer.rewind();
+
+            keepBitmap = pixelBufferSpec.isKeepBitmap();
+            PixelBuffer pixelBuffer = new PixelBuffer(
+                    buffer,
+                    layout,
+                    width,
+                    height,
+                    rowStride,
+                    keepBitmap ? bitmap : null,
+                    decodedBitmap.decodeInfo,
+                    targetBuffer == null ? pixelBufferPool : null);
+            return new DecodedPixels(pixelBuffer, null, null, null, stagedFile);
+        } finally {
+            if (!keepBitmap) {
+                bitmapPool.put(bitmap);
+            }
+            metrics.addPostProcessNanos(metrics.endStage(null));
+        }
+    }
+
+    /**
+     * Write the pixels of <code>bitmap</code> to <code>buffer</code>, starting at its position. Bitmaps already in
+     * <code>layout</code> with the same row stride are copied in one go; everything else row by row. Either way
+     * {@link PixelBufferSpec.Layout#ARGB_8888} pixels come out premultiplied.
+     */
+    static void copyPixels(Bitmap bitmap, PixelBufferSpec.Layout layout, ByteBuffer buffer, int rowStride) {
+        if (bitmap.getConfig() == layout.getDecodeConfig() && layout != PixelBufferSpec.Layout.GRAY_8 && bitmap.getRowBytes() == rowStride) {
+            bitmap.copyPixelsToBuffer(buffer);
+            return;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int start = buffer.position();
+        int[] pixels = new int[width];
+        byte[] row = new byte[width * layout.getBytesPerPixel()];
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(pixels, 0, width, 0, y, width, 1);
+            int offset = 0;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[x];
+                int red = Color.red(pixel);
+                int green = Color.green(pixel);
+                int blue = Color.blue(pixel);
+                switch (layout) {
+                    case ARGB_8888:
+                        // getPixels un-premultiplies, copyPixelsToBuffer doesn't. Both paths write premultiplied.
+                        int alpha = Color.alpha(pixel);
+                        row[offset++] = (byte) premultiply(red, alpha);
+                        row[offset++] = (byte) premultiply(green, alpha);
+                        row[offset++] = (byte) premultiply(blue, alpha);
+                        row[offset++] = (byte) alpha;
+                        break;
+                    case RGB_565:
+                        int rgb565 = ((red >> 3) << 11) | ((green >> 2) << 5) | (blue >> 3);
+                        if (buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+                            row[offset++] = (byte) rgb565;
+                            row[offset++] = (byte) (rgb565 >> 8);
+                        } else {
+                            row[offset++] = (byte) (rgb565 >> 8);
+                            row[offset++] = (byte) rgb565;
+                        }
+                        break;
+                    default:
+                        // ITU-R BT.601 luma in fixed point
+                        row[offset++] = (byte) ((77 * red + 150 * green + 29 * blue) >> 8);
+                        break;
+                }
+            }
+            buffer.position(start + y * rowStride);
+            buffer.put(row);
+        }
+        buffer.position(start + height * rowStride);
+    }
+
+    private static int premultiply(int component, int alpha) {
+        return alpha == 0xFF ? component : (component * alpha + 127) / 255;
+    }
+
+    private void deliver(final DecodedPixels decodedPixels) {
+        if (cancelled) {
+            decodedPixels.discard();
+            return;
+        }
+
+        captureRegistry.deliver(captureId, new CaptureRegistry.Delivery() {
+            @Override
+            public void deliver(Object callback, ImageCapturer.CaptureMetricsListener metricsListener) {
+                ImageCapturer.PixelBufferCallback pixelBufferCallback = (ImageCapturer.PixelBufferCallback) callback;
+                if (decodedPixels.pixelBuffer != null) {
+                    File deliveredImageFile;
+                    if (decodedPixels.stagedFile != null) {
+                        deliveredImageFile = decodedPixels.stagedFile;
+                    } else {
+                        deliveredImageFile = (imageUri == null && imageFile.exists()) ? imageFile : null;
+                    }
+                    pixelBufferCallback.onPixelBufferCaptured(decodedPixels.pixelBuffer, imageUri, deliveredImageFile);
+                } else if (decodedPixels.ioException != null) {
+                    pixelBufferCallback.onImageCaptureFailed(decodedPixels.ioException);
+                } else {
+                    pixelBufferCallback.onImageCaptureOutOfMemory(decodedPixels.outOfMemoryError, decodedPixels.nullPointerException);
+                }
+                if (metricsListener != null) {
+                    metricsListener.onCaptureMetrics(metrics.build(decodedPixels.pixelBuffer != null));
+                }
+            }
+
+            @Override
+            public void discard() {
+                decodedPixels.discard();
+            }
+        }, true);
+    }
+
+    private class DecodedPixels {
+        public final PixelBuffer pixelBuffer;
+        public final IOException ioException;
+        public final OutOfMemoryError outOfMemoryError;
+        public final NullPointerException nullPointerException;
+        public final File stagedFile;
+
+        public DecodedPixels(
+                PixelBuffer pixelBuffer,
+                IOException ioException,
+                OutOfMemoryError outOfMemoryError,
+                NullPointerException nullPointerException,
+                File stagedFile) {
+            this.pixelBuffer = pixelBuffer;
+            this.ioException = ioException;
+            this.outOfMemoryError = outOfMemoryError;
+            this.nullPointerException = nullPointerException;
+            this.stagedFile = stagedFile;
+        }
+
+        /**
+         * Give back what nobody is going to receive.
+         */
+        public void discard() {
+            if (pixelBuffer != null) {
+                pixelBuffer.release();
+                bitmapPool.put(pixelBuffer.getBitmap());
+            }
+        }
+    }
+}
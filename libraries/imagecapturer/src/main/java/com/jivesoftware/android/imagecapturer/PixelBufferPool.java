@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A size bounded, least recently used pool of direct {@link java.nio.ByteBuffer}s that
+ * {@link ImageCapturer.PixelBufferCallback} captures decode into.
+ * <p/>
+ * Direct buffers live outside the Java heap and are only freed when the garbage collector gets around to them, so
+ * reusing them avoids piling up native memory when many images are captured. The pool shrinks when Android calls
+ * {@link #onTrimMemory(int)}.
+ */
+public class PixelBufferPool implements ComponentCallbacks2 {
+    public static final long DEFAULT_MAX_SIZE_BYTES = 32 * 1024 * 1024;
+
+    private static PixelBufferPool instance;
+
+    private final LruPool<ByteBuffer> buffers;
+
+    /**
+     * @return the pool shared by every {@link ImageCapturer} in this process, holding up to
+     * {@link #DEFAULT_MAX_SIZE_BYTES}.
+     */
+    public static synchronized PixelBufferPool getInstance(Context context) {
+        if (instance == null) {
+            instance = new PixelBufferPool(DEFAULT_MAX_SIZE_BYTES);
+            context.getApplicationContext().registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    public PixelBufferPool(long maxSizeBytes) {
+        this.buffers = new LruPool<ByteBuffer>(maxSizeBytes) {
+            @Override
+            protected long sizeOf(ByteBuffer buffer) {
+                return buffer.capacity();
+            }
+
+            @Override
+            protected void onEvicted(ByteBuffer buffer) {
+                // freed by the garbage collector
+            }
+        };
+    }
+
+    /**
+     * Remove and return a direct {@link java.nio.ByteBuffer} of at least <code>byteCount</code> bytes, or allocate
+     * one if none fits. Pooled buffers more than twice as large are left for bigger requests.
+     *
+     * @return a buffer whose position is 0 and whose limit is <code>byteCount</code>
+     */
+    ByteBuffer acquire(final int byteCount) {
+        if (byteCount < 0) {
+            throw new IllegalArgumentException("byteCount must not be negative: " + byteCount);
+        }
+        ByteBuffer buffer = buffers.remove(new LruPool.Matcher<ByteBuffer>() {
+            @Override
+            public boolean matches(ByteBuffer buffer) {
+                return buffer.capacity() >= byteCount && buffer.capacity() / 2 <= byteCount;
+            }
+        });
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(byteCount);
+        }
+        buffer.clear();
+        buffer.limit(byteCount);
+        return buffer;
+    }
+
+    /**
+     * Offer a {@link java.nio.ByteBuffer} for reuse. The caller must not use it afterwards.
+     * Heap and read-only buffers are ignored.
+     *
+     * @return <code>true</code> if <code>buffer</code> was added to the pool.
+     */
+    public boolean put(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.isReadOnly()) {
+            return false;
+        }
+        return buffers.add(buffer);
+    }
+
+    public void trimToSize(long targetSizeBytes) {
+        buffers.trimToSize(targetSizeBytes);
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public long getSizeBytes() {
+        return buffers.getSizeBytes();
+    }
+
+    public long getMaxSizeBytes() {
+        return buffers.getMaxSizeBytes();
+    }
+
+    public void setMaxSizeBytes(long maxSizeBytes) {
+        buffers.setMaxSizeBytes(maxSizeBytes);
+    }
+
+    public int getHitCount() {
+        return buffers.getHitCount();
+    }
+
+    public int getMissCount() {
+        return buffers.getMissCount();
+    }
+
+    public int getEvictionCount() {
+        return buffers.getEvictionCount();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(getSizeBytes() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public String toString() {
+        return "PixelBufferPool{size=" + getSizeBytes() + "/" + getMaxSizeBytes() +
+                ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "}";
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.Bitmap;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Describes the pixel buffer {@link ImageCapturer} should decode a captured image into, for example to feed it to
+ * a model or to native code without going through a {@link android.graphics.Bitmap}.
+ */
+public class PixelBufferSpec implements Parcelable {
+    public static final Creator<PixelBufferSpec> CREATOR =
+            new Creator<PixelBufferSpec>() {
+                public PixelBufferSpec createFromParcel(Parcel in) {
+                    int maxWidth = in.readInt();
+                    int maxHeight = in.readInt();
+                    DecodeSpec.ScaleMode scaleMode = DecodeSpec.ScaleMode.valueOf(in.readString());
+                    Layout layout = Layout.valueOf(in.readString());
+                    int rowStride = in.readInt();
+                    boolean keepBitmap = in.readInt() != 0;
+                    return new PixelBufferSpec(maxWidth, maxHeight, scaleMode, layout, rowStride, keepBitmap);
+                }
+
+                public PixelBufferSpec[] newArray(int size) {
+                    return new PixelBufferSpec[size];
+                }
+            };
+
+    private final int maxWidth;
+    private final int maxHeight;
+    private final DecodeSpec.ScaleMode scaleMode;
+    private final Layout layout;
+    private final int rowStride;
+    private final boolean keepBitmap;
+
+    /**
+     * Fit the image inside <code>maxWidth</code> x <code>maxHeight</code>, with rows packed tightly and no
+     * {@link android.graphics.Bitmap}.
+     */
+    public PixelBufferSpec(int maxWidth, int maxHeight, Layout layout) {
+        this(maxWidth, maxHeight, DecodeSpec.ScaleMode.FIT, layout, 0, false);
+    }
+
+    /**
+     * @param maxWidth   the maximum width of the decoded image. Must be greater than zero.
+     * @param maxHeight  the maximum height of the decoded image. Must be greater than zero.
+     * @param scaleMode  how the image is scaled relative to <code>maxWidth</code> x <code>maxHeight</code>
+     * @param layout     how each pixel is stored in the buffer
+     * @param rowStride  the distance in bytes from the start of one row to the start of the next, or 0 to pack
+     *                   rows tightly. The capture fails if a decoded row doesn't fit.
+     * @param keepBitmap <code>true</code> to also receive the decoded {@link android.graphics.Bitmap}
+     */
+    public PixelBufferSpec(int maxWidth, int maxHeight, DecodeSpec.ScaleMode scaleMode, Layout layout, int rowStride, boolean keepBitmap) {
+        if (maxWidth < 1) {
+            throw new IllegalArgumentException("maxWidth must be greater than zero: " + maxWidth);
+        }
+        if (maxHeight < 1) {
+            throw new IllegalArgumentException("maxHeight must be greater than zero: " + maxHeight);
+        }
+        if (scaleMode == null) {
+            throw new IllegalArgumentException("scaleMode must not be null");
+        }
+        if (layout == null) {
+            throw new IllegalArgumentException("layout must not be null");
+        }
+        if (rowStride < 0) {
+            throw new IllegalArgumentException("rowStride must not be negative: " + rowStride);
+        }
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.scaleMode = scaleMode;
+        this.layout = layout;
+        this.rowStride = rowStride;
+        this.keepBitmap = keepBitmap;
+    }
+
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public DecodeSpec.ScaleMode getScaleMode() {
+        return scaleMode;
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return the row stride in bytes, or 0 if rows are packed tightly
+     */
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    public boolean isKeepBitmap() {
+        return keepBitmap;
+    }
+
+    /**
+     * @return the row stride for an image <code>width</code> pixels wide
+     */
+    int getRowStride(int width) {
+        return rowStride == 0 ? width * layout.getBytesPerPixel() : rowStride;
+    }
+
+    DecodeSpec toDecodeSpec() {
+        return new DecodeSpec(maxWidth, maxHeight, scaleMode, layout.getDecodeConfig());
+    }
+
+    @Override
+    public String toString() {
+        return "PixelBufferSpec{" + maxWidth + "x" + maxHeight + ", " + scaleMode + ", " + layout +
+                (rowStride == 0 ? "" : ", rowStride=" + rowStride) +
+                (keepBitmap ? ", keepBitmap" : "") + "}";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(maxWidth);
+        dest.writeInt(maxHeight);
+        dest.writeString(scaleMode.name());
+        dest.writeString(layout.name());
+        dest.writeInt(rowStride);
+        dest.writeInt(keepBitmap ? 1 : 0);
+    }
+
+    public enum Layout {
+        /**
+         * Four bytes per pixel in the memory order of an {@link android.graphics.Bitmap.Config#ARGB_8888}
+         * {@link android.graphics.Bitmap}: red, green, blue, then alpha. Like in the
+         * {@link android.graphics.Bitmap}, the colors are premultiplied by alpha, whatever the row stride.
+         * Opaque images are unaffected.
+         */
+        ARGB_8888(4, Bitmap.Config.ARGB_8888),
+        /**
+         * Two bytes per pixel, 5 bits red, 6 bits green and 5 bits blue, in native byte order.
+         */
+        RGB_565(2, Bitmap.Config.RGB_565),
+        /**
+         * One byte per pixel of luminance.
+         */
+        GRAY_8(1, Bitmap.Config.ARGB_8888);
+
+        private final int bytesPerPixel;
+        private final Bitmap.Config decodeConfig;
+
+        Layout(int bytesPerPixel, Bitmap.Config decodeConfig) {
+            this.bytesPerPixel = bytesPerPixel;
+            this.decodeConfig = decodeConfig;
+        }
+
+        public int getBytesPerPixel() {
+            return bytesPerPixel;
+        }
+
+        /**
+         * @return the {@link android.graphics.Bitmap.Config} to decode to before the pixels are copied
+         */
+        Bitmap.Config getDecodeConfig() {
+            return decodeConfig;
+        }
+    }
+}
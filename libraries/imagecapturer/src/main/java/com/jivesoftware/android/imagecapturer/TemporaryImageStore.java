@@ -0,0 +1,410 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.Context;
+import android.os.Environment;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Owns the files cameras write captured images to, in the app's external cache directory.
+ * <p/>
+ * A journal on disk records which files belong to captures that are still in progress, even across process
+ * death. Everything else in the directory is an orphan: a file whose capture was delivered, failed or
+ * abandoned. A sweeper running at {@link DecodeExecutor.Priority#BACKGROUND} deletes orphans once the store is
+ * over its byte cap, oldest first, and deletes every file that is older than the age cap. Nothing here blocks
+ * a capture: the journal is written and the directory swept on a background thread.
+ * <p/>
+ * Deliver or copy a captured file soon after {@link ImageCapturer} hands it to you. Once it is delivered, the
+ * sweeper may delete it.
+ */
+public class TemporaryImageStore {
+    public static final long DEFAULT_MAX_BYTES = 50 * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+    private static final String DIRECTORY_NAME = "captured-images";
+    private static final String JOURNAL_FILE_NAME = "journal";
+    private static final String FILE_NAME_PREFIX = "capture-";
+    private static final String FILE_NAME_SUFFIX = ".jpg";
+    private static TemporaryImageStore instance;
+
+    private final Context context;
+    private final Executor executor;
+    private final Object diskLock = new Object();
+    // guarded by this
+    private final Set<String> liveFileNames = new HashSet<String>();
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+    // guarded by diskLock
+    private boolean journalLoaded;
+    private volatile File directory;
+    private int sweepCount;
+    private int deletedCount;
+
+    /**
+     * @return the store shared by every {@link ImageCapturer} in this process
+     */
+    public static synchronized TemporaryImageStore getInstance(Context context) {
+        if (instance == null) {
+            Context applicationContext = context.getApplicationContext();
+            instance = new TemporaryImageStore(
+                    applicationContext,
+                    DecodeExecutor.getInstance(applicationContext).withPriority(DecodeExecutor.Priority.BACKGROUND));
+        }
+        return instance;
+    }
+
+    /**
+     * @return the shared store, or <code>null</code> if nothing has used it yet
+     */
+    static synchronized TemporaryImageStore getInstanceIfCreated() {
+        return instance;
+    }
+
+    /**
+     * Forget the shared store, so the next {@link #getInstance} starts over in the directory of the current
+     * {@link Context}. For tests, which get a new application and directory each.
+     */
+    static synchronized void clearInstance() {
+        instance = null;
+    }
+
+    private TemporaryImageStore(Context context, Executor executor) {
+        this.context = context;
+        this.executor = executor;
+    }
+
+    /**
+     * @param maxBytes how big the store may get before orphaned files are deleted. Defaults to {@link #DEFAULT_MAX_BYTES}.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param maxAgeMillis how old any file may get, even one whose capture is still in progress.
+     *                     Defaults to {@link #DEFAULT_MAX_AGE_MILLIS}.
+     */
+    public synchronized void setMaxAgeMillis(long maxAgeMillis) {
+        if (maxAgeMillis < 1) {
+            throw new IllegalArgumentException("maxAgeMillis must be greater than zero: " + maxAgeMillis);
+        }
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Sweep the store on a background thread.
+     */
+    public void sweepAsync() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        });
+    }
+
+    public int getSweepCount() {
+        synchronized (diskLock) {
+            return sweepCount;
+        }
+    }
+
+    /**
+     * @return how many files the sweeper deleted
+     */
+    public int getDeletedCount() {
+        synchronized (diskLock) {
+            return deletedCount;
+        }
+    }
+
+    /**
+     * @return how many files belong to captures that aren't over yet
+     */
+    synchronized int getLiveFileCount() {
+        return liveFileNames.size();
+    }
+
+    /**
+     * @return the store's directory, created if needed. The first call may touch the disk.
+     */
+    File getDirectory() throws IOException {
+        File storeDirectory = directory;
+        if (storeDirectory == null) {
+            File parent = context.getExternalCacheDir();
+            if (parent == null) {
+                throw new IOException("External storage isn't available for temporary images");
+            }
+            storeDirectory = new File(parent, DIRECTORY_NAME);
+            if (!storeDirectory.isDirectory() && !storeDirectory.mkdirs() && !storeDirectory.isDirectory()) {
+                throw new IOException("Couldn't create temporary image storage directory: " + storeDirectory);
+            }
+            directory = storeDirectory;
+        }
+        return storeDirectory;
+    }
+
+    /**
+     * Name a new file for a capture and record it as live in the journal. The file itself isn't created.
+     */
+    File createFile() throws IOException {
+        return createFile(FILE_NAME_SUFFIX);
+    }
+
+    /**
+     * @param suffix the file's extension, including the dot
+     */
+    File createFile(String suffix) throws IOException {
+        File file = new File(getDirectory(), FILE_NAME_PREFIX + UUID.randomUUID().toString() + suffix);
+        synchronized (this) {
+            liveFileNames.add(file.getName());
+        }
+        writeJournalAsync();
+        return file;
+    }
+
+    /**
+     * The capture of <code>file</code> is over. Unless <code>delete</code> is <code>true</code>, the file stays
+     * until the sweeper needs the space.
+     */
+    void release(final File file, final boolean delete) {
+        boolean released;
+        synchronized (this) {
+            released = liveFileNames.remove(file.getName());
+        }
+        if (!released && !delete) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (delete) {
+                    file.delete();
+                }
+                synchronized (diskLock) {
+                    writeJournal();
+                }
+                sweep();
+            }
+        });
+    }
+
+    private void writeJournalAsync() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (diskLock) {
+                    writeJournal();
+                }
+            }
+        });
+    }
+
+    void sweep() {
+        synchronized (diskLock) {
+            File storeDirectory;
+            try {
+                storeDirectory = getDirectory();
+            } catch (IOException e) {
+                // nothing to sweep
+                return;
+            }
+            loadJournal();
+
+            long sweepMaxBytes;
+            long sweepMaxAgeMillis;
+            Set<String> live;
+            synchronized (this) {
+                sweepMaxBytes = maxBytes;
+                sweepMaxAgeMillis = maxAgeMillis;
+                live = new HashSet<String>(liveFileNames);
+            }
+
+            long now = System.currentTimeMillis();
+            List<File> orphans = new ArrayList<File>();
+            long totalBytes = 0;
+            boolean liveChanged = false;
+            for (File file : listCaptureFiles(storeDirectory, false)) {
+                if (now - file.lastModified() > sweepMaxAgeMillis) {
+                    if (delete(file) && live.contains(file.getName())) {
+                        // abandoned, probably by a process that died mid capture
+                        liveChanged = true;
+                        synchronized (this) {
+                            liveFileNames.remove(file.getName());
+                        }
+                    }
+                } else {
+                    totalBytes += file.length();
+                    if (!live.contains(file.getName())) {
+                        orphans.add(file);
+                    }
+                }
+            }
+
+            File[] sortedOrphans = orphans.toArray(new File[orphans.size()]);
+            Arrays.sort(sortedOrphans, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    long lhsModified = lhs.lastModified();
+                    long rhsModified = rhs.lastModified();
+                    return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < sortedOrphans.length && totalBytes > sweepMaxBytes; i++) {
+                long length = sortedOrphans[i].length();
+                if (delete(sortedOrphans[i])) {
+                    totalBytes -= length;
+                }
+            }
+
+            // files left behind by versions that wrote to the root of external storage
+            File legacyDirectory = new File(Environment.getExternalStorageDirectory(), DIRECTORY_NAME);
+            for (File file : listCaptureFiles(legacyDirectory, true)) {
+                if (now - file.lastModified() > sweepMaxAgeMillis) {
+                    delete(file);
+                }
+            }
+
+            if (liveChanged) {
+                writeJournal();
+            }
+            sweepCount++;
+        }
+    }
+
+    private boolean delete(File file) {
+        if (file.delete()) {
+            deletedCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param legacy <code>true</code> to list only the camera files of old versions
+     */
+    private static File[] listCaptureFiles(File directory, boolean legacy) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> captureFiles = new ArrayList<File>(files.length);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(FILE_NAME_PREFIX) && (!legacy || name.endsWith(FILE_NAME_SUFFIX))) {
+                captureFiles.add(file);
+            }
+        }
+        return captureFiles.toArray(new File[captureFiles.size()]);
+    }
+
+    /**
+     * Merge the journal into the live files once per process. Call holding <code>diskLock</code>.
+     */
+    private void loadJournal() {
+        if (journalLoaded) {
+            return;
+        }
+        journalLoaded = true;
+        File journalFile = new File(directory, JOURNAL_FILE_NAME);
+        if (!journalFile.exists()) {
+            return;
+        }
+        List<String> journalFileNames = new ArrayList<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(journalFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    journalFileNames.add(line);
+                }
+            }
+        } catch (IOException e) {
+            // a damaged journal only means its files are treated as orphans
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        synchronized (this) {
+            liveFileNames.addAll(journalFileNames);
+        }
+    }
+
+    /**
+     * Call holding <code>diskLock</code>.
+     */
+    private void writeJournal() {
+        File storeDirectory = directory;
+        if (storeDirectory == null) {
+            return;
+        }
+        // don't drop entries of a previous process before they were read
+        loadJournal();
+        List<String> live;
+        synchronized (this) {
+            live = new ArrayList<String>(liveFileNames);
+        }
+        File journalFile = new File(storeDirectory, JOURNAL_FILE_NAME);
+        File tempJournalFile = new File(storeDirectory, JOURNAL_FILE_NAME + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tempJournalFile));
+            for (String fileName : live) {
+                writer.write(fileName);
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+            if (!tempJournalFile.renameTo(journalFile)) {
+                tempJournalFile.delete();
+            }
+        } catch (IOException e) {
+            // the next write tries again
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                tempJournalFile.delete();
+            }
+        }
+    }
+}
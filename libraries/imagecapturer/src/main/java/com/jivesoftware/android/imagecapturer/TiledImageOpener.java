@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Opens a {@link TiledImageSource} for a captured image in the background and delivers it through the
+ * {@link CaptureRegistry} to a {@link ImageCapturer.TiledImageCapturedCallback} on the main thread.
+ */
+final class TiledImageOpener implements Runnable, CaptureRegistry.Work {
+    private final ContentResolver contentResolver;
+    private final Uri imageUri;
+    private final File imageFile;
+    private final int tileSize;
+    private final int maxTileCacheBytes;
+    private final ImageStager imageStager;
+    private final CaptureRegistry captureRegistry;
+    private final String captureId;
+    private final DecodeControl decodeControl = new DecodeControl();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean cancelled;
+    private volatile File stagedFile;
+
+    /**
+     * @param imageUri  the picked image or <code>null</code> to open <code>imageFile</code> instead.
+     * @param imageFile the file a camera may have written to.
+     * @param imageStager copies a remote image to a local file first. May be <code>null</code>.
+     * @param captureId what the capture is registered as in <code>captureRegistry</code>
+     */
+    TiledImageOpener(
+            ContentResolver contentResolver,
+            Uri imageUri,
+            File imageFile,
+            int tileSize,
+            int maxTileCacheBytes,
+            ImageStager imageStager,
+            CaptureRegistry captureRegistry,
+            String captureId) {
+        this.contentResolver = contentResolver;
+        this.imageUri = imageUri;
+        this.imageFile = imageFile;
+        this.tileSize = tileSize;
+        this.maxTileCacheBytes = maxTileCacheBytes;
+        this.imageStager = imageStager;
+        this.captureRegistry = captureRegistry;
+        this.captureId = captureId;
+    }
+
+    @Override
+    public void start(Executor executor) {
+        executor.execute(this);
+    }
+
+    /**
+     * Stop delivering the result. A {@link TiledImageSource} opened after this is closed again.
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+        decodeControl.cancel();
+    }
+
+    @Override
+    public DecodeControl getDecodeControl() {
+        // only staging can be cancelled. Opening a BitmapRegionDecoder can't be.
+        return decodeControl;
+    }
+
+    @Override
+    public void run() {
+        if (cancelled) {
+            return;
+        }
+
+        Uri sourceUri = imageUri == null ? Uri.fromFile(imageFile) : imageUri;
+        TiledImageSource tiledImageSource = null;
+        IOException ioException = null;
+        OutOfMemoryError outOfMemoryError = null;
+        NullPointerException nullPointerException = null;
+        try {
+            if (imageStager != null) {
+                stagedFile = imageStager.stage(sourceUri, decodeControl, null);
+            }
+            tiledImageSource = TiledImageSource.open(contentResolver, stagedFile == null ? sourceUri : Uri.fromFile(stagedFile), tileSize, maxTileCacheBytes);
+        } catch (IOException e) {
+            ioException = e;
+        } catch (OutOfMemoryError e) {
+            outOfMemoryError = e;
+        } catch (NullPointerException e) {
+            // This NPE seems to be OOM related
+            nullPointerException = e;
+        } catch (RuntimeException e) {
+            // like a SecurityException from a provider that no longer grants access
+            ioException = new IOException("Reading image FAILED: " + e, e);
+        }
+
+        final TiledImageSource result = tiledImageSource;
+        final IOException resultIOException = ioException;
+        final OutOfMemoryError resultOutOfMemoryError = outOfMemoryError;
+        final NullPointerException resultNullPointerException = nullPointerException;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliver(result, resultIOException, resultOutOfMemoryError, resultNullPointerException);
+            }
+        });
+    }
+
+    private void deliver(final TiledImageSource tiledImageSource, final IOException ioException, final OutOfMemoryError outOfMemoryError, final NullPointerException nullPointerException) {
+        if (cancelled) {
+            if (tiledImageSource != null) {
+                tiledImageSource.close();
+            }
+            return;
+        }
+
+        captureRegistry.deliver(captureId, new CaptureRegistry.Delivery() {
+            @Override
+            public void deliver(Object callback, ImageCapturer.CaptureMetricsListener metricsListener) {
+                ImageCapturer.TiledImageCapturedCallback tiledImageCapturedCallback = (ImageCapturer.TiledImageCapturedCallback) callback;
+                if (tiledImageSource != null) {
+                    File deliveredImageFile;
+                    if (stagedFile != null) {
+                        deliveredImageFile = stagedFile;
+                    } else {
+                        deliveredImageFile = (imageUri == null && imageFile.exists()) ? imageFile : null;
+                    }
+                    tiledImageCapturedCallback.onTiledImageCaptured(tiledImageSource, imageUri, deliveredImageFile);
+                } else if (ioException != null) {
+                    tiledImageCapturedCallback.onImageCaptureFailed(ioException);
+                } else {
+                    tiledImageCapturedCallback.onImageCaptureOutOfMemory(outOfMemoryError, nullPointerException);
+                }
+            }
+
+            @Override
+            public void discard() {
+                if (tiledImageSource != null) {
+                    tiledImageSource.close();
+                }
+            }
+        }, true);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a captured image one tile at a time with a {@link android.graphics.BitmapRegionDecoder}, so images
+ * far too big to decode at once can be shown and cropped in constant memory.
+ * <p/>
+ * Tiles are square, {@link #getTileSize()} pixels on a side at the sample size they are decoded with, and are
+ * decoded lazily the first time they are asked for. Decoded tiles are kept in a byte bounded LRU cache.
+ * <p/>
+ * Like every other decode, tiles are upright: a JPEG's EXIF orientation is applied to each of them, and sizes,
+ * rows, columns and regions are all in upright image coordinates.
+ * <p/>
+ * Decoding methods block, so call them off the main thread. Call {@link #close()} when you are done.
+ */
+public class TiledImageSource {
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    private final AssetFileDescriptor assetFileDescriptor;
+    private final BitmapRegionDecoder bitmapRegionDecoder;
+    private final int orientation;
+    private final Matrix toStored = new Matrix();
+    private final int tileSize;
+    private final LruCache<Long, Bitmap> tileCache;
+
+    /**
+     * @param assetFileDescriptor what <code>bitmapRegionDecoder</code> reads from, or <code>null</code> if it
+     *                            doesn't need it anymore
+     * @param orientation         the image's EXIF orientation
+     */
+    TiledImageSource(AssetFileDescriptor assetFileDescriptor, BitmapRegionDecoder bitmapRegionDecoder, int orientation, int tileSize, int maxTileCacheBytes) {
+        this.assetFileDescriptor = assetFileDescriptor;
+        this.bitmapRegionDecoder = bitmapRegionDecoder;
+        this.orientation = orientation;
+        BitmapDecoder.createOrientationMatrix(orientation, bitmapRegionDecoder.getWidth(), bitmapRegionDecoder.getHeight()).invert(toStored);
+        this.tileSize = tileSize;
+        this.tileCache = new LruCache<Long, Bitmap>(maxTileCacheBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap tile) {
+                return (int) BitmapPool.getAllocationByteCount(tile);
+            }
+        };
+    }
+
+    static TiledImageSource open(ContentResolver contentResolver, Uri imageUri, int tileSize, int maxTileCacheBytes) throws IOException {
+        int orientation;
+        ImageSource imageSource = new ImageSource(contentResolver, imageUri);
+        try {
+            orientation = imageSource.readHeader().orientation;
+        } finally {
+            imageSource.close();
+        }
+
+        AssetFileDescriptor assetFileDescriptor = contentResolver.openAssetFileDescriptor(imageUri, "r");
+        if (assetFileDescriptor == null) {
+            throw new IOException("Couldn't open image: " + imageUri);
+        }
+        boolean keepDescriptor = false;
+        try {
+            BitmapRegionDecoder bitmapRegionDecoder;
+            if (assetFileDescriptor.getStartOffset() == 0) {
+                // the descriptor stays open for as long as the decoder reads from it
+                bitmapRegionDecoder = BitmapRegionDecoder.newInstance(assetFileDescriptor.getFileDescriptor(), false);
+                keepDescriptor = true;
+            } else {
+                // the image is only part of the file. A stream honors the start offset and length, and the decoder
+                // keeps its own copy of what it read.
+                InputStream in = assetFileDescriptor.createInputStream();
+                try {
+                    bitmapRegionDecoder = BitmapRegionDecoder.newInstance(in, false);
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+            if (bitmapRegionDecoder == null) {
+                keepDescriptor = false;
+                throw new IOException("Couldn't decode image: " + imageUri);
+            }
+            return new TiledImageSource(keepDescriptor ? assetFileDescriptor : null, bitmapRegionDecoder, orientation, tileSize, maxTileCacheBytes);
+        } finally {
+            if (!keepDescriptor) {
+                try {
+                    assetFileDescriptor.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the largest power of two sample size that still shows at least <code>zoom</code> image pixels per
+     * screen pixel. A <code>zoom</code> of 1 is full resolution, 0.25 is a quarter of it.
+     */
+    public static int getSampleSizeForZoom(float zoom) {
+        if (zoom <= 0) {
+            throw new IllegalArgumentException("zoom must be greater than zero: " + zoom);
+        }
+        int sampleSize = 1;
+        while (sampleSize * 2 * zoom <= 1) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return the width of the upright image
+     */
+    public int getWidth() {
+        return ExifReader.isTransposed(orientation) ? bitmapRegionDecoder.getHeight() : bitmapRegionDecoder.getWidth();
+    }
+
+    /**
+     * @return the height of the upright image
+     */
+    public int getHeight() {
+        return ExifReader.isTransposed(orientation) ? bitmapRegionDecoder.getWidth() : bitmapRegionDecoder.getHeight();
+    }
+
+    /**
+     * @return the EXIF orientation that is applied to every tile, one of the {@link ExifReader}
+     * <code>ORIENTATION_</code> constants
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getColumnCount(int sampleSize) {
+        int sourceTileSize = tileSize * sampleSize;
+        return (getWidth() + sourceTileSize - 1) / sourceTileSize;
+    }
+
+    public int getRowCount(int sampleSize) {
+        int sourceTileSize = tileSize * sampleSize;
+        return (getHeight() + sourceTileSize - 1) / sourceTileSize;
+    }
+
+    /**
+     * @param column     from zero to {@link #getColumnCount(int)} - 1
+     * @param row        from zero to {@link #getRowCount(int)} - 1
+     * @param sampleSize a power of two, like the one from {@link #getSampleSizeForZoom(float)}
+     * @return the tile, from the cache if it has been decoded before. Tiles on the right and bottom edges may be
+     * smaller than {@link #getTileSize()}. Don't recycle it, the cache may hand it out again.
+     */
+    public Bitmap getTile(int column, int row, int sampleSize) throws IOException {
+        if (column < 0 || column >= getColumnCount(sampleSize) || row < 0 || row >= getRowCount(sampleSize)) {
+            throw new IllegalArgumentException("No tile at column " + column + ", row " + row + " for sampleSize " + sampleSize);
+        }
+        Long key = ((long) sampleSize << 48) | ((long) column << 24) | row;
+        Bitmap tile = tileCache.get(key);
+        if (tile == null) {
+            int sourceTileSize = tileSize * sampleSize;
+            int left = column * sourceTileSize;
+            int top = row * sourceTileSize;
+            Rect region = new Rect(left, top, Math.min(left + sourceTileSize, getWidth()), Math.min(top + sourceTileSize, getHeight()));
+            tile = decodeRegion(region, sampleSize);
+            tileCache.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Decode any region of the image, for example to crop it. The result is upright and isn't cached.
+     *
+     * @param region     in full resolution upright image coordinates
+     * @param sampleSize a power of two
+     */
+    public Bitmap decodeRegion(Rect region, int sampleSize) throws IOException {
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("sampleSize must be greater than zero: " + sampleSize);
+        }
+        // the decoder only knows the image as it is stored
+        RectF storedRegionF = new RectF(region);
+        toStored.mapRect(storedRegionF);
+        Rect storedRegion = new Rect(
+                Math.round(storedRegionF.left),
+                Math.round(storedRegionF.top),
+                Math.round(storedRegionF.right),
+                Math.round(storedRegionF.bottom));
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = sampleSize;
+        Bitmap bitmap = bitmapRegionDecoder.decodeRegion(storedRegion, opts);
+        if (bitmap == null) {
+            throw new IOException("Decoding image region FAILED: " + region);
+        }
+        return BitmapDecoder.applyOrientation(bitmap, orientation, null);
+    }
+
+    public int getTileCacheHitCount() {
+        return tileCache.hitCount();
+    }
+
+    public int getTileCacheMissCount() {
+        return tileCache.missCount();
+    }
+
+    /**
+     * Forget cached tiles, for example from {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void evictTiles() {
+        tileCache.evictAll();
+    }
+
+    public boolean isClosed() {
+        return bitmapRegionDecoder.isRecycled();
+    }
+
+    /**
+     * Release the decoder and the image. Tiles already handed out stay usable.
+     */
+    public void close() {
+        tileCache.evictAll();
+        bitmapRegionDecoder.recycle();
+        if (assetFileDescriptor != null) {
+            try {
+                assetFileDescriptor.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
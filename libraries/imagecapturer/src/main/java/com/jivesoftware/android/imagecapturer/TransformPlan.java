@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.ColorMatrix;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What an {@link ImageTransformChain} does to one image, collapsed into a source region, an output size, one
+ * {@link android.graphics.ColorMatrix} and the overlays to draw. Coordinates are of the upright image.
+ */
+final class TransformPlan {
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final RectF region;
+    private float outputWidth;
+    private float outputHeight;
+    private ColorMatrix colorMatrix;
+    private final List<OverlayTransform> overlays = new ArrayList<OverlayTransform>();
+
+    TransformPlan(int sourceWidth, int sourceHeight) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.region = new RectF(0, 0, sourceWidth, sourceHeight);
+        this.outputWidth = sourceWidth;
+        this.outputHeight = sourceHeight;
+    }
+
+    /**
+     * Keep the part of the current output between the given fractions of its edges.
+     */
+    void crop(float left, float top, float right, float bottom) {
+        float regionWidth = region.width();
+        float regionHeight = region.height();
+        region.set(
+                region.left + regionWidth * left,
+                region.top + regionHeight * top,
+                region.left + regionWidth * right,
+                region.top + regionHeight * bottom);
+        outputWidth *= right - left;
+        outputHeight *= bottom - top;
+    }
+
+    void fit(int maxWidth, int maxHeight) {
+        float scale = Math.min(1, Math.min(maxWidth / outputWidth, maxHeight / outputHeight));
+        outputWidth *= scale;
+        outputHeight *= scale;
+    }
+
+    /**
+     * Apply <code>next</code> after the color transforms so far.
+     */
+    void concatColorMatrix(ColorMatrix next) {
+        if (colorMatrix == null) {
+            colorMatrix = new ColorMatrix(next);
+        } else {
+            colorMatrix.postConcat(next);
+        }
+    }
+
+    void addOverlay(OverlayTransform overlay) {
+        overlays.add(overlay);
+    }
+
+    /**
+     * @return the part of the upright source image that ends up in the output
+     */
+    RectF getRegion() {
+        return region;
+    }
+
+    boolean isWholeImage() {
+        return region.left <= 0 && region.top <= 0 && region.right >= sourceWidth && region.bottom >= sourceHeight;
+    }
+
+    float getOutputWidth() {
+        return outputWidth;
+    }
+
+    float getOutputHeight() {
+        return outputHeight;
+    }
+
+    int getOutputPixelWidth() {
+        return Math.max(1, Math.round(outputWidth));
+    }
+
+    int getOutputPixelHeight() {
+        return Math.max(1, Math.round(outputHeight));
+    }
+
+    /**
+     * @return the merged color transforms or <code>null</code> if there are none
+     */
+    ColorMatrix getColorMatrix() {
+        return colorMatrix;
+    }
+
+    List<OverlayTransform> getOverlays() {
+        return overlays;
+    }
+
+    /**
+     * @return <code>true</code> if the plan only scales the whole image, which the decoder does on its own
+     */
+    boolean isResizeOnly() {
+        return isWholeImage() && colorMatrix == null && overlays.isEmpty();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * Decodes an image through an {@link ImageTransformChain}, allocating at most one output {@link Bitmap}.
+ * <p/>
+ * A chain that only resizes is handed to {@link BitmapDecoder}, which scales while decoding. Otherwise the cropped
+ * region is decoded with {@link android.graphics.BitmapRegionDecoder}, subsampled to just above the output size,
+ * into a pooled {@link Bitmap} if there is one. A single draw then scales it exactly, applies the EXIF orientation
+ * and the merged color transforms, and the overlays are drawn on top. The decoded region goes back to the
+ * {@link BitmapPool}.
+ */
+final class TransformingDecoder {
+    private TransformingDecoder() {
+    }
+
+    /**
+     * @see BitmapDecoder#decode(ImageSource, ImageHeader, DecodeSpec, BitmapPool, MemoryGovernor, DecodeControl)
+     */
+    static BitmapDecoder.DecodedBitmap decode(
+            ImageSource imageSource,
+            ImageHeader imageHeader,
+            ImageTransformChain transformChain,
+            BitmapPool bitmapPool,
+            MemoryGovernor memoryGovernor,
+            DecodeControl decodeControl) throws IOException {
+        int sourceWidth = imageHeader.width;
+        int sourceHeight = imageHeader.height;
+        int orientation = imageHeader.orientation;
+        boolean transposed = ExifReader.isTransposed(orientation);
+        TransformPlan plan = transformChain.plan(transposed ? sourceHeight : sourceWidth, transposed ? sourceWidth : sourceHeight);
+        int outputWidth = plan.getOutputPixelWidth();
+        int outputHeight = plan.getOutputPixelHeight();
+        if (plan.isResizeOnly()) {
+            DecodeSpec decodeSpec = new DecodeSpec(outputWidth, outputHeight);
+            return BitmapDecoder.decode(imageSource, imageHeader, decodeSpec, bitmapPool, memoryGovernor, decodeControl);
+        }
+
+        // the region of the stored image that ends up in the output
+        Matrix toUpright = BitmapDecoder.createOrientationMatrix(orientation, sourceWidth, sourceHeight);
+        Matrix toStored = new Matrix();
+        toUpright.invert(toStored);
+        RectF storedRegionF = new RectF(plan.getRegion());
+        toStored.mapRect(storedRegionF);
+        Rect storedRegion = new Rect(
+                (int) Math.floor(storedRegionF.left),
+                (int) Math.floor(storedRegionF.top),
+                (int) Math.ceil(storedRegionF.right),
+                (int) Math.ceil(storedRegionF.bottom));
+        if (!storedRegion.intersect(0, 0, sourceWidth, sourceHeight)) {
+            throw new IOException("Transformed region is outside the image: " + transformChain);
+        }
+        boolean wholeImage = storedRegion.width() == sourceWidth && storedRegion.height() == sourceHeight;
+
+        BitmapFactory.Options decodeOpts = new BitmapFactory.Options();
+        decodeOpts.inSampleSize = DecodeSizing.calculateInSampleSize(
+                storedRegion.width(), storedRegion.height(), transposed ? outputHeight : outputWidth, transposed ? outputWidth : outputHeight);
+        decodeOpts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        int requestedSampleSize = decodeOpts.inSampleSize;
+        if (memoryGovernor != null) {
+            // the decoded region and the output are held at once
+            memoryGovernor.fit(storedRegion.width(), storedRegion.height(), decodeOpts, true);
+        }
+        decodeOpts.inMutable = true;
+        // a region decoder can only decode into a pooled bitmap from KitKat on
+        if (bitmapPool != null && (wholeImage || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)) {
+            decodeOpts.inBitmap = BitmapDecoder.getReusableBitmap(bitmapPool, storedRegion.width(), storedRegion.height(), decodeOpts);
+        }
+
+        Bitmap decoded = decodeRegion(imageSource, storedRegion, wholeImage, decodeOpts, bitmapPool, decodeControl);
+        if (decoded == null) {
+            return null;
+        }
+
+        Bitmap output;
+        try {
+            output = bitmapPool == null ? null : bitmapPool.get(outputWidth, outputHeight, Bitmap.Config.ARGB_8888, true);
+            if (output == null) {
+                output = Bitmap.createBitmap(outputWidth, outputHeight, Bitmap.Config.ARGB_8888);
+            } else {
+                // drawing blends with what a pooled bitmap still holds
+                output.eraseColor(0);
+            }
+        } catch (OutOfMemoryError e) {
+            if (bitmapPool != null) {
+                bitmapPool.put(decoded);
+            }
+            throw e;
+        }
+
+        // decoded pixels -> stored image -> upright image -> region -> output
+        Matrix matrix = new Matrix();
+        matrix.setScale(storedRegion.width() / (float) decoded.getWidth(), storedRegion.height() / (float) decoded.getHeight());
+        matrix.postTranslate(storedRegion.left, storedRegion.top);
+        matrix.postConcat(toUpright);
+        RectF region = plan.getRegion();
+        matrix.postTranslate(-region.left, -region.top);
+        matrix.postScale(outputWidth / region.width(), outputHeight / region.height());
+
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        ColorMatrix colorMatrix = plan.getColorMatrix();
+        if (colorMatrix != null) {
+            paint.setColorFilter(new ColorMatrixColorFilter(colorMatrix));
+        }
+        Canvas canvas = new Canvas(output);
+        canvas.drawBitmap(decoded, matrix, paint);
+        for (OverlayTransform overlay : plan.getOverlays()) {
+            overlay.draw(canvas, outputWidth, outputHeight);
+        }
+        output.setHasAlpha(decoded.hasAlpha() || !plan.getOverlays().isEmpty());
+        if (bitmapPool != null) {
+            bitmapPool.put(decoded);
+        }
+
+        DecodeInfo decodeInfo = new DecodeInfo(
+                sourceWidth,
+                sourceHeight,
+                requestedSampleSize,
+                decodeOpts.inSampleSize,
+                Bitmap.Config.ARGB_8888,
+                decodeOpts.inPreferredConfig,
+                orientation);
+        return new BitmapDecoder.DecodedBitmap(output, decodeInfo);
+    }
+
+    /**
+     * @return the subsampled region, or <code>null</code> if the decoder couldn't decode it
+     * @throws IOException if reading failed or the decode was cancelled
+     */
+    private static Bitmap decodeRegion(
+            ImageSource imageSource,
+            Rect storedRegion,
+            boolean wholeImage,
+            BitmapFactory.Options decodeOpts,
+            BitmapPool bitmapPool,
+            DecodeControl decodeControl) throws IOException {
+        if (decodeControl != null && !decodeControl.register(decodeOpts)) {
+            if (decodeOpts.inBitmap != null) {
+                bitmapPool.put(decodeOpts.inBitmap);
+            }
+            throw new IOException("Cancelled");
+        }
+        Bitmap bitmap;
+        try {
+            try {
+                bitmap = decodeRegionOnce(imageSource, storedRegion, wholeImage, decodeOpts);
+            } catch (IllegalArgumentException e) {
+                if (decodeOpts.inBitmap == null) {
+                    throw e;
+                }
+                // the decoder couldn't use the pooled bitmap after all. It's still good for someone else.
+                bitmapPool.put(decodeOpts.inBitmap);
+                decodeOpts.inBitmap = null;
+                bitmap = decodeRegionOnce(imageSource, storedRegion, wholeImage, decodeOpts);
+            }
+        } catch (IOException e) {
+            if (decodeOpts.inBitmap != null) {
+                bitmapPool.put(decodeOpts.inBitmap);
+            }
+            throw e;
+        } finally {
+            if (decodeControl != null) {
+                decodeControl.unregister(decodeOpts);
+            }
+        }
+        if (decodeControl != null && decodeControl.isCancelled()) {
+            if (bitmap != null && bitmapPool != null) {
+                bitmapPool.put(bitmap);
+            } else if (decodeOpts.inBitmap != null) {
+                bitmapPool.put(decodeOpts.inBitmap);
+            }
+            throw new IOException("Cancelled: " + imageSource.getUri());
+        }
+        if (bitmap == null && decodeOpts.inBitmap != null) {
+            bitmapPool.put(decodeOpts.inBitmap);
+        }
+        return bitmap;
+    }
+
+    private static Bitmap decodeRegionOnce(ImageSource imageSource, Rect storedRegion, boolean wholeImage, BitmapFactory.Options decodeOpts) throws IOException {
+        if (wholeImage) {
+            return BitmapFactory.decodeStream(imageSource.openStream(), null, decodeOpts);
+        }
+        BitmapRegionDecoder bitmapRegionDecoder = BitmapRegionDecoder.newInstance(imageSource.openStream(), false);
+        try {
+            return bitmapRegionDecoder.decodeRegion(storedRegion, decodeOpts);
+        } finally {
+            bitmapRegionDecoder.recycle();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class CaptureRegistryTest {
+    private static final String CAPTURE_ID = "capture";
+
+    private CaptureRegistry captureRegistry;
+    private RecordingWork work;
+    private List<String> events;
+
+    @Before
+    public void setUp() {
+        captureRegistry = new CaptureRegistry();
+        work = new RecordingWork();
+        events = new ArrayList<String>();
+    }
+
+    @Test
+    public void deliversRightAwayWhileAttached() {
+        captureRegistry.register(CAPTURE_ID, work, Callback.class, new Callback("first"), null);
+
+        captureRegistry.deliver(CAPTURE_ID, new RecordingDelivery("result"), true);
+
+        assertEquals(list("first:result"), events);
+        assertFalse(captureRegistry.contains(CAPTURE_ID));
+    }
+
+    @Test
+    public void holdsResultsWhileDetachedAndDeliversThemInOrderOnAttach() {
+        captureRegistry.register(CAPTURE_ID, work, Callback.class, new Callback("first"), null);
+        captureRegistry.detach(CAPTURE_ID);
+
+        captureRegistry.deliver(CAPTURE_ID, new RecordingDelivery("preview"), false);
+        captureRegistry.deliver(CAPTURE_ID, new RecordingDelivery("result"), true);
+        assertTrue(events.isEmpty());
+        assertTrue(captureRegistry.contains(CAPTURE_ID));
+
+        assertTrue(captureRegistry.attach(CAPTURE_ID, new Callback("second"), null));
+
+        assertEquals(list("second:preview", "second:result"), events);
+        assertFalse(captureRegistry.contains(CAPTURE_ID));
+    }
+
+    @Test
+    public void cancelsCapturesThatStayDetachedForTheOrphanTimeout() {
+        captureRegistry.setOrphanTimeoutMillis(1000);
+        captureRegistry.register(CAPTURE_ID, work, Callback.class, new Callback("first"), null);
+        RecordingRemovalListener removalListener = new RecordingRemovalListener();
+        captureRegistry.addRemovalListener(CAPTURE_ID, removalListener);
+        captureRegistry.detach(CAPTURE_ID);
+        captureRegistry.deliver(CAPTURE_ID, new RecordingDelivery("result"), true);
+
+        ShadowLooper.idleMainLooper(999);
+        assertTrue(captureRegistry.contains(CAPTURE_ID));
+        assertFalse(work.cancelled);
+
+        ShadowLooper.idleMainLooper(1);
+        assertFalse(captureRegistry.contains(CAPTURE_ID));
+        assertTrue(work.cancelled);
+        assertEquals(list("discard:result"), events);
+        assertEquals(list(Boolean.TRUE), removalListener.removals);
+    }
+
+    @Test
+    public void reattachingStopsTheOrphanTimeout() {
+        captureRegistry.setOrphanTimeoutMillis(1000);
+        captureRegistry.register(CAPTURE_ID, work, Callback.class, new Callback("first"), null);
+        captureRegistry.detach(CAPTURE_ID);
+        ShadowLooper.idleMainLooper(600);
+        assertTrue(captureRegistry.attach(CAPTURE_ID, new Callback("second"), null));
+        captureRegistry.detach(CAPTURE_ID);
+
+        // timed from the second detach
+        ShadowLooper.idleMainLooper(600);
+        assertTrue(captureRegistry.contains(CAPTURE_ID));
+        assertFalse(work.cancelled);
+
+        ShadowLooper.idleMainLooper(400);
+        assertFalse(captureRegistry.contains(CAPTURE_ID));
+        assertTrue(work.cancelled);
+    }
+
+    @Test
+    public void changingTheOrphanTimeoutAppliesToDetachedCaptures() {
+        captureRegistry.register(CAPTURE_ID, work, Callback.class, new Callback("first"), null);
+        captureRegistry.detach(CAPTURE_ID);
+        ShadowLooper.idleMainLooper(60 * 1000);
+        assertTrue(captureRegistry.contains(CAPTURE_ID));
+
+        captureRegistry.setOrphanTimeoutMillis(30 * 1000);
+        ShadowLooper.idleMainLooper(0);
+        assertFalse(captureRegistry.contains(CAPTURE_ID));
+        assertTrue(work.cancelled);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOrphanTimeoutsBelowOneMillisecond() {
+        captureRegistry.setOrphanTimeoutMillis(0);
+    }
+
+    @Test
+    public void doesNotAttachCallbacksOfAnotherType() {
+        captureRegistry.register(CAPTURE_ID, work, Callback.class, new Callback("first"), null);
+        captureRegistry.detach(CAPTURE_ID);
+
+        assertFalse(captureRegistry.attach(CAPTURE_ID, new Object(), null));
+        assertFalse(captureRegistry.attach("unknown", new Callback("second"), null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCallbacksOfAnotherType() {
+        captureRegistry.register(CAPTURE_ID, work, Callback.class, new Object(), null);
+    }
+
+    @Test
+    public void cancelStopsTheWorkAndDiscardsHeldResults() {
+        captureRegistry.register(CAPTURE_ID, work, Callback.class, new Callback("first"), null);
+        RecordingRemovalListener removalListener = new RecordingRemovalListener();
+        captureRegistry.addRemovalListener(CAPTURE_ID, removalListener);
+        captureRegistry.detach(CAPTURE_ID);
+        captureRegistry.deliver(CAPTURE_ID, new RecordingDelivery("preview"), false);
+
+        captureRegistry.cancel(CAPTURE_ID);
+
+        assertTrue(work.cancelled);
+        assertEquals(list("discard:preview"), events);
+        assertEquals(list(Boolean.TRUE), removalListener.removals);
+        assertFalse(captureRegistry.contains(CAPTURE_ID));
+    }
+
+    @Test
+    public void discardsResultsThatArriveAfterCancel() {
+        captureRegistry.register(CAPTURE_ID, work, Callback.class, new Callback("first"), null);
+        captureRegistry.cancel(CAPTURE_ID);
+
+        captureRegistry.deliver(CAPTURE_ID, new RecordingDelivery("result"), true);
+
+        assertEquals(list("discard:result"), events);
+    }
+
+    @Test
+    public void tellsRemovalListenersTheCaptureFinished() {
+        captureRegistry.register(CAPTURE_ID, work, Callback.class, new Callback("first"), null);
+        RecordingRemovalListener removalListener = new RecordingRemovalListener();
+        captureRegistry.addRemovalListener(CAPTURE_ID, removalListener);
+
+        captureRegistry.deliver(CAPTURE_ID, new RecordingDelivery("result"), true);
+
+        assertEquals(list(Boolean.FALSE), removalListener.removals);
+
+        // a capture that is already over is reported right away
+        RecordingRemovalListener lateRemovalListener = new RecordingRemovalListener();
+        captureRegistry.addRemovalListener(CAPTURE_ID, lateRemovalListener);
+        assertEquals(list(Boolean.FALSE), lateRemovalListener.removals);
+    }
+
+    private static <T> List<T> list(T... values) {
+        List<T> list = new ArrayList<T>();
+        for (T value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static class Callback {
+        public final String name;
+
+        public Callback(String name) {
+            this.name = name;
+        }
+    }
+
+    private class RecordingDelivery implements CaptureRegistry.Delivery {
+        private final String result;
+
+        public RecordingDelivery(String result) {
+            this.result = result;
+        }
+
+        @Override
+        public void deliver(Object callback, ImageCapturer.CaptureMetricsListener metricsListener) {
+            events.add(((Callback) callback).name + ":" + result);
+        }
+
+        @Override
+        public void discard() {
+            events.add("discard:" + result);
+        }
+    }
+
+    private static class RecordingWork implements CaptureRegistry.Work {
+        public boolean cancelled;
+
+        @Override
+        public void start(Executor executor) {
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public DecodeControl getDecodeControl() {
+            return null;
+        }
+    }
+
+    private static class RecordingRemovalListener implements CaptureRegistry.RemovalListener {
+        public final List<Boolean> removals = new ArrayList<Boolean>();
+
+        @Override
+        public void onRemoved(boolean cancelled) {
+            removals.add(cancelled);
+        }
+    }
+}
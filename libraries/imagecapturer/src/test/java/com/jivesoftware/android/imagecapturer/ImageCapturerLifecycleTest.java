@@ -0,0 +1,673 @@
+/*
+ * Copyright 2015 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.android.imagecapturer;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Parcel;
+import android.provider.MediaStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowActivity;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ActivityController;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Drives {@link ImageCapturer} through the {@link android.app.Activity} lifecycle the way an app does, with
+ * camera captures of generated JPEGs and PNGs, rotations, cancellations and abandoned choosers.
+ * <p/>
+ * Decodes run on a {@link QueuedExecutor} that only runs when a test says so, so each test decides whether a
+ * result finishes before or after a rotation. The store's journal and sweeps still run on the shared
+ * {@link DecodeExecutor}; tests wait for it to go idle before they look at the disk.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ImageCapturerLifecycleTest {
+    private static final int REQUEST_CODE = 7;
+    private static final int IMAGE_WIDTH = 2048;
+    private static final int IMAGE_HEIGHT = 1536;
+    private static final DecodeSpec DECODE_SPEC = new DecodeSpec(512, 512);
+    // caches and pools fill up to their caps during the warm-up, so the stress cycles start from a steady heap
+    private static final int WARM_UP_CYCLE_COUNT = 40;
+    private static final int STRESS_CYCLE_COUNT = 400;
+    // anything a capture leaves reachable, times the stress cycles, is far more than this
+    private static final long RETAINED_HEAP_TOLERANCE_BYTES = 8 * 1024 * 1024;
+    private static final Map<String, byte[]> encodedImages = new HashMap<String, byte[]>();
+
+    private TemporaryImageStore temporaryImageStore;
+    private QueuedExecutor decodes;
+    private long bytesWritten;
+
+    @Before
+    public void setUp() {
+        System.setProperty("java.awt.headless", "true");
+        // every test has an application and external cache directory of its own
+        TemporaryImageStore.clearInstance();
+        temporaryImageStore = TemporaryImageStore.getInstance(RuntimeEnvironment.application);
+        decodes = new QueuedExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        // nothing may still write to this test's directory once the next one starts
+        awaitBackgroundWork();
+    }
+
+    @Test
+    public void deliversCapturedJpegsAndPngs() throws IOException {
+        for (String format : new String[]{"jpg", "png"}) {
+            ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class).create();
+            Activity activity = controller.get();
+            ImageCapturer imageCapturer = newImageCapturer();
+            RecordingCallback callback = new RecordingCallback();
+
+            imageCapturer.awaitImageCapture(activity, REQUEST_CODE);
+            File cameraFile = takePicture(activity, format);
+            assertEquals(ImageCapturer.Result.PROCESSING,
+                    imageCapturer.onActivityResultDecoded(activity, REQUEST_CODE, Activity.RESULT_OK, null, callback, DECODE_SPEC));
+            assertTrue(imageCapturer.isProcessing());
+            finishDecodes();
+
+            assertEquals(format, 1, callback.capturedCount);
+            assertNull(format, callback.failure);
+            assertNotNull(format, callback.bitmap);
+            assertTrue(format, callback.bitmap.getWidth() <= DECODE_SPEC.getMaxWidth());
+            assertEquals(format, cameraFile, callback.imageFile);
+            assertNull(format, callback.imageUri);
+            assertFalse(imageCapturer.isProcessing());
+            controller.destroy();
+        }
+    }
+
+    @Test
+    public void deliversResultThatFinishedWhileRotating() throws IOException {
+        ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class).create();
+        Activity activity = controller.get();
+        ImageCapturer imageCapturer = newImageCapturer();
+        RecordingCallback oldCallback = new RecordingCallback();
+        imageCapturer.awaitImageCapture(activity, REQUEST_CODE);
+        takePicture(activity, "jpg");
+        imageCapturer.onActivityResultDecoded(activity, REQUEST_CODE, Activity.RESULT_OK, null, oldCallback, DECODE_SPEC);
+
+        imageCapturer.detach();
+        ImageCapturer restoredImageCapturer = rotate(imageCapturer);
+        controller.destroy();
+        finishDecodes();
+        assertEquals(0, oldCallback.getDeliveredCount());
+
+        Robolectric.buildActivity(Activity.class).create();
+        RecordingCallback newCallback = new RecordingCallback();
+        assertTrue(restoredImageCapturer.reattach(newCallback));
+
+        assertEquals(0, oldCallback.getDeliveredCount());
+        assertEquals(1, newCallback.capturedCount);
+        assertFalse(restoredImageCapturer.isProcessing());
+    }
+
+    @Test
+    public void deliversResultThatArrivedAfterRotating() throws IOException {
+        ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class).create();
+        Activity activity = controller.get();
+        ImageCapturer imageCapturer = newImageCapturer();
+        imageCapturer.awaitImageCapture(activity, REQUEST_CODE);
+        takePicture(activity, "png");
+
+        // the chooser is showing while the Activity underneath is recreated
+        ImageCapturer restoredImageCapturer = rotate(imageCapturer);
+        controller.destroy();
+        Activity restoredActivity = Robolectric.buildActivity(Activity.class).create().get();
+        RecordingCallback callback = new RecordingCallback();
+        assertEquals(ImageCapturer.Result.PROCESSING,
+                restoredImageCapturer.onActivityResultDecoded(restoredActivity, REQUEST_CODE, Activity.RESULT_OK, null, callback, DECODE_SPEC));
+        finishDecodes();
+
+        assertEquals(1, callback.capturedCount);
+    }
+
+    @Test
+    public void doesNotRetainDestroyedActivities() throws IOException {
+        List<WeakReference<Activity>> activityReferences = new ArrayList<WeakReference<Activity>>();
+        ImageCapturer imageCapturer = newImageCapturer();
+        for (int i = 0; i < 20; i++) {
+            imageCapturer = captureAcrossRotation(imageCapturer, i % 2 == 0 ? "jpg" : "png", activityReferences);
+        }
+
+        assertReleased(activityReferences);
+    }
+
+    /**
+     * Rotate with the capture still running, and finish it in the next {@link android.app.Activity}. A method of
+     * its own so no local variable keeps the destroyed {@link android.app.Activity} reachable.
+     *
+     * @return the restored {@link ImageCapturer}
+     */
+    private ImageCapturer captureAcrossRotation(ImageCapturer imageCapturer, String format, List<WeakReference<Activity>> activityReferences) throws IOException {
+        ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class).create();
+        Activity activity = controller.get();
+        activityReferences.add(new WeakReference<Activity>(activity));
+        RecordingCallback callback = new RecordingCallback();
+        imageCapturer.awaitImageCapture(activity, REQUEST_CODE);
+        takePicture(activity, format);
+        imageCapturer.onActivityResultDecoded(activity, REQUEST_CODE, Activity.RESULT_OK, null, callback, DECODE_SPEC);
+
+        imageCapturer.detach();
+        ImageCapturer restoredImageCapturer = rotate(imageCapturer);
+        controller.destroy();
+        finishDecodes();
+        restoredImageCapturer.reattach(callback);
+        assertEquals(1, callback.capturedCount);
+        return restoredImageCapturer;
+    }
+
+    /**
+     * Hundreds of capture cycles with rotations, cancellations and abandoned choosers. After a warm-up, the heap
+     * that is still used after a GC must stay within {@link #RETAINED_HEAP_TOLERANCE_BYTES} of where it started,
+     * and every file left in the store must be an orphan the sweeper reclaims under its default caps.
+     * Reports the p50 and p99 time from the activity result to the delivery, and the peak allocation.
+     */
+    @Test
+    public void stressCyclesHoldTheHeapSteadyAndLeaveOnlyOrphans() throws IOException {
+        CycleStats warmUpStats = new CycleStats(WARM_UP_CYCLE_COUNT);
+        ImageCapturer imageCapturer = newImageCapturer();
+        for (int i = 0; i < WARM_UP_CYCLE_COUNT; i++) {
+            imageCapturer = runCycle(imageCapturer, i, warmUpStats);
+        }
+        awaitBackgroundWork();
+        long baselineHeapBytes = getUsedHeapAfterGc();
+        resetPeakHeap();
+
+        CycleStats stats = new CycleStats(STRESS_CYCLE_COUNT);
+        for (int i = 0; i < STRESS_CYCLE_COUNT; i++) {
+            imageCapturer = runCycle(imageCapturer, i, stats);
+        }
+        awaitBackgroundWork();
+        long peakHeapBytes = getPeakHeap();
+        long retainedHeapBytes = getUsedHeapAfterGc() - baselineHeapBytes;
+
+        System.out.println("ImageCapturerLifecycleTest: " + STRESS_CYCLE_COUNT + " cycles, " +
+                stats.deliveredCount + " delivered, " + stats.cancelledCount + " cancelled, " +
+                stats.abandonedCount + " abandoned" +
+                ", p50 " + toMillis(stats.getLatencyPercentile(50)) + "ms" +
+                ", p99 " + toMillis(stats.getLatencyPercentile(99)) + "ms" +
+                ", peak allocation per capture " + toKilobytes(stats.maxAllocatedBytes) + "KB" +
+                ", peak heap " + toKilobytes(peakHeapBytes) + "KB" +
+                ", retained heap " + toKilobytes(retainedHeapBytes) + "KB" +
+                ", " + toKilobytes(bytesWritten) + "KB written, " + temporaryImageStore.getDeletedCount() + " files swept");
+
+        assertEquals(stats.expectedDeliveredCount, stats.deliveredCount);
+        assertFalse(imageCapturer.isProcessing());
+        assertTrue("Retained " + retainedHeapBytes + " bytes more than the baseline of " + baselineHeapBytes,
+                retainedHeapBytes < RETAINED_HEAP_TOLERANCE_BYTES);
+        assertOnlyReclaimableOrphansLeft();
+    }
+
+    /**
+     * One capture from the chooser to the delivery, with a rotation every other cycle, a cancellation every third
+     * and an abandoned chooser every fifth. Releases the delivered bitmap, like an app that moved on.
+     *
+     * @return the {@link ImageCapturer} to use next, restored if the cycle rotated
+     */
+    private ImageCapturer runCycle(ImageCapturer imageCapturer, int i, CycleStats stats) throws IOException {
+        ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class).create();
+        Activity activity = controller.get();
+        RecordingCallback callback = new RecordingCallback();
+        imageCapturer.awaitImageCapture(activity, REQUEST_CODE);
+        if (i % 5 == 4) {
+            // the user backed out of the chooser
+            assertEquals(ImageCapturer.Result.FAILED,
+                    imageCapturer.onActivityResultDecoded(activity, REQUEST_CODE, Activity.RESULT_CANCELED, null, callback, DECODE_SPEC));
+            controller.destroy();
+            stats.abandonedCount++;
+            return imageCapturer;
+        }
+
+        takePicture(activity, i % 2 == 0 ? "jpg" : "png");
+        long startedAllocatedBytes = getAllocatedBytes();
+        long startedAtNanos = System.nanoTime();
+        assertEquals(ImageCapturer.Result.PROCESSING,
+                imageCapturer.onActivityResultDecoded(activity, REQUEST_CODE, Activity.RESULT_OK, null, callback, DECODE_SPEC));
+        boolean cancelled = i % 3 == 0;
+        if (cancelled) {
+            imageCapturer.cancelBackgroundProcessing();
+        }
+        if (i % 2 == 0) {
+            imageCapturer.detach();
+            imageCapturer = rotate(imageCapturer);
+            controller.destroy();
+            finishDecodes();
+            imageCapturer.reattach(callback);
+        } else {
+            finishDecodes();
+            controller.destroy();
+        }
+
+        assertNull(callback.failure);
+        if (cancelled) {
+            assertEquals(0, callback.getDeliveredCount());
+            stats.cancelledCount++;
+        } else {
+            assertEquals(1, callback.capturedCount);
+            stats.expectedDeliveredCount++;
+            stats.recordDelivery(callback.capturedAtNanos - startedAtNanos, callback.capturedAllocatedBytes - startedAllocatedBytes);
+            ImageCapturer.releaseBitmap(RuntimeEnvironment.application, callback.bitmap);
+        }
+        return imageCapturer;
+    }
+
+    /**
+     * Every capture is over, so the store must track none of its files as live, on disk either. What is left are
+     * orphans, which the sweeper kept within the default byte and age caps after every capture.
+     */
+    private void assertOnlyReclaimableOrphansLeft() throws IOException {
+        assertEquals(0, temporaryImageStore.getLiveFileCount());
+        assertEquals(new ArrayList<String>(), readJournal());
+
+        long now = System.currentTimeMillis();
+        long totalBytes = 0;
+        for (File file : listCaptureFiles()) {
+            assertTrue(file + " is older than the age cap", now - file.lastModified() <= TemporaryImageStore.DEFAULT_MAX_AGE_MILLIS);
+            totalBytes += file.length();
+        }
+        assertTrue(totalBytes + " bytes left, more than the byte cap", totalBytes <= TemporaryImageStore.DEFAULT_MAX_BYTES);
+        // so the byte cap was reached, and orphans were reclaimed as the store filled up
+        assertTrue(bytesWritten > TemporaryImageStore.DEFAULT_MAX_BYTES);
+        assertTrue(temporaryImageStore.getDeletedCount() > 0);
+    }
+
+    private ImageCapturer newImageCapturer() {
+        ImageCapturer imageCapturer = new ImageCapturer();
+        imageCapturer.setExecutor(decodes);
+        return imageCapturer;
+    }
+
+    /**
+     * What happens to an {@link ImageCapturer} when its {@link android.app.Activity} is recreated. The executor
+     * isn't saved, so it is set again like an app would.
+     */
+    private ImageCapturer rotate(ImageCapturer imageCapturer) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            imageCapturer.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            ImageCapturer restoredImageCapturer = ImageCapturer.CREATOR.createFromParcel(parcel);
+            restoredImageCapturer.setExecutor(decodes);
+            return restoredImageCapturer;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Run the queued decodes and deliver their results on the main thread.
+     */
+    private void finishDecodes() {
+        decodes.runAll();
+        ShadowLooper.runUiThreadTasks();
+    }
+
+    /**
+     * Block until the shared {@link DecodeExecutor} has run everything submitted so far: one marker per thread,
+     * each holding its thread until all of them run.
+     */
+    private static void awaitBackgroundWork() {
+        DecodeExecutor decodeExecutor = DecodeExecutor.getInstance(RuntimeEnvironment.application);
+        final CountDownLatch markers = new CountDownLatch(decodeExecutor.getThreadCount());
+        for (int i = 0; i < decodeExecutor.getThreadCount(); i++) {
+            decodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    markers.countDown();
+                    try {
+                        markers.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, DecodeExecutor.Priority.BACKGROUND);
+        }
+        try {
+            assertTrue("Background work didn't finish", markers.await(30, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail("Interrupted");
+        }
+    }
+
+    /**
+     * Play the camera: write an image where the chooser's camera {@link android.content.Intent} asked for it.
+     */
+    private File takePicture(Activity activity, String format) throws IOException {
+        ShadowActivity.IntentForResult startedActivity = shadowOf(activity).getNextStartedActivityForResult();
+        assertNotNull("awaitImageCapture didn't start the chooser", startedActivity);
+        assertEquals(REQUEST_CODE, startedActivity.requestCode);
+        Intent cameraIntent = startedActivity.intent.getParcelableExtra(Intent.EXTRA_INTENT);
+        Uri outputUri = cameraIntent.getParcelableExtra(MediaStore.EXTRA_OUTPUT);
+        File file = new File(outputUri.getPath());
+        byte[] encodedImage = getEncodedImage(format);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(encodedImage);
+        } finally {
+            out.close();
+        }
+        bytesWritten += encodedImage.length;
+        return file;
+    }
+
+    /**
+     * Encoded once per format, so the cycles measure the capture rather than the test's own encoding.
+     */
+    private static synchronized byte[] getEncodedImage(String format) throws IOException {
+        byte[] encodedImage = encodedImages.get(format);
+        if (encodedImage == null) {
+            BufferedImage image = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = image.createGraphics();
+            try {
+                graphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, IMAGE_WIDTH, IMAGE_HEIGHT, Color.BLUE));
+                graphics.fillRect(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
+            } finally {
+                graphics.dispose();
+            }
+            if (format.equals("jpg")) {
+                // sensor noise, so the JPEG is about as big as a photo, and the cycles fill the store past its cap
+                addNoise(image, 16);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (!ImageIO.write(image, format, out)) {
+                throw new IOException("No ImageIO writer for " + format);
+            }
+            encodedImage = out.toByteArray();
+            encodedImages.put(format, encodedImage);
+        }
+        return encodedImage;
+    }
+
+    private static void addNoise(BufferedImage image, int amplitude) {
+        Random random = new Random(IMAGE_WIDTH);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = image.getRGB(x, y);
+                int noise = random.nextInt(2 * amplitude + 1) - amplitude;
+                int red = clamp(((rgb >> 16) & 0xFF) + noise);
+                int green = clamp(((rgb >> 8) & 0xFF) + noise);
+                int blue = clamp((rgb & 0xFF) + noise);
+                image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+    }
+
+    private static int clamp(int component) {
+        return Math.max(0, Math.min(0xFF, component));
+    }
+
+    private List<File> listCaptureFiles() throws IOException {
+        List<File> captureFiles = new ArrayList<File>();
+        File[] files = temporaryImageStore.getDirectory().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("capture-")) {
+                    captureFiles.add(file);
+                }
+            }
+        }
+        return captureFiles;
+    }
+
+    /**
+     * @return the file names the journal records as live, which a new process would protect from the sweeper
+     */
+    private List<String> readJournal() throws IOException {
+        List<String> fileNames = new ArrayList<String>();
+        File journalFile = new File(temporaryImageStore.getDirectory(), "journal");
+        if (!journalFile.exists()) {
+            return fileNames;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    fileNames.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return fileNames;
+    }
+
+    private static void assertReleased(List<WeakReference<Activity>> activityReferences) {
+        for (int attempt = 0; attempt < 10; attempt++) {
+            System.gc();
+            System.runFinalization();
+            int retainedCount = 0;
+            for (WeakReference<Activity> activityReference : activityReferences) {
+                if (activityReference.get() != null) {
+                    retainedCount++;
+                }
+            }
+            if (retainedCount == 0) {
+                return;
+            }
+            sleep(100);
+        }
+        fail("Destroyed Activities are still reachable");
+    }
+
+    private static long getUsedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        long usedBytes = Long.MAX_VALUE;
+        // the lowest of a few collections, so garbage that survived one doesn't count as retained
+        for (int attempt = 0; attempt < 5; attempt++) {
+            System.gc();
+            System.runFinalization();
+            sleep(50);
+            usedBytes = Math.min(usedBytes, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return usedBytes;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                memoryPool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return the sum of the heap pools' peaks since {@link #resetPeakHeap}
+     */
+    private static long getPeakHeap() {
+        long peakBytes = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                peakBytes += memoryPool.getPeakUsage().getUsed();
+            }
+        }
+        return peakBytes;
+    }
+
+    /**
+     * @return how many bytes the test thread, which runs the decodes too, allocated so far, or zero if the JVM
+     * doesn't tell
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+
+    private static long toKilobytes(long bytes) {
+        return bytes / 1024;
+    }
+
+    /**
+     * Runs what it is given only in {@link #runAll}, on the calling thread.
+     */
+    private static class QueuedExecutor implements Executor {
+        private final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            queue.addLast(command);
+        }
+
+        public void runAll() {
+            while (true) {
+                Runnable command;
+                synchronized (this) {
+                    command = queue.pollFirst();
+                }
+                if (command == null) {
+                    return;
+                }
+                command.run();
+            }
+        }
+    }
+
+    private static class CycleStats {
+        private final long[] latencyNanos;
+        private int latencyCount;
+        public int expectedDeliveredCount;
+        public int deliveredCount;
+        public int cancelledCount;
+        public int abandonedCount;
+        public long maxAllocatedBytes;
+
+        public CycleStats(int cycleCount) {
+            latencyNanos = new long[cycleCount];
+        }
+
+        public void recordDelivery(long nanos, long allocatedBytes) {
+            latencyNanos[latencyCount++] = nanos;
+            deliveredCount++;
+            maxAllocatedBytes = Math.max(maxAllocatedBytes, allocatedBytes);
+        }
+
+        public long getLatencyPercentile(int percentile) {
+            if (latencyCount == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencyNanos, latencyCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(latencyCount * percentile / 100.0) - 1;
+            return sorted[Math.max(0, index)];
+        }
+    }
+
+    /**
+     * Doesn't reference an {@link android.app.Activity}, like a callback that only updates a retained model.
+     */
+    private static class RecordingCallback implements ImageCapturer.ImageCapturedCallback {
+        public int capturedCount;
+        public int failedCount;
+        public int outOfMemoryCount;
+        public Bitmap bitmap;
+        public Uri imageUri;
+        public File imageFile;
+        public Throwable failure;
+        public long capturedAtNanos;
+        public long capturedAllocatedBytes;
+
+        @Override
+        public void onImageCaptured(Bitmap bitmap, Uri imageUri, File imageFile) {
+            capturedAtNanos = System.nanoTime();
+            capturedAllocatedBytes = getAllocatedBytes();
+            capturedCount++;
+            this.bitmap = bitmap;
+            this.imageUri = imageUri;
+            this.imageFile = imageFile;
+        }
+
+        @Override
+        public void onImageCaptureFailed(IOException e) {
+            failedCount++;
+            failure = e;
+        }
+
+        @Override
+        public void onImageCaptureOutOfMemory(OutOfMemoryError outOfMemoryError, NullPointerException npe) {
+            outOfMemoryCount++;
+            failure = outOfMemoryError != null ? outOfMemoryError : npe;
+        }
+
+        public int getDeliveredCount() {
+            return capturedCount + failedCount + outOfMemoryCount;
+        }
+    }
+}